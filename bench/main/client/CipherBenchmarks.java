@@ -0,0 +1,95 @@
+package main.client;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.spec.SecretKeySpec;
+
+import main.common.Message;
+import main.tools.Benchmark;
+
+/**
+ * Benchmarks of the message ciphers and the key exchange of a client.
+ *
+ * @author Lauri Halla-aho
+ */
+public class CipherBenchmarks
+{
+    /**
+     * Runs the cipher benchmarks.
+     *
+     * @param bench - the benchmark runner
+     * @throws NoSuchAlgorithmException           if a cipher of the client is not available
+     * @throws InvalidAlgorithmParameterException if the Diffie-Hellman group of the client is not supported
+     */
+    public static void run( final Benchmark bench )
+            throws NoSuchAlgorithmException, InvalidAlgorithmParameterException
+    {
+        final SessionCipher cipher = new SessionCipher( new SecretKeySpec( new byte [ 16 ], "AES" ), true );
+
+        for ( final int length : new int [ ] { 64, 1000 } )
+        {
+            final byte [ ] plainText = new byte [ length ];
+            final byte [ ] [ ] cipherParams = cipher.encrypt( plainText );
+            final byte [ ] sealed = cipher.seal( plainText );
+
+            bench.run( "crypto.cbc.encrypt[" + length + "]", () -> cipher.encrypt( plainText ) );
+            bench.run( "crypto.cbc.decrypt[" + length + "]",
+                    () -> cipher.decrypt( cipherParams[ 0 ], cipherParams[ 1 ] ) );
+            bench.run( "crypto.gcm.seal[" + length + "]", () -> cipher.seal( plainText ) );
+            bench.run( "crypto.gcm.open[" + length + "]", () -> cipher.open( sealed ) );
+
+            /* Into buffers supplied by the caller, as done by the load generator. */
+            final byte [ ] sealBuffer = new byte [ length + SessionCipher.SEALED_OVERHEAD ];
+            final byte [ ] openBuffer = new byte [ length ];
+
+            bench.run( "crypto.gcm.sealInto[" + length + "]",
+                    () -> cipher.seal( plainText, 0, length, sealBuffer, 0 ) );
+            bench.run( "crypto.gcm.openInto[" + length + "]",
+                    () -> cipher.open( sealed, 0, sealed.length, openBuffer, 0 ) );
+        }
+
+        /* The worst case of the ratchet: a new key derived for every sealed message. */
+        final SessionCipher ratchet = new SessionCipher( new SecretKeySpec( new byte [ 16 ], "AES" ), new byte [ 32 ],
+                true, 1, SessionCipher.DEFAULT_RATCHET_MILLIS );
+        final byte [ ] ratchetText = new byte [ 64 ];
+
+        bench.run( "crypto.ratchet.seal[64]", () -> ratchet.seal( ratchetText ) );
+
+        /* The cost of a key pair taken from the pool when it has not kept up. */
+        final KeyPairGenerator kpairGen = KeyPairGenerator.getInstance( "DH" );
+        kpairGen.initialize( KeyExchange.GROUP_14 );
+
+        bench.run( "crypto.dh.generate", kpairGen::generateKeyPair );
+
+        final KeyExchange initiator = new KeyExchange( Client.CAPABILITIES );
+        final KeyExchange responder = new KeyExchange( Client.CAPABILITIES );
+        final byte [ ] request = initiator.initiate( Message.CAP_SEALED );
+
+        bench.run( "crypto.dh.initiate", () -> initiator.initiate( Message.CAP_SEALED ) );
+        bench.run( "crypto.dh.respond", () -> responder.respond( request ) );
+
+        final byte [ ] x25519Request = initiator.initiate( Client.CAPABILITIES );
+
+        bench.run( "crypto.x25519.initiate", () -> initiator.initiate( Client.CAPABILITIES ) );
+        bench.run( "crypto.x25519.respond", () -> responder.respond( x25519Request ) );
+
+        /* Both sides of a join between the same two users, with each resumption replacing the remembered secret. */
+        final KeyExchange alice = new KeyExchange( Client.CAPABILITIES, KeyExchange.getSharedPool(),
+                new ResumptionCache( ResumptionCache.DEFAULT_CAPACITY, ResumptionCache.DEFAULT_LIFETIME_MILLIS ) );
+        final KeyExchange bob = new KeyExchange( Client.CAPABILITIES, KeyExchange.getSharedPool(),
+                new ResumptionCache( ResumptionCache.DEFAULT_CAPACITY, ResumptionCache.DEFAULT_LIFETIME_MILLIS ) );
+
+        bench.run( "crypto.x25519.handshake", () ->
+        {
+            initiator.complete( responder.respond( initiator.initiate( Client.CAPABILITIES ) ) );
+            return initiator.getKey();
+        } );
+        bench.run( "crypto.resume.handshake", () ->
+        {
+            alice.complete( bob.respond( alice.initiate( Client.CAPABILITIES, "bob" ), "alice" ) );
+            return alice.getKey();
+        } );
+    }
+}
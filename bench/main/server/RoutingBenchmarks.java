@@ -0,0 +1,83 @@
+package main.server;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import main.common.ClientInst;
+import main.common.Message;
+import main.tools.Benchmark;
+
+/**
+ * Benchmarks of the lookups done by the server to route a message, with the registry, the conversation index and the
+ * lobby filled with a parameterised number of clients. Half of the clients are paired, the rest wait in the lobby.
+ *
+ * @author Lauri Halla-aho
+ */
+public class RoutingBenchmarks
+{
+    /**
+     * Runs the routing benchmarks for each of the specified numbers of clients.
+     *
+     * @param bench - the benchmark runner
+     * @param sizes - numbers of connected clients
+     * @throws UnknownHostException if the addresses of the simulated clients cannot be created
+     */
+    public static void run( final Benchmark bench, final int [ ] sizes ) throws UnknownHostException
+    {
+        for ( final int size : sizes )
+        {
+            run( bench, size );
+        }
+    }
+
+    /**
+     * Runs the routing benchmarks with the specified number of clients.
+     *
+     * @param bench - the benchmark runner
+     * @param size  - number of connected clients
+     * @throws UnknownHostException if the addresses of the simulated clients cannot be created
+     */
+    private static void run( final Benchmark bench, final int size ) throws UnknownHostException
+    {
+        final ClientRegistry clients = new ClientRegistry();
+        final Lobby lobby = new Lobby();
+        final PairIndex pairs = new PairIndex( clients, lobby );
+        final RateLimiter rateLimiter = new RateLimiter();
+
+        final ClientInst [ ] registered = new ClientInst [ size ];
+        final InetAddress [ ] addresses = new InetAddress [ size ];
+
+        for ( int i = 0; i < size; i++ )
+        {
+            addresses[ i ] = InetAddress.getByAddress( new byte [ ] { 10, (byte) ( i >> 16 ), (byte) ( i >> 8 ),
+                    (byte) i } );
+            registered[ i ] = clients.register( "user" + i, addresses[ i ], 40000 + i % 20000, Message.CAP_WIRE_V2 );
+            lobby.add( registered[ i ].getUsername() );
+        }
+
+        for ( int i = 0; i + 1 < size / 2; i += 2 )
+        {
+            pairs.pair( registered[ i ], registered[ i + 1 ] );
+        }
+
+        final String cursor = registered[ size - 1 - size / 4 ].getUsername();
+        final int [ ] next = { 0 };
+
+        bench.run( "routing.registry.endpoint[" + size + "]", () ->
+        {
+            final int i = next[ 0 ]++ % size;
+            return clients.get( addresses[ i ], 40000 + i % 20000 );
+        } );
+        bench.run( "routing.registry.username[" + size + "]",
+                () -> clients.get( registered[ next[ 0 ]++ % size ].getUsername() ) );
+        bench.run( "routing.pairs.peer[" + size + "]", () -> pairs.getPeer( registered[ next[ 0 ]++ % size ] ) );
+        bench.run( "routing.lobby.page.first[" + size + "]", () -> lobby.getPage( "user0", null ) );
+        bench.run( "routing.lobby.page.cursor[" + size + "]", () -> lobby.getPage( "user0", cursor ) );
+        bench.run( "routing.limiter.acquire[" + size + "]", () ->
+        {
+            final int i = next[ 0 ]++ % size;
+            return rateLimiter.acquire( addresses[ i ], 40000 + i % 20000, Message.MSG_CHAT,
+                    System.currentTimeMillis() );
+        } );
+    }
+}
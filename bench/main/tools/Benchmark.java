@@ -0,0 +1,215 @@
+package main.tools;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal benchmark runner. Each benchmark is run in batches on the calling thread, first for a warm-up period so
+ * that the JIT compiler settles, then for a number of measured iterations. The throughput is reported together with the
+ * bytes allocated per operation, read from the allocation counter of the thread, and the garbage collections during
+ * the measurement.
+ *
+ * @author Lauri Halla-aho
+ */
+public class Benchmark
+{
+    /**
+     * A benchmarked operation. The returned value is consumed so that the work producing it cannot be optimised away.
+     */
+    @FunctionalInterface
+    public interface Operation
+    {
+        /**
+         * Performs the operation once.
+         *
+         * @return the result of the operation
+         * @throws Exception if the operation fails
+         */
+        Object run() throws Exception;
+    }
+
+    public static final long DEFAULT_WARMUP_MILLIS = 1000;
+    public static final long DEFAULT_ITERATION_MILLIS = 1000;
+    public static final int DEFAULT_ITERATIONS = 5;
+
+    /**
+     * Number of operations between checks of the clock.
+     */
+    private static final int BATCH = 64;
+
+    private final Pattern filter;
+    private final long warmupMillis;
+    private final long iterationMillis;
+    private final int iterations;
+
+    private final com.sun.management.ThreadMXBean threads;
+
+    /**
+     * Sink of the results of the operations. Storing a result makes it escape, so it must be computed.
+     */
+    private Object sink;
+
+    /**
+     * Constructs a runner of the benchmarks whose names match the specified pattern.
+     *
+     * @param filter          - regular expression found in the names of the benchmarks to be run, <code>null</code> to
+     *                        run all of them
+     * @param warmupMillis    - duration of the warm-up in milliseconds
+     * @param iterationMillis - duration of each measured iteration in milliseconds
+     * @param iterations      - number of measured iterations
+     */
+    public Benchmark( final String filter, final long warmupMillis, final long iterationMillis, final int iterations )
+    {
+        this.filter = filter == null ? null : Pattern.compile( filter );
+        this.warmupMillis = warmupMillis;
+        this.iterationMillis = iterationMillis;
+        this.iterations = Math.max( 1, iterations );
+
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        threads.setThreadAllocatedMemoryEnabled( true );
+
+        System.out.println( String.format( "%-48s %14s %10s %12s %10s %6s", "Benchmark", "ops/s", "error %",
+                "bytes/op", "MB/s", "GCs" ) );
+    }
+
+    /**
+     * Runs the specified benchmark if its name matches the filter, and prints its results.
+     *
+     * @param name      - name of the benchmark, such as <code>codec.format.v2</code>
+     * @param operation - the benchmarked operation
+     */
+    public void run( final String name, final Operation operation )
+    {
+        if ( filter != null && !filter.matcher( name ).find() )
+        {
+            return;
+        }
+
+        try
+        {
+            iterate( operation, warmupMillis );
+
+            final double [ ] rates = new double [ iterations ];
+            long operations = 0;
+            long nanos = 0;
+
+            final long gcsBefore = collections();
+            final long allocatedBefore = allocated();
+
+            for ( int i = 0; i < iterations; i++ )
+            {
+                final long start = System.nanoTime();
+                final long count = iterate( operation, iterationMillis );
+                final long elapsed = System.nanoTime() - start;
+
+                rates[ i ] = count * 1e9 / elapsed;
+                operations += count;
+                nanos += elapsed;
+            }
+
+            final long allocatedBytes = allocated() - allocatedBefore;
+            final long gcs = collections() - gcsBefore;
+
+            System.out.println( String.format( Locale.ROOT, "%-48s %14.1f %10.1f %12.1f %10.1f %6d", name,
+                    mean( rates ), 100 * error( rates ) / mean( rates ), (double) allocatedBytes / operations,
+                    allocatedBytes * 1e9 / nanos / ( 1024 * 1024 ), gcs ) );
+        }
+        catch ( final Exception e )
+        {
+            System.out.println( String.format( "%-48s failed: %s", name, e ) );
+        }
+    }
+
+    /**
+     * Runs the specified operation in batches for the specified time.
+     *
+     * @param operation - the benchmarked operation
+     * @param millis    - minimum time to run in milliseconds
+     * @return the number of times the operation was run
+     * @throws Exception if the operation fails
+     */
+    private long iterate( final Operation operation, final long millis ) throws Exception
+    {
+        final long deadline = System.nanoTime() + millis * 1_000_000;
+        long count = 0;
+
+        do
+        {
+            for ( int i = 0; i < BATCH; i++ )
+            {
+                sink = operation.run();
+            }
+            count += BATCH;
+        }
+        while ( System.nanoTime() < deadline );
+
+        return count;
+    }
+
+    /**
+     * Returns the number of bytes allocated by the calling thread so far.
+     *
+     * @return the number of allocated bytes
+     */
+    private long allocated()
+    {
+        return threads.getThreadAllocatedBytes( Thread.currentThread().getId() );
+    }
+
+    /**
+     * Returns the number of garbage collections so far.
+     *
+     * @return the total collection count of all collectors
+     */
+    private static long collections()
+    {
+        long count = 0;
+        for ( final GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans() )
+        {
+            count += Math.max( 0, collector.getCollectionCount() );
+        }
+        return count;
+    }
+
+    /**
+     * Returns the mean of the specified values.
+     *
+     * @param values - the measured values
+     * @return the mean
+     */
+    private static double mean( final double [ ] values )
+    {
+        double sum = 0;
+        for ( final double value : values )
+        {
+            sum += value;
+        }
+        return sum / values.length;
+    }
+
+    /**
+     * Returns the half-width of the 99.9% confidence interval of the mean of the specified values, assuming a normal
+     * distribution.
+     *
+     * @param values - the measured values
+     * @return the error of the mean, 0 for a single value
+     */
+    private static double error( final double [ ] values )
+    {
+        if ( values.length < 2 )
+        {
+            return 0;
+        }
+
+        final double mean = mean( values );
+        double squares = 0;
+        for ( final double value : values )
+        {
+            squares += ( value - mean ) * ( value - mean );
+        }
+
+        return 3.29 * Math.sqrt( squares / ( values.length - 1 ) ) / Math.sqrt( values.length );
+    }
+}
@@ -0,0 +1,64 @@
+package main.tools;
+
+import java.util.Arrays;
+
+import main.client.CipherBenchmarks;
+import main.server.RoutingBenchmarks;
+
+/**
+ * Runs the benchmarks of the message codec, the routing lookups of the server and the ciphers of the client.
+ *
+ * @author Lauri Halla-aho
+ */
+public class Benchmarks
+{
+    private static final int [ ] DEFAULT_SIZES = { 10, 1000, 100000 };
+
+    public static void main( final String [ ] args ) throws Exception
+    {
+        String filter = null;
+        long warmupMillis = Benchmark.DEFAULT_WARMUP_MILLIS;
+        long iterationMillis = Benchmark.DEFAULT_ITERATION_MILLIS;
+        int iterations = Benchmark.DEFAULT_ITERATIONS;
+        int [ ] sizes = DEFAULT_SIZES;
+
+        try
+        {
+            for ( int i = 0; i < args.length; i++ )
+            {
+                if ( args[ i ].equals( "-warmup" ) )
+                {
+                    warmupMillis = Long.parseLong( args[ ++i ] );
+                }
+                else if ( args[ i ].equals( "-time" ) )
+                {
+                    iterationMillis = Long.parseLong( args[ ++i ] );
+                }
+                else if ( args[ i ].equals( "-iterations" ) )
+                {
+                    iterations = Integer.parseInt( args[ ++i ] );
+                }
+                else if ( args[ i ].equals( "-sizes" ) )
+                {
+                    sizes = Arrays.stream( args[ ++i ].split( "," ) ).mapToInt( Integer::parseInt ).toArray();
+                }
+                else
+                {
+                    filter = args[ i ];
+                }
+            }
+        }
+        catch ( final NumberFormatException | ArrayIndexOutOfBoundsException e )
+        {
+            System.out.println( "Usage: java main.tools.Benchmarks [filter] [-warmup <ms>] [-time <ms>] "
+                    + "[-iterations <count>] [-sizes <clients,...>]" );
+            return;
+        }
+
+        final Benchmark bench = new Benchmark( filter, warmupMillis, iterationMillis, iterations );
+
+        CodecBenchmarks.run( bench );
+        RoutingBenchmarks.run( bench, sizes );
+        CipherBenchmarks.run( bench );
+    }
+}
@@ -0,0 +1,57 @@
+package main.tools;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import main.common.Message;
+import main.common.MessageView;
+
+/**
+ * Benchmarks of encoding, decoding and re-framing messages.
+ *
+ * @author Lauri Halla-aho
+ */
+public class CodecBenchmarks
+{
+    /**
+     * Runs the codec benchmarks.
+     *
+     * @param bench - the benchmark runner
+     */
+    public static void run( final Benchmark bench )
+    {
+        final byte [ ] chatPayload = new byte [ 64 ];
+        Arrays.fill( chatPayload, (byte) 'x' );
+
+        final Message chat = new Message( Message.MSG_CHAT, chatPayload );
+        final Message command = new Message( Message.MSG_CHAT_CMD, "alice", "join bob" );
+        final Message login = new Message( Message.LOGIN, "alice", Message.CAP_WIRE_V2 | Message.CAP_RELIABLE );
+        final Message large = new Message( Message.MSG_SEALED, new byte [ 3000 ] );
+
+        final byte [ ] chatLegacy = chat.getFormattedMessage();
+        final byte [ ] chatV2 = chat.getFormattedMessage( Message.WIRE_V2 );
+        final byte [ ] commandV2 = command.getFormattedMessage( Message.WIRE_V2 );
+        final byte [ ] loginV2 = login.getFormattedMessage( Message.WIRE_V2 );
+        final ByteBuffer chatV2Buffer = ByteBuffer.wrap( chatV2 );
+        final ByteBuffer commandV2Buffer = ByteBuffer.wrap( commandV2 );
+        final ByteBuffer loginV2Buffer = ByteBuffer.wrap( loginV2 );
+        final MessageView view = new MessageView();
+
+        bench.run( "codec.format.chat.legacy", () -> chat.getFormattedMessage() );
+        bench.run( "codec.format.chat.v2", () -> chat.getFormattedMessage( Message.WIRE_V2 ) );
+        bench.run( "codec.format.command.v2",
+                () -> new Message( Message.MSG_CHAT_CMD, "alice", "join bob" ).getFormattedMessage( Message.WIRE_V2 ) );
+        bench.run( "codec.format.fragments.3000", () -> large.getFormattedFragments( 1 ) );
+
+        bench.run( "codec.parse.chat.legacy", () -> Message.parseFormattedMessage( chatLegacy ) );
+        bench.run( "codec.parse.chat.v2", () -> Message.parseFormattedMessage( chatV2 ) );
+        bench.run( "codec.parse.command.v2", () -> Message.parseFormattedMessage( commandV2 ).getMessage() );
+        bench.run( "codec.parse.login.buffer.v2", () -> Message.parseFormattedMessage( loginV2Buffer ) );
+
+        bench.run( "codec.view.chat.type", () -> view.wrap( chatV2Buffer ).getType() );
+        bench.run( "codec.view.command.message", () -> view.wrap( commandV2Buffer ).getMessage() );
+        bench.run( "codec.view.login.username", () -> view.wrap( loginV2Buffer ).getUsername() );
+
+        bench.run( "codec.reframe.chat.legacy", () -> Message.reframe( chatV2Buffer, Message.WIRE_LEGACY ) );
+    }
+}
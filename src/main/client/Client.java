@@ -7,29 +7,17 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-import java.security.AlgorithmParameters;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
-import java.security.PublicKey;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
-
-import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
-import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.KeyAgreement;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.interfaces.DHPublicKey;
-import javax.crypto.spec.DHParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import main.client.ui.ClientGUI;
 import main.client.ui.ClientLogin;
+import main.common.Datagram;
 import main.common.Message;
+import main.common.Reassembler;
+import main.common.ReliableChannel;
+import main.common.SendQueue;
 
 /**
  * Handles the connectivity and communication between the clients and the server.
@@ -38,27 +26,27 @@ import main.common.Message;
  */
 public class Client implements Runnable, Crypter
 {
-    private static final int DH_KEYSIZE = 2048;
-
     public static final int JOIN_OK = 0;
     public static final int JOIN_ERROR_USER = 1;
     public static final int JOIN_ERROR_HOST = 2;
     public static final int JOIN_ERROR_PORT = 3;
 
     /**
-     * Used key exchange protocol.
+     * Capabilities advertised to the server at login.
      */
-    private static final String KX_PROTOCOL = "DH";
+    public static final int CAPABILITIES = Message.CAP_WIRE_V2 | Message.CAP_SEALED | Message.CAP_RELIABLE
+            | Message.CAP_X25519 | Message.CAP_RATCHET | Message.CAP_RESUME;
 
     /**
-     * Used encryption algorithm.
+     * Interval of the retransmission checks in milliseconds.
      */
-    private static final String KEY_TYPE = "AES";
+    private static final long RETRANSMIT_TICK = 50;
 
     /**
-     * Used cipher parameters: AES encryption, CBC mode, PKCS5 padding.
+     * A login request is repeated until the server replies, at this interval in milliseconds.
      */
-    private static final String CIPHER_TYPE = "AES/CBC/PKCS5Padding";
+    private static final long LOGIN_RETRY_INTERVAL = 1000;
+    private static final int MAX_LOGIN_ATTEMPTS = 5;
 
     private String username;
     private String peername;
@@ -67,12 +55,50 @@ public class Client implements Runnable, Crypter
     private InetAddress ip;
     private int serverPort;
 
-    private final KeyPairGenerator kpairGen;
-    private KeyPair kpair;
-    private final KeyAgreement keyAgree;
-    private SecretKeySpec aesKey;
+    /**
+     * Framing of the sent messages, upgraded once the server has confirmed that it supports the binary framing.
+     */
+    private volatile int wireVersion = Message.WIRE_LEGACY;
+
+    /**
+     * Buffer and packet reused for every received datagram, only accessed by the receiving thread.
+     */
+    private final byte [ ] receiveBuffer = new byte [ Message.MAX_DATAGRAM_LENGTH ];
+    private final DatagramPacket receivePacket = new DatagramPacket( receiveBuffer, receiveBuffer.length );
+    private final Reassembler reassembler = new Reassembler();
+
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+
+    /**
+     * Reliable channel to the server, created once the server has confirmed that it supports one.
+     */
+    private volatile ReliableChannel channel;
+
+    /**
+     * Login request waiting for a reply from the server, <code>null</code> once answered.
+     */
+    private volatile Message pendingLogin;
+    private long loginDeadline;
+    private int loginAttempts;
+
+    private final KeyExchange keyExchange;
+
+    /**
+     * Cipher of the current conversation, replaced after each key exchange.
+     */
+    private volatile SessionCipher cipher = new SessionCipher( null, false );
+
+    /**
+     * Capabilities of the current conversation partner, 0 if it predates them.
+     */
+    private volatile int peerCapabilities = 0;
+
+    /**
+     * Ciphertext of a legacy chat message waiting for its parameters, only accessed by the receiving thread.
+     */
+    private byte [ ] pendingChat;
 
-    private Thread messageSender;
+    private SendQueue sendQueue;
     private Thread messageReceiver;
     private Thread runner;
     private boolean running = false;
@@ -89,8 +115,8 @@ public class Client implements Runnable, Crypter
      */
     public Client() throws NoSuchAlgorithmException
     {
-        kpairGen = KeyPairGenerator.getInstance( KX_PROTOCOL );
-        keyAgree = KeyAgreement.getInstance( KX_PROTOCOL );
+        keyExchange = new KeyExchange( CAPABILITIES, KeyExchange.getSharedPool(),
+                new ResumptionCache( ResumptionCache.DEFAULT_CAPACITY, ResumptionCache.DEFAULT_LIFETIME_MILLIS ) );
 
         showLoginPrompt();
     }
@@ -132,6 +158,9 @@ public class Client implements Runnable, Crypter
             socket = new DatagramSocket();
             ip = InetAddress.getByName( serverIP );
 
+            sendQueue = new SendQueue( SendQueue.DEFAULT_CAPACITY, SendQueue.POLICY_BLOCK );
+            sendQueue.start( socket );
+
             gui = new ClientGUI( this, username, serverIP, this.serverPort );
 
             runner = new Thread( this, "CryptoGram Client" );
@@ -150,27 +179,97 @@ public class Client implements Runnable, Crypter
     }
 
     @Override
-    public void sendMessage( final byte [ ] formattedMessage )
+    public void sendMessage( final Message message )
+    {
+        if ( message.getType() == Message.LOGIN )
+        {
+            synchronized ( this )
+            {
+                pendingLogin = message;
+                loginDeadline = System.currentTimeMillis() + LOGIN_RETRY_INTERVAL;
+                loginAttempts = 1;
+            }
+        }
+
+        if ( wireVersion == Message.WIRE_LEGACY )
+        {
+            sendQueue.offer( new Datagram( message.getFormattedMessage( wireVersion ), ip, serverPort ) );
+            return;
+        }
+
+        /* Keep-alive replies answer a probe that is repeated anyway, so they are not worth retransmitting. */
+        final ReliableChannel reliable = message.getType() == Message.KEEP_ALIVE ? null : channel;
+
+        /* Messages too long for a single datagram are split into fragments reassembled by the peer. */
+        for ( final byte [ ] fragment : message.getFormattedFragments( nextMessageId.getAndIncrement() ) )
+        {
+            if ( reliable != null )
+            {
+                reliable.send( fragment, System.currentTimeMillis() );
+            }
+            else
+            {
+                sendQueue.offer( new Datagram( fragment, ip, serverPort ) );
+            }
+        }
+    }
+
+    /**
+     * Starts a thread that resends unacknowledged frames and unanswered login requests.
+     */
+    private void retransmit()
     {
-        messageSender = new Thread( "Message Sender" )
+        new Thread( "Retransmitter" )
         {
             @Override
             public void run()
             {
-                final DatagramPacket packet = new DatagramPacket( formattedMessage, formattedMessage.length, ip,
-                        serverPort );
-                try
-                {
-                    socket.send( packet );
-                }
-                catch ( final IOException e )
+                while ( running )
                 {
-                    e.printStackTrace();
+                    try
+                    {
+                        Thread.sleep( RETRANSMIT_TICK );
+                    }
+                    catch ( final InterruptedException e )
+                    {
+                        return;
+                    }
+
+                    final long now = System.currentTimeMillis();
+                    final ReliableChannel reliable = channel;
+
+                    if ( reliable != null )
+                    {
+                        reliable.retransmit( now );
+                    }
+
+                    retryLogin( now );
                 }
             }
-        };
+        }.start();
+    }
 
-        messageSender.start();
+    /**
+     * Resends the login request if the server has not replied to it in time.
+     *
+     * @param now - current time in milliseconds
+     */
+    private synchronized void retryLogin( final long now )
+    {
+        if ( pendingLogin == null || now < loginDeadline )
+        {
+            return;
+        }
+
+        if ( loginAttempts >= MAX_LOGIN_ATTEMPTS )
+        {
+            pendingLogin = null;
+            return;
+        }
+
+        loginAttempts++;
+        loginDeadline = now + LOGIN_RETRY_INTERVAL;
+        sendQueue.offer( new Datagram( pendingLogin.getFormattedMessage(), ip, serverPort ) );
     }
 
     /**
@@ -180,24 +279,66 @@ public class Client implements Runnable, Crypter
      */
     private Message receiveMessage()
     {
-        final byte [ ] messageBytes = new byte [ 1024 ];
-        final DatagramPacket packet = new DatagramPacket( messageBytes, messageBytes.length );
-
-        try
+        while ( true )
         {
-            socket.receive( packet );
-        }
-        catch ( final IOException e )
-        {
-            e.printStackTrace();
-        }
+            final ReliableChannel reliable = channel;
 
-        final byte [ ] payload = new byte [ packet.getLength() ];
+            /* Frames that arrived early are handled before receiving more, once the frame before them has been. */
+            final byte [ ] ready = reliable == null ? null : reliable.pollReady();
+            final ByteBuffer frame;
 
-        System.arraycopy( packet.getData(), packet.getOffset(), payload, 0, packet.getLength() );
+            if ( ready != null )
+            {
+                frame = ByteBuffer.wrap( ready );
+            }
+            else
+            {
+                /* The packet shrinks its length to that of each received datagram. */
+                receivePacket.setLength( receiveBuffer.length );
 
-        final Message message = Message.parseFormattedMessage( payload );
-        return message;
+                try
+                {
+                    socket.receive( receivePacket );
+                }
+                catch ( final IOException e )
+                {
+                    e.printStackTrace();
+                }
+
+                frame = ByteBuffer.wrap( receivePacket.getData(), receivePacket.getOffset(),
+                        receivePacket.getLength() );
+
+                if ( Message.peekType( frame ) == Message.ACK )
+                {
+                    if ( reliable != null )
+                    {
+                        reliable.onAck( frame, System.currentTimeMillis() );
+                    }
+                    continue;
+                }
+
+                /* Numbered frames are handled only in order, and only once the channel exists to acknowledge them. */
+                if ( ( Message.peekFlags( frame ) & Message.FLAG_RELIABLE ) != 0
+                        && ( reliable == null || !reliable.receive( frame ) ) )
+                {
+                    continue;
+                }
+            }
+
+            if ( ( Message.peekFlags( frame ) & Message.FLAG_FRAGMENT ) == 0 )
+            {
+                return Message.parseFormattedMessage( frame );
+            }
+
+            /* Keep receiving until the fragment completing a message arrives. */
+            final Message message = reassembler.accept( receivePacket.getSocketAddress(), frame,
+                    System.currentTimeMillis() );
+
+            if ( message != null )
+            {
+                return message;
+            }
+        }
     }
 
     /**
@@ -217,6 +358,21 @@ public class Client implements Runnable, Crypter
                     /* Response from the server with the given username or its variant if it was already taken. */
                     if ( message.getType() == Message.LOGIN && message.getUsername() != null )
                     {
+                        pendingLogin = null;
+
+                        if ( ( message.getCapabilities() & Message.CAP_WIRE_V2 ) != 0 )
+                        {
+                            wireVersion = Message.WIRE_V2;
+                        }
+
+                        /* A repeated reply to a resent login request must not reset an existing channel. */
+                        if ( ( message.getCapabilities() & Message.CAP_RELIABLE ) != 0 && wireVersion == Message.WIRE_V2
+                                && channel == null )
+                        {
+                            channel = new ReliableChannel(
+                                    frame -> sendQueue.offer( new Datagram( frame, ip, serverPort ) ) );
+                        }
+
                         if ( message.getUsername().equals( username ) )
                         {
                             gui.log( "Successfully connected to the lobby!" );
@@ -239,7 +395,7 @@ public class Client implements Runnable, Crypter
                     /* A keep-alive message from the server to determine whether this client has disconnected. */
                     else if ( message.getType() == Message.KEEP_ALIVE )
                     {
-                        sendMessage( message.getFormattedMessage() );
+                        sendMessage( message );
                     }
                     /* A general response from the server that is displayed in the chat history. */
                     else if ( message.getType() == Message.MSG_CHAT_CMD )
@@ -251,12 +407,14 @@ public class Client implements Runnable, Crypter
                     {
                         gui.log( message.getMessage() );
                         peername = null;
+                        endConversation();
                     }
                     /* A notification from the server about another client having started a chat with this client. */
                     else if ( message.getType() == Message.NEW_PEER )
                     {
                         gui.log( message.getMessage() );
                         peername = message.getUsername();
+                        endConversation();
                     }
                     /*
                      * A confirmation from the server that the selected other client is available for chat. Continue by
@@ -265,8 +423,11 @@ public class Client implements Runnable, Crypter
                     else if ( message.getType() == Message.PEER_AVAILABLE )
                     {
                         gui.log( "Peer available" );
-                        final byte [ ] secret = generateSecret();
-                        sendMessage( new Message( Message.DHKX_REQ, secret ).getFormattedMessage() );
+                        endConversation();
+                        peerCapabilities = message.getCapabilities();
+
+                        sendMessage( new Message( Message.DHKX_REQ, keyExchange.initiate( peerCapabilities,
+                                peername ) ) );
                         gui.log( "Secret sent." );
                     }
                     /**
@@ -276,10 +437,12 @@ public class Client implements Runnable, Crypter
                     else if ( message.getType() == Message.DHKX_REQ )
                     {
                         gui.log( "Secret received." );
-                        final byte [ ] secret = generateSecret( message.getPayload() );
-                        sendMessage( new Message( Message.DHKX_RES, secret ).getFormattedMessage() );
+                        final byte [ ] secret = keyExchange.respond( message.getPayload(), peername );
+                        peerCapabilities = keyExchange.getPeerCapabilities();
+                        cipher = keyExchange.createCipher();
+                        sendMessage( new Message( Message.DHKX_RES, secret ) );
                         gui.log( "Secret sent." );
-                        gui.log( "Encryption keys generated." );
+                        gui.log( keyExchange.isResumed() ? "Encryption keys resumed." : "Encryption keys generated." );
                     }
                     /**
                      * A secret from the new conversation partner, sent in response to the initial DHKX_REQ message.
@@ -288,8 +451,10 @@ public class Client implements Runnable, Crypter
                     else if ( message.getType() == Message.DHKX_RES )
                     {
                         gui.log( "Secret received." );
-                        receiveSecret( message.getPayload() );
-                        gui.log( "Encryption keys generated." );
+                        keyExchange.complete( message.getPayload() );
+                        peerCapabilities = keyExchange.getPeerCapabilities();
+                        cipher = keyExchange.createCipher();
+                        gui.log( keyExchange.isResumed() ? "Encryption keys resumed." : "Encryption keys generated." );
                     }
                     /**
                      * A notification from the server informing that the selected client is in another conversation.
@@ -300,18 +465,39 @@ public class Client implements Runnable, Crypter
                         peername = null;
                     }
                     /**
-                     * An encrypted chat message received from the conversation partner. Followed by the cipher
-                     * parameters used to initialise the decryption cipher.
+                     * An encrypted and authenticated chat message received from the conversation partner, carrying
+                     * its own nonce.
                      */
-                    else if ( message.getType() == Message.MSG_CHAT )
+                    else if ( message.getType() == Message.MSG_SEALED )
                     {
-                        final Message params = receiveMessage();
+                        final byte [ ] plainText = cipher.open( message.getPayload() );
 
-                        if ( params.getType() == Message.MSG_PARAMS )
+                        if ( plainText != null )
                         {
-                            final byte [ ] plainText = decrypt( message.getPayload(), params.getPayload() );
                             gui.log( peername + ": " + new String( plainText ) );
                         }
+                        else
+                        {
+                            gui.log( "Discarded a message from " + peername + " that could not be authenticated." );
+                        }
+                    }
+                    /**
+                     * An encrypted chat message received from a conversation partner without sealed messages. Kept
+                     * until the cipher parameters used to initialise the decryption cipher arrive.
+                     */
+                    else if ( message.getType() == Message.MSG_CHAT )
+                    {
+                        pendingChat = message.getPayload();
+                    }
+                    /**
+                     * The cipher parameters of the preceding chat message.
+                     */
+                    else if ( message.getType() == Message.MSG_PARAMS && pendingChat != null )
+                    {
+                        final byte [ ] plainText = cipher.decrypt( pendingChat, message.getPayload() );
+                        pendingChat = null;
+
+                        gui.log( peername + ": " + new String( plainText ) );
                     }
                 }
             }
@@ -330,6 +516,9 @@ public class Client implements Runnable, Crypter
             {
                 running = false;
 
+                /* Let the queued messages, such as the logout notification, be sent before closing the socket. */
+                sendQueue.close();
+
                 synchronized ( socket )
                 {
                     socket.close();
@@ -339,129 +528,41 @@ public class Client implements Runnable, Crypter
     }
 
     /**
-     * Generates a local secret for the initiating party.
-     *
-     * @return the initiating party's encoded public key
+     * Forgets the state of the previous conversation.
      */
-    private byte [ ] generateSecret()
+    private void endConversation()
     {
-        try
-        {
-            kpairGen.initialize( DH_KEYSIZE );
-            kpair = kpairGen.generateKeyPair();
-            keyAgree.init( kpair.getPrivate() );
-
-            return kpair.getPublic().getEncoded();
-        }
-        catch ( final InvalidKeyException e )
-        {
-            e.printStackTrace();
-            return new byte [ 0 ];
-        }
+        keyExchange.reset();
+        peerCapabilities = 0;
+        pendingChat = null;
     }
 
-    /**
-     * Derives the AES key from the secret received from the new peer.
-     *
-     * @param peerSecret - secret received from the new peer
-     */
-    public void receiveSecret( final byte [ ] peerSecret )
+    @Override
+    public void sendChatMessage( final byte [ ] plainText )
     {
-        try
+        if ( ( CAPABILITIES & peerCapabilities & Message.CAP_SEALED ) != 0 )
         {
-            final KeyFactory keyFac = KeyFactory.getInstance( KX_PROTOCOL );
-            final X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec( peerSecret );
-
-            final PublicKey peerPubKey = keyFac.generatePublic( x509KeySpec );
-
-            keyAgree.doPhase( peerPubKey, true );
-
-            final byte [ ] sharedSecret = keyAgree.generateSecret();
-
-            aesKey = new SecretKeySpec( sharedSecret, 0, 16, KEY_TYPE );
+            sendMessage( new Message( Message.MSG_SEALED, cipher.seal( plainText ) ) );
         }
-        catch ( final NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException
-                | IllegalStateException e )
+        else
         {
-            e.printStackTrace();
-        }
-    }
+            final byte [ ] [ ] cipherParams = encrypt( plainText );
 
-    /**
-     * Generates and returns a local secret and uses the secret of the initiating party to derive the AES key.
-     *
-     * @param peerSecret - secret received from the new peer
-     * @return encoded public key
-     */
-    public byte [ ] generateSecret( final byte [ ] peerSecret )
-    {
-        try
-        {
-            final KeyFactory keyFac = KeyFactory.getInstance( KX_PROTOCOL );
-            final X509EncodedKeySpec x509KeySpec = new X509EncodedKeySpec( peerSecret );
-            final PublicKey peerPubKey = keyFac.generatePublic( x509KeySpec );
-            final DHParameterSpec dhParams = ( (DHPublicKey) peerPubKey ).getParams();
-
-            kpairGen.initialize( dhParams );
-            kpair = kpairGen.generateKeyPair();
-            keyAgree.init( kpair.getPrivate() );
-            keyAgree.doPhase( peerPubKey, true );
-
-            final byte [ ] sharedSecret = keyAgree.generateSecret();
-
-            aesKey = new SecretKeySpec( sharedSecret, 0, 16, KEY_TYPE );
-
-            return kpair.getPublic().getEncoded();
-        }
-        catch ( final NoSuchAlgorithmException | InvalidKeySpecException | InvalidAlgorithmParameterException
-                | InvalidKeyException e )
-        {
-            e.printStackTrace();
-            return new byte [ 0 ];
+            sendMessage( new Message( Message.MSG_CHAT, cipherParams[ 0 ] ) );
+            sendMessage( new Message( Message.MSG_PARAMS, cipherParams[ 1 ] ) );
         }
     }
 
     @Override
     public byte [ ] [ ] encrypt( final byte [ ] plainText )
     {
-        try
-        {
-            final Cipher encipher = Cipher.getInstance( CIPHER_TYPE );
-            encipher.init( Cipher.ENCRYPT_MODE, aesKey );
-
-            final byte [ ] cipherText = encipher.doFinal( plainText );
-            final byte [ ] params = encipher.getParameters().getEncoded();
-
-            return new byte [ ] [ ] { cipherText, params };
-        }
-        catch ( NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException
-                | BadPaddingException | IOException e )
-        {
-            e.printStackTrace();
-            return new byte [ 0 ] [ 0 ];
-        }
+        return cipher.encrypt( plainText );
     }
 
     @Override
     public byte [ ] decrypt( final byte [ ] cipherText, final byte [ ] params )
     {
-        try
-        {
-            final AlgorithmParameters aesParams = AlgorithmParameters.getInstance( KEY_TYPE );
-            aesParams.init( params );
-
-            final Cipher decipher = Cipher.getInstance( CIPHER_TYPE );
-            decipher.init( Cipher.DECRYPT_MODE, aesKey, aesParams );
-
-            return decipher.doFinal( cipherText );
-        }
-        catch ( NoSuchAlgorithmException | IOException | NoSuchPaddingException | InvalidKeyException
-                | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e )
-        {
-            e.printStackTrace();
-            return new byte [ 0 ];
-        }
-
+        return cipher.decrypt( cipherText, params );
     }
 
     @Override
@@ -469,6 +570,7 @@ public class Client implements Runnable, Crypter
     {
         running = true;
         listen();
+        retransmit();
     }
 
     /**
@@ -27,11 +27,19 @@ public interface Crypter
     byte [ ] decrypt( final byte [ ] cipherText, final byte [ ] params );
 
     /**
-     * Sends the specified formatted {@link Message} to the server.
+     * Encrypts the specified chat message and sends it to the conversation partner, sealed in a single frame if the
+     * partner supports it.
      *
-     * @param formattedMessage - a formatted message received
+     * @param plainText - the chat message to be sent
      */
-    void sendMessage( final byte [ ] formattedMessage );
+    void sendChatMessage( final byte [ ] plainText );
+
+    /**
+     * Sends the specified {@link Message} to the server in the framing negotiated at login.
+     *
+     * @param message - a message to be sent
+     */
+    void sendMessage( final Message message );
 
     /**
      * Closes the client's socket and ends its running processes.
@@ -0,0 +1,88 @@
+package main.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The HMAC-based key derivation function of RFC 5869 with SHA-256.
+ *
+ * @author Lauri Halla-aho
+ */
+final class Hkdf
+{
+    private static final String MAC_TYPE = "HmacSHA256";
+
+    static final int HASH_LENGTH = 32;
+
+    private Hkdf()
+    {
+    }
+
+    /**
+     * Extracts a pseudorandom key from the specified input keying material.
+     *
+     * @param salt - optional salt, <code>null</code> for a string of zeros
+     * @param ikm  - input keying material, such as a Diffie-Hellman shared secret
+     * @return the pseudorandom key
+     */
+    static byte [ ] extract( final byte [ ] salt, final byte [ ] ikm )
+    {
+        return mac( salt == null ? new byte [ HASH_LENGTH ] : salt ).doFinal( ikm );
+    }
+
+    /**
+     * Expands the specified pseudorandom key into output keying material bound to the specified context.
+     *
+     * @param prk    - a pseudorandom key of at least {@link #HASH_LENGTH} bytes
+     * @param info   - context of the derived key, keeping keys derived for different purposes apart
+     * @param length - length of the output keying material, at most 255 times {@link #HASH_LENGTH}
+     * @return the output keying material
+     */
+    static byte [ ] expand( final byte [ ] prk, final String info, final int length )
+    {
+        final Mac mac = mac( prk );
+        final byte [ ] context = info.getBytes( StandardCharsets.UTF_8 );
+        final byte [ ] okm = new byte [ length ];
+
+        byte [ ] block = new byte [ 0 ];
+
+        for ( int offset = 0, counter = 1; offset < length; counter++ )
+        {
+            mac.update( block );
+            mac.update( context );
+            mac.update( (byte) counter );
+            block = mac.doFinal();
+
+            final int count = Math.min( block.length, length - offset );
+            System.arraycopy( block, 0, okm, offset, count );
+            offset += count;
+        }
+
+        return okm;
+    }
+
+    /**
+     * Returns an HMAC-SHA256 initialised with the specified key.
+     *
+     * @param key - the key of the MAC
+     * @return the initialised MAC
+     */
+    private static Mac mac( final byte [ ] key )
+    {
+        try
+        {
+            final Mac mac = Mac.getInstance( MAC_TYPE );
+            mac.init( new SecretKeySpec( key, MAC_TYPE ) );
+            return mac;
+        }
+        catch ( final NoSuchAlgorithmException | InvalidKeyException e )
+        {
+            /* HMAC-SHA256 is required of every Java platform and accepts keys of any non-zero length. */
+            throw new IllegalStateException( e );
+        }
+    }
+}
@@ -0,0 +1,698 @@
+package main.client;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.KeyAgreement;
+import javax.crypto.interfaces.DHPublicKey;
+import javax.crypto.spec.DHParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import main.common.Message;
+
+/**
+ * The key exchange between two conversation partners, deriving the AES key of their conversation. The exchanged
+ * payloads also advertise the capabilities of each partner to a peer known to understand them. Not thread-safe, meant
+ * to be driven by the receiving thread of a client.
+ * <p>
+ * If both partners have the {@link Message#CAP_X25519} capability, the exchange uses the X25519 key agreement, whose
+ * public values are only 32 bytes long. Otherwise it falls back to the classic Diffie-Hellman exchange, started in the
+ * fixed 2048-bit MODP group 14 of RFC 3526 with key pairs taken from a pool filled in the background. A classic
+ * exchange started by a peer in another group is answered with a key pair generated on the spot.
+ * <p>
+ * If both partners have the {@link Message#CAP_RESUME} capability, each exchange also leaves a resumption secret in a
+ * {@link ResumptionCache} on both sides. Joining the same peer again then sends fresh random values with the identifier
+ * of the secret, and the keys of the new conversation are derived from the secret and the random values. The usual
+ * public key is sent along as well, so a peer that no longer remembers the secret answers with a full exchange in the
+ * same round trip.
+ *
+ * @author Lauri Halla-aho
+ */
+public class KeyExchange
+{
+    /**
+     * Used key exchange protocol.
+     */
+    private static final String KX_PROTOCOL = "DH";
+
+    /**
+     * Key exchange protocol used if both partners support it.
+     */
+    private static final String X25519_PROTOCOL = "X25519";
+
+    private static final int X25519_KEY_LENGTH = 32;
+
+    /**
+     * The 2048-bit MODP group 14 of RFC 3526 with 224-bit private values, matching its 112-bit security strength.
+     */
+    static final DHParameterSpec GROUP_14 = new DHParameterSpec( new BigInteger(
+            "FFFFFFFFFFFFFFFFC90FDAA22168C234C4C6628B80DC1CD129024E088A67CC74020BBEA63B139B22514A08798E3404DD"
+                    + "EF9519B3CD3A431B302B0A6DF25F14374FE1356D6D51C245E485B576625E7EC6F44C42E9A637ED6B0BFF5CB6F406B7ED"
+                    + "EE386BFB5A899FA5AE9F24117C4B1FE649286651ECE45B3DC2007CB8A163BF0598DA48361C55D39A69163FA8FD24CF5F"
+                    + "83655D23DCA3AD961C62F356208552BB9ED529077096966D670C354E4ABC9804F1746C08CA18217C32905E462E36CE3B"
+                    + "E39E772C180E86039B2783A2EC07A28FB5C55DF06F4C52C9DE2BCBF6955817183995497CEA956AE515D2261898FA0510"
+                    + "15728E5A8AACAA68FFFFFFFFFFFFFFFF", 16 ), BigInteger.valueOf( 2 ), 224 );
+
+    /**
+     * Pool of group 14 key pairs shared by the key exchanges that are not given one, created on first use.
+     */
+    private static KeyPairPool sharedPool;
+
+    /**
+     * Used encryption algorithm.
+     */
+    private static final String KEY_TYPE = "AES";
+
+    /**
+     * First byte of a key exchange payload carrying the capabilities of its sender before the encoded public key. An
+     * encoded public key always starts with the ASN.1 sequence tag 0x30, so a plain payload is never mistaken for it.
+     */
+    private static final byte DHKX_EXTENDED = 0x01;
+
+    /**
+     * First byte of an X25519 key exchange payload, followed by the capabilities of its sender and the 32-byte public
+     * value in little-endian order. Only sent to a peer that advertised {@link Message#CAP_X25519}.
+     */
+    private static final byte DHKX_X25519 = 0x02;
+
+    /**
+     * First byte of a payload resuming an earlier conversation. A request is followed by the capabilities of its
+     * sender, the identifier of the resumption secret, a random value and the payload of a full exchange. An answer
+     * taking up the resumption is followed by the capabilities of its sender and a random value.
+     */
+    private static final byte DHKX_RESUME = 0x03;
+
+    private static final int RESUMPTION_ID_LENGTH = 16;
+    private static final int RESUMPTION_NONCE_LENGTH = 32;
+
+    private final int capabilities;
+
+    private final KeyPairPool pool;
+
+    /**
+     * Resumption secrets of recent peers, <code>null</code> if conversations are not resumed.
+     */
+    private final ResumptionCache resumptions;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Generates key pairs for peers starting an exchange in a group other than the one of the pool.
+     */
+    private final KeyPairGenerator kpairGen;
+    private final KeyAgreement dhAgree;
+
+    /* Null if X25519 is not available, in which case it is not advertised either. */
+    private final KeyPairGenerator x25519Gen;
+    private final KeyAgreement x25519Agree;
+
+    private KeyPair kpair;
+
+    /**
+     * The key agreement of the exchange in progress.
+     */
+    private KeyAgreement keyAgree;
+    private SecretKeySpec aesKey;
+
+    /**
+     * The shared secret of the latest exchange, from which a ratcheting cipher derives its keys.
+     */
+    private byte [ ] sharedSecret;
+
+    /**
+     * <code>true</code> if the latest exchange was started by this side.
+     */
+    private boolean initiator = false;
+
+    /**
+     * Capabilities of the current conversation partner, 0 if it predates them.
+     */
+    private int peerCapabilities = 0;
+
+    /**
+     * Username of the current conversation partner, <code>null</code> if it is not to be resumed later.
+     */
+    private String peer;
+
+    /**
+     * Identifier and secret of the resumption offered by this side, and the random value sent with it.
+     */
+    private byte [ ] [ ] offeredResumption;
+    private final byte [ ] resumptionNonce = new byte [ RESUMPTION_NONCE_LENGTH ];
+
+    /**
+     * <code>true</code> if the latest exchange resumed an earlier conversation.
+     */
+    private boolean resumed = false;
+
+    /**
+     * Constructs a key exchange advertising the specified capabilities, taking its key pairs from the shared pool.
+     *
+     * @param capabilities - capabilities of this client, such as {@link Message#CAP_SEALED}
+     * @throws NoSuchAlgorithmException if selected key exchange protocol does not exist
+     */
+    public KeyExchange( final int capabilities ) throws NoSuchAlgorithmException
+    {
+        this( capabilities, getSharedPool() );
+    }
+
+    /**
+     * Constructs a key exchange advertising the specified capabilities, taking its key pairs from the specified pool.
+     *
+     * @param capabilities - capabilities of this client, such as {@link Message#CAP_SEALED}
+     * @param pool         - pool of key pairs in the group classic exchanges are started in
+     * @throws NoSuchAlgorithmException if selected key exchange protocol does not exist
+     */
+    public KeyExchange( final int capabilities, final KeyPairPool pool ) throws NoSuchAlgorithmException
+    {
+        this( capabilities, pool, null );
+    }
+
+    /**
+     * Constructs a key exchange advertising the specified capabilities, resuming conversations with the peers
+     * remembered by the specified cache.
+     *
+     * @param capabilities - capabilities of this client, such as {@link Message#CAP_SEALED}
+     * @param pool         - pool of key pairs in the group classic exchanges are started in
+     * @param resumptions  - cache of resumption secrets, <code>null</code> not to resume conversations
+     * @throws NoSuchAlgorithmException if selected key exchange protocol does not exist
+     */
+    public KeyExchange( final int capabilities, final KeyPairPool pool, final ResumptionCache resumptions )
+            throws NoSuchAlgorithmException
+    {
+        this.pool = pool;
+        this.resumptions = resumptions;
+        kpairGen = KeyPairGenerator.getInstance( KX_PROTOCOL );
+        dhAgree = KeyAgreement.getInstance( KX_PROTOCOL );
+
+        KeyPairGenerator generator = null;
+        KeyAgreement agreement = null;
+
+        if ( ( capabilities & Message.CAP_X25519 ) != 0 )
+        {
+            try
+            {
+                generator = KeyPairGenerator.getInstance( X25519_PROTOCOL );
+                agreement = KeyAgreement.getInstance( X25519_PROTOCOL );
+            }
+            catch ( final NoSuchAlgorithmException e )
+            {
+                generator = null;
+                agreement = null;
+            }
+        }
+
+        x25519Gen = generator;
+        x25519Agree = agreement;
+
+        int available = x25519Gen == null ? capabilities & ~Message.CAP_X25519 : capabilities;
+
+        if ( resumptions == null )
+        {
+            available &= ~Message.CAP_RESUME;
+        }
+        this.capabilities = available;
+    }
+
+    /**
+     * Returns the pool of group 14 key pairs shared by the key exchanges that are not given one, starting it on first
+     * use so that key pairs are being generated by the time the first conversation is set up.
+     *
+     * @return the shared pool
+     * @throws NoSuchAlgorithmException if selected key exchange protocol does not exist
+     */
+    public static synchronized KeyPairPool getSharedPool() throws NoSuchAlgorithmException
+    {
+        if ( sharedPool == null )
+        {
+            sharedPool = new KeyPairPool( GROUP_14, KeyPairPool.DEFAULT_CAPACITY );
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Returns the capabilities advertised by this key exchange.
+     *
+     * @return the capabilities given at construction, without {@link Message#CAP_X25519} if it is not available
+     */
+    public int getCapabilities()
+    {
+        return capabilities;
+    }
+
+    /**
+     * Starts an exchange with a new peer, using X25519 if the peer supports it and a pregenerated classic
+     * Diffie-Hellman secret otherwise.
+     *
+     * @param peerCapabilities - capabilities of the peer announced by the server, 0 if none were announced
+     * @return the key exchange payload to be sent in a DHKX_REQ message
+     */
+    public byte [ ] initiate( final int peerCapabilities )
+    {
+        return initiate( peerCapabilities, null );
+    }
+
+    /**
+     * Starts an exchange with the specified peer, offering to resume an earlier conversation with it if this side
+     * still remembers one. The payload of a full exchange is sent along in case the peer does not remember it.
+     *
+     * @param peerCapabilities - capabilities of the peer announced by the server, 0 if none were announced
+     * @param peer             - username of the peer, <code>null</code> not to resume the conversation later
+     * @return the key exchange payload to be sent in a DHKX_REQ message
+     */
+    public byte [ ] initiate( final int peerCapabilities, final String peer )
+    {
+        this.peerCapabilities = peerCapabilities;
+        this.peer = peer;
+        initiator = true;
+        resumed = false;
+        forgetOffer();
+
+        try
+        {
+            if ( ( capabilities & peerCapabilities & Message.CAP_X25519 ) != 0 )
+            {
+                kpair = x25519Gen.generateKeyPair();
+                keyAgree = x25519Agree;
+            }
+            else
+            {
+                kpair = pool.take();
+                keyAgree = dhAgree;
+            }
+            keyAgree.init( kpair.getPrivate() );
+
+            final byte [ ] payload = encode( kpair.getPublic() );
+
+            if ( peer == null || ( capabilities & peerCapabilities & Message.CAP_RESUME ) == 0 )
+            {
+                return payload;
+            }
+
+            offeredResumption = resumptions.take( peer );
+
+            if ( offeredResumption == null )
+            {
+                return payload;
+            }
+
+            random.nextBytes( resumptionNonce );
+
+            return ByteBuffer.allocate( 5 + RESUMPTION_ID_LENGTH + RESUMPTION_NONCE_LENGTH + payload.length )
+                    .put( DHKX_RESUME ).putInt( capabilities ).put( offeredResumption[ 0 ] ).put( resumptionNonce )
+                    .put( payload ).array();
+        }
+        catch ( final InvalidKeyException e )
+        {
+            e.printStackTrace();
+            return new byte [ 0 ];
+        }
+    }
+
+    /**
+     * Answers an exchange started by a new peer with the key agreement it chose, using a local secret in the peer's
+     * group and deriving the AES key. A classic secret is pregenerated if the peer uses the group of the pool.
+     *
+     * @param payload - the key exchange payload of a received DHKX_REQ message
+     * @return the key exchange payload to be sent in a DHKX_RES message
+     */
+    public byte [ ] respond( final byte [ ] payload )
+    {
+        return respond( payload, null );
+    }
+
+    /**
+     * Answers an exchange started by the specified peer. An offer to resume an earlier conversation is taken up if this
+     * side remembers the same conversation, and answered with a full exchange otherwise.
+     *
+     * @param payload - the key exchange payload of a received DHKX_REQ message
+     * @param peer    - username of the peer, <code>null</code> not to resume the conversation later
+     * @return the key exchange payload to be sent in a DHKX_RES message
+     */
+    public byte [ ] respond( final byte [ ] payload, final String peer )
+    {
+        this.peer = peer;
+        initiator = false;
+        resumed = false;
+        forgetOffer();
+
+        byte [ ] offer = payload;
+
+        if ( payload.length > 5 + RESUMPTION_ID_LENGTH + RESUMPTION_NONCE_LENGTH && payload[ 0 ] == DHKX_RESUME )
+        {
+            final ByteBuffer buffer = ByteBuffer.wrap( payload );
+            buffer.get();
+
+            final int offerCapabilities = buffer.getInt();
+            final byte [ ] id = new byte [ RESUMPTION_ID_LENGTH ];
+            final byte [ ] initiatorNonce = new byte [ RESUMPTION_NONCE_LENGTH ];
+            buffer.get( id ).get( initiatorNonce );
+
+            offer = new byte [ buffer.remaining() ];
+            buffer.get( offer );
+
+            final byte [ ] [ ] remembered = peer == null || resumptions == null ? null : resumptions.take( peer );
+
+            if ( remembered != null && MessageDigest.isEqual( remembered[ 0 ], id ) )
+            {
+                peerCapabilities = offerCapabilities;
+                random.nextBytes( resumptionNonce );
+                resume( remembered[ 1 ], initiatorNonce, resumptionNonce );
+
+                return ByteBuffer.allocate( 5 + RESUMPTION_NONCE_LENGTH ).put( DHKX_RESUME ).putInt( capabilities )
+                        .put( resumptionNonce ).array();
+            }
+        }
+
+        try
+        {
+            final PublicKey peerPubKey = decode( offer );
+
+            if ( peerPubKey instanceof XECPublicKey )
+            {
+                kpair = x25519Gen.generateKeyPair();
+                keyAgree = x25519Agree;
+            }
+            else
+            {
+                final DHParameterSpec dhParams = ( (DHPublicKey) peerPubKey ).getParams();
+
+                if ( sameGroup( dhParams, pool.getParams() ) )
+                {
+                    kpair = pool.take();
+                }
+                else
+                {
+                    kpairGen.initialize( dhParams );
+                    kpair = kpairGen.generateKeyPair();
+                }
+                keyAgree = dhAgree;
+            }
+            keyAgree.init( kpair.getPrivate() );
+            keyAgree.doPhase( peerPubKey, true );
+
+            sharedSecret = keyAgree.generateSecret();
+            aesKey = deriveKey( sharedSecret );
+            remember();
+
+            return encode( kpair.getPublic() );
+        }
+        catch ( final NoSuchAlgorithmException | InvalidKeySpecException | InvalidAlgorithmParameterException
+                | InvalidKeyException e )
+        {
+            e.printStackTrace();
+            return new byte [ 0 ];
+        }
+    }
+
+    /**
+     * Completes an exchange started by {@link #initiate(int)}, deriving the AES key from the peer's answer.
+     *
+     * @param payload - the key exchange payload of a received DHKX_RES message
+     */
+    public void complete( final byte [ ] payload )
+    {
+        /* The peer took up the offered resumption. */
+        if ( offeredResumption != null && payload.length == 5 + RESUMPTION_NONCE_LENGTH
+                && payload[ 0 ] == DHKX_RESUME )
+        {
+            final ByteBuffer buffer = ByteBuffer.wrap( payload );
+            buffer.get();
+            peerCapabilities = buffer.getInt();
+
+            final byte [ ] responderNonce = new byte [ RESUMPTION_NONCE_LENGTH ];
+            buffer.get( responderNonce );
+
+            resume( offeredResumption[ 1 ], resumptionNonce, responderNonce );
+            forgetOffer();
+            return;
+        }
+        forgetOffer();
+
+        /* No exchange was started. */
+        if ( keyAgree == null )
+        {
+            return;
+        }
+
+        try
+        {
+            keyAgree.doPhase( decode( payload ), true );
+
+            sharedSecret = keyAgree.generateSecret();
+            aesKey = deriveKey( sharedSecret );
+            remember();
+        }
+        catch ( final NoSuchAlgorithmException | InvalidKeySpecException | InvalidKeyException
+                | IllegalStateException e )
+        {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the AES key derived by the latest exchange.
+     *
+     * @return the key of the conversation, <code>null</code> if no exchange has completed
+     */
+    public SecretKeySpec getKey()
+    {
+        return aesKey;
+    }
+
+    /**
+     * Creates the cipher of the conversation keyed by the latest exchange. The keys of sealed messages are ratcheted
+     * forward if both partners support {@link Message#CAP_RATCHET}.
+     *
+     * @return a new cipher for the conversation
+     */
+    public SessionCipher createCipher()
+    {
+        if ( sharedSecret != null && ( capabilities & peerCapabilities & Message.CAP_RATCHET ) != 0 )
+        {
+            return new SessionCipher( aesKey, sharedSecret, initiator, SessionCipher.DEFAULT_RATCHET_MESSAGES,
+                    SessionCipher.DEFAULT_RATCHET_MILLIS );
+        }
+        return new SessionCipher( aesKey, initiator );
+    }
+
+    /**
+     * Returns <code>true</code> if the latest exchange was started by this side, which tells the partners apart when
+     * they use the derived key.
+     *
+     * @return <code>true</code> after {@link #initiate(int)}, <code>false</code> after {@link #respond(byte[])}
+     */
+    public boolean isInitiator()
+    {
+        return initiator;
+    }
+
+    /**
+     * Returns <code>true</code> if the latest exchange resumed an earlier conversation instead of a full exchange.
+     *
+     * @return <code>true</code> if the key was derived from a remembered resumption secret
+     */
+    public boolean isResumed()
+    {
+        return resumed;
+    }
+
+    /**
+     * Returns the capabilities of the current conversation partner.
+     *
+     * @return capability bits advertised by the peer, 0 if it predates them
+     */
+    public int getPeerCapabilities()
+    {
+        return peerCapabilities;
+    }
+
+    /**
+     * Forgets the capabilities of the previous conversation partner.
+     */
+    public void reset()
+    {
+        peerCapabilities = 0;
+        peer = null;
+        forgetOffer();
+    }
+
+    /**
+     * Derives the keys of a resumed conversation from the resumption secret and the random values of both partners,
+     * and remembers the resumption secret of the new conversation in place of the used one.
+     *
+     * @param secret         - the resumption secret of the earlier conversation
+     * @param initiatorNonce - random value sent by the partner that started the exchange
+     * @param responderNonce - random value sent by the partner that answered
+     */
+    private void resume( final byte [ ] secret, final byte [ ] initiatorNonce, final byte [ ] responderNonce )
+    {
+        final byte [ ] salt = ByteBuffer.allocate( 2 * RESUMPTION_NONCE_LENGTH ).put( initiatorNonce )
+                .put( responderNonce ).array();
+        final byte [ ] prk = Hkdf.extract( salt, secret );
+
+        sharedSecret = Hkdf.expand( prk, "CryptoGram resumed secret", Hkdf.HASH_LENGTH );
+        aesKey = new SecretKeySpec( Hkdf.expand( prk, "CryptoGram resumed key", 16 ), KEY_TYPE );
+        resumed = true;
+
+        Arrays.fill( prk, (byte) 0 );
+        Arrays.fill( secret, (byte) 0 );
+        remember();
+    }
+
+    /**
+     * Remembers a resumption secret derived from the shared secret of the latest exchange, if the peer supports
+     * resuming the conversation later.
+     */
+    private void remember()
+    {
+        if ( peer == null || ( capabilities & peerCapabilities & Message.CAP_RESUME ) == 0 )
+        {
+            return;
+        }
+
+        final byte [ ] prk = Hkdf.extract( null, sharedSecret );
+        final byte [ ] secret = Hkdf.expand( prk, "CryptoGram resumption secret", Hkdf.HASH_LENGTH );
+
+        resumptions.put( peer, Hkdf.expand( prk, "CryptoGram resumption id", RESUMPTION_ID_LENGTH ), secret );
+
+        Arrays.fill( prk, (byte) 0 );
+        Arrays.fill( secret, (byte) 0 );
+    }
+
+    /**
+     * Forgets the resumption offered by this side, which can only be taken up once.
+     */
+    private void forgetOffer()
+    {
+        if ( offeredResumption != null )
+        {
+            Arrays.fill( offeredResumption[ 1 ], (byte) 0 );
+            offeredResumption = null;
+        }
+    }
+
+    /**
+     * Derives the AES key from the shared secret of the exchange in progress. A classic secret is used as is for
+     * compatibility, while the X25519 secret is hashed, as its bytes are not uniformly distributed.
+     *
+     * @param secret - the shared secret
+     * @return the AES key of the conversation
+     * @throws NoSuchAlgorithmException if SHA-256 is not available
+     */
+    private SecretKeySpec deriveKey( final byte [ ] secret ) throws NoSuchAlgorithmException
+    {
+        if ( keyAgree == x25519Agree )
+        {
+            return new SecretKeySpec( MessageDigest.getInstance( "SHA-256" ).digest( secret ), 0, 16, KEY_TYPE );
+        }
+        return new SecretKeySpec( secret, 0, 16, KEY_TYPE );
+    }
+
+    /**
+     * Returns <code>true</code> if the specified parameters describe the same Diffie-Hellman group.
+     *
+     * @param first  - parameters of a group
+     * @param second - parameters of a group
+     * @return <code>true</code> if the prime and the generator of the groups are equal
+     */
+    private static boolean sameGroup( final DHParameterSpec first, final DHParameterSpec second )
+    {
+        return first.getP().equals( second.getP() ) && first.getG().equals( second.getG() );
+    }
+
+    /**
+     * Encodes the specified public key as a key exchange payload, advertising the capabilities of this client if the
+     * peer is known to understand them.
+     *
+     * @param publicKey - the local public key
+     * @return the key exchange payload
+     */
+    private byte [ ] encode( final PublicKey publicKey )
+    {
+        if ( publicKey instanceof XECPublicKey )
+        {
+            /* RFC 7748 encodes the u-coordinate in little-endian order. */
+            final byte [ ] bigEndian = ( (XECPublicKey) publicKey ).getU().toByteArray();
+            final byte [ ] payload = new byte [ 5 + X25519_KEY_LENGTH ];
+
+            ByteBuffer.wrap( payload ).put( DHKX_X25519 ).putInt( capabilities );
+
+            for ( int i = 0; i < Math.min( bigEndian.length, X25519_KEY_LENGTH ); i++ )
+            {
+                payload[ 5 + i ] = bigEndian[ bigEndian.length - 1 - i ];
+            }
+            return payload;
+        }
+
+        final byte [ ] secret = publicKey.getEncoded();
+
+        if ( peerCapabilities == 0 )
+        {
+            return secret;
+        }
+
+        return ByteBuffer.allocate( 5 + secret.length ).put( DHKX_EXTENDED ).putInt( capabilities ).put( secret )
+                .array();
+    }
+
+    /**
+     * Decodes a key exchange payload, recording the capabilities of the peer if it advertised them.
+     *
+     * @param payload - the key exchange payload
+     * @return the public key of the peer
+     * @throws NoSuchAlgorithmException if selected key exchange protocol does not exist
+     * @throws InvalidKeySpecException  if the payload does not contain a valid public key
+     */
+    private PublicKey decode( final byte [ ] payload ) throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        if ( payload.length < 5 || payload[ 0 ] != DHKX_EXTENDED && payload[ 0 ] != DHKX_X25519 )
+        {
+            peerCapabilities = 0;
+
+            return KeyFactory.getInstance( KX_PROTOCOL ).generatePublic( new X509EncodedKeySpec( payload ) );
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap( payload );
+        final byte marker = buffer.get();
+        peerCapabilities = buffer.getInt();
+
+        final byte [ ] secret = new byte [ buffer.remaining() ];
+        buffer.get( secret );
+
+        if ( marker == DHKX_EXTENDED )
+        {
+            return KeyFactory.getInstance( KX_PROTOCOL ).generatePublic( new X509EncodedKeySpec( secret ) );
+        }
+
+        if ( secret.length != X25519_KEY_LENGTH || x25519Gen == null )
+        {
+            throw new InvalidKeySpecException( "Unexpected X25519 public value" );
+        }
+
+        /* Reversed to big-endian, with the unused top bit masked as required by RFC 7748. */
+        final byte [ ] bigEndian = new byte [ X25519_KEY_LENGTH ];
+        for ( int i = 0; i < X25519_KEY_LENGTH; i++ )
+        {
+            bigEndian[ i ] = secret[ X25519_KEY_LENGTH - 1 - i ];
+        }
+        bigEndian[ 0 ] &= 0x7F;
+
+        return KeyFactory.getInstance( "XDH" )
+                .generatePublic( new XECPublicKeySpec( NamedParameterSpec.X25519, new BigInteger( 1, bigEndian ) ) );
+    }
+}
@@ -0,0 +1,133 @@
+package main.client;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import javax.crypto.spec.DHParameterSpec;
+
+/**
+ * A pool of Diffie-Hellman key pairs generated ahead of time by a background thread, so that setting up a conversation
+ * does not wait for a key pair to be generated. Each key pair is handed out only once. If the pool has been emptied by
+ * a burst of conversations, a key pair is generated on the calling thread instead.
+ *
+ * @author Lauri Halla-aho
+ */
+public class KeyPairPool implements Runnable
+{
+    public static final int DEFAULT_CAPACITY = 4;
+
+    private final DHParameterSpec params;
+    private final BlockingQueue < KeyPair > ready;
+
+    /**
+     * Used by the background thread only.
+     */
+    private final KeyPairGenerator generator;
+
+    /**
+     * Used by callers finding the pool empty, guarded by itself.
+     */
+    private final KeyPairGenerator fallback;
+
+    private final Thread filler;
+
+    /**
+     * Constructs a pool of key pairs in the specified group and starts filling it.
+     *
+     * @param params   - the Diffie-Hellman group of the key pairs
+     * @param capacity - maximum number of key pairs kept ready
+     * @throws NoSuchAlgorithmException if the Diffie-Hellman key exchange is not available
+     */
+    public KeyPairPool( final DHParameterSpec params, final int capacity ) throws NoSuchAlgorithmException
+    {
+        this.params = params;
+        ready = new ArrayBlockingQueue <>( Math.max( 1, capacity ) );
+
+        generator = KeyPairGenerator.getInstance( "DH" );
+        fallback = KeyPairGenerator.getInstance( "DH" );
+
+        try
+        {
+            generator.initialize( params );
+            fallback.initialize( params );
+        }
+        catch ( final InvalidAlgorithmParameterException e )
+        {
+            throw new IllegalArgumentException( "Invalid Diffie-Hellman group", e );
+        }
+
+        filler = new Thread( this, "Key Pair Pool" );
+        filler.setDaemon( true );
+        filler.setPriority( Thread.MIN_PRIORITY );
+        filler.start();
+    }
+
+    /**
+     * Takes a key pair from the pool, generating one at once if the pool is empty.
+     *
+     * @return a key pair that has not been handed out before
+     */
+    public KeyPair take()
+    {
+        final KeyPair kpair = ready.poll();
+
+        if ( kpair != null )
+        {
+            return kpair;
+        }
+
+        synchronized ( fallback )
+        {
+            return fallback.generateKeyPair();
+        }
+    }
+
+    /**
+     * Returns the Diffie-Hellman group of the key pairs in this pool.
+     *
+     * @return the group parameters
+     */
+    public DHParameterSpec getParams()
+    {
+        return params;
+    }
+
+    /**
+     * Returns the number of key pairs currently ready.
+     *
+     * @return the number of pregenerated key pairs
+     */
+    public int getSize()
+    {
+        return ready.size();
+    }
+
+    /**
+     * Stops generating key pairs.
+     */
+    public void close()
+    {
+        filler.interrupt();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while ( true )
+            {
+                /* Waits while the pool is full. */
+                ready.put( generator.generateKeyPair() );
+            }
+        }
+        catch ( final InterruptedException e )
+        {
+            /* Closed. */
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package main.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Remembers the resumption secrets of recent conversation partners, so that joining one of them again can derive the
+ * key of the new conversation from the secret instead of repeating the Diffie-Hellman exchange. Each secret is kept for
+ * a limited time, and the least recently used secret is evicted once the cache is full.
+ * <p>
+ * The secrets are kept encrypted with AES-GCM under a key generated for the lifetime of the cache, bound to the name
+ * of the peer, so that they are not lying around in memory in plain form. Each secret is handed out only once, as it is
+ * replaced by the next conversation with the same peer.
+ *
+ * @author Lauri Halla-aho
+ */
+public class ResumptionCache
+{
+    /**
+     * Default maximum number of peers remembered.
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Default time in milliseconds a resumption secret can be used after the conversation it was derived in.
+     */
+    public static final long DEFAULT_LIFETIME_MILLIS = TimeUnit.HOURS.toMillis( 12 );
+
+    /**
+     * Cipher of the kept secrets: AES encryption, GCM mode with a 96-bit nonce and a 128-bit tag.
+     */
+    private static final String CIPHER_TYPE = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final int capacity;
+    private final long lifetimeNanos;
+
+    /* Guarded by this cache. */
+    private final Map < String, Entry > entries;
+    private final Cipher cipher;
+
+    private final SecretKey wrappingKey;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity       - maximum number of peers remembered
+     * @param lifetimeMillis - time in milliseconds a secret can be used after it was stored
+     */
+    public ResumptionCache( final int capacity, final long lifetimeMillis )
+    {
+        this.capacity = Math.max( 1, capacity );
+        lifetimeNanos = TimeUnit.MILLISECONDS.toNanos( lifetimeMillis );
+
+        /* In access order, so that the eldest entry is the least recently used one. */
+        entries = new LinkedHashMap < String, Entry >( 16, 0.75f, true )
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry( final Map.Entry < String, Entry > eldest )
+            {
+                return size() > ResumptionCache.this.capacity;
+            }
+        };
+
+        try
+        {
+            final KeyGenerator keyGen = KeyGenerator.getInstance( "AES" );
+            keyGen.init( 128 );
+            wrappingKey = keyGen.generateKey();
+            cipher = Cipher.getInstance( CIPHER_TYPE );
+        }
+        catch ( final NoSuchAlgorithmException | NoSuchPaddingException e )
+        {
+            /* AES-GCM is required of every Java platform. */
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Stores a resumption secret for the specified peer, replacing any previous one.
+     *
+     * @param peer   - username of the conversation partner
+     * @param id     - identifier of the secret, known to both partners
+     * @param secret - the resumption secret, which may be overwritten by the caller afterwards
+     */
+    synchronized void put( final String peer, final byte [ ] id, final byte [ ] secret )
+    {
+        final byte [ ] nonce = new byte [ NONCE_LENGTH ];
+        random.nextBytes( nonce );
+
+        try
+        {
+            cipher.init( Cipher.ENCRYPT_MODE, wrappingKey, new GCMParameterSpec( TAG_BITS, nonce ) );
+            cipher.updateAAD( peer.getBytes( StandardCharsets.UTF_8 ) );
+
+            entries.put( peer, new Entry( id.clone(), nonce, cipher.doFinal( secret ), System.nanoTime()
+                    + lifetimeNanos ) );
+        }
+        catch ( final GeneralSecurityException e )
+        {
+            /* Not remembering the peer only costs a full exchange the next time. */
+            entries.remove( peer );
+        }
+    }
+
+    /**
+     * Removes and returns the resumption secret of the specified peer.
+     *
+     * @param peer - username of the conversation partner
+     * @return the identifier of the secret followed by the secret, <code>null</code> if the peer is not remembered or
+     *         its secret has expired
+     */
+    synchronized byte [ ] [ ] take( final String peer )
+    {
+        final Entry entry = entries.remove( peer );
+
+        if ( entry == null || System.nanoTime() - entry.expiresAt > 0 )
+        {
+            return null;
+        }
+
+        try
+        {
+            cipher.init( Cipher.DECRYPT_MODE, wrappingKey, new GCMParameterSpec( TAG_BITS, entry.nonce ) );
+            cipher.updateAAD( peer.getBytes( StandardCharsets.UTF_8 ) );
+
+            return new byte [ ] [ ] { entry.id, cipher.doFinal( entry.wrapped ) };
+        }
+        catch ( final GeneralSecurityException e )
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the resumption secrets of all peers.
+     */
+    public synchronized void clear()
+    {
+        for ( final Entry entry : entries.values() )
+        {
+            Arrays.fill( entry.wrapped, (byte) 0 );
+        }
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of peers currently remembered, including any whose secrets have expired but have not been
+     * looked up since.
+     *
+     * @return the number of remembered peers
+     */
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+
+    /**
+     * A resumption secret encrypted under the wrapping key of the cache.
+     */
+    private static final class Entry
+    {
+        private final byte [ ] id;
+        private final byte [ ] nonce;
+        private final byte [ ] wrapped;
+        private final long expiresAt;
+
+        private Entry( final byte [ ] id, final byte [ ] nonce, final byte [ ] wrapped, final long expiresAt )
+        {
+            this.id = id;
+            this.nonce = nonce;
+            this.wrapped = wrapped;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,509 @@
+package main.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and decrypts the chat messages of a conversation under the key derived by a {@link KeyExchange}. The cipher
+ * objects are created once per conversation and only re-initialised for each message.
+ * <p>
+ * Sealed messages are encrypted with AES-GCM under deterministic nonces: a prefix telling the direction of the message
+ * followed by a counter, so that the two partners sharing the key never use the same nonce. The nonce is sent in front
+ * of the ciphertext, so a partner choosing random nonces instead can open the messages as well.
+ * <p>
+ * If both partners support {@link main.common.Message#CAP_RATCHET}, the sealed messages are encrypted under keys that
+ * change as the conversation goes on instead. Each direction has a chain key derived from the shared secret of the key
+ * exchange with HKDF-SHA256. After a number of messages or a period of time the sender ratchets its chain forward one
+ * epoch, deriving the next message key and forgetting the previous one, so that a key leaked later does not reveal the
+ * earlier messages. The epoch is carried in the nonce, so the receiver follows without any extra messages.
+ *
+ * @author Lauri Halla-aho
+ */
+public class SessionCipher
+{
+    /**
+     * Used encryption algorithm.
+     */
+    private static final String KEY_TYPE = "AES";
+
+    /**
+     * Used cipher parameters: AES encryption, CBC mode, PKCS5 padding.
+     */
+    private static final String CIPHER_TYPE = "AES/CBC/PKCS5Padding";
+
+    private static final int IV_LENGTH = 16;
+
+    /**
+     * Cipher of sealed chat messages: AES encryption, GCM mode with a 96-bit nonce and a 128-bit tag.
+     */
+    private static final String SEALED_CIPHER_TYPE = "AES/GCM/NoPadding";
+    private static final int SEALED_NONCE_LENGTH = 12;
+    private static final int SEALED_TAG_BITS = 128;
+
+    /**
+     * Number of bytes a sealed message is longer than its plaintext.
+     */
+    public static final int SEALED_OVERHEAD = SEALED_NONCE_LENGTH + SEALED_TAG_BITS / 8;
+
+    /* First four bytes of the nonces of each direction. */
+    private static final int INITIATOR_PREFIX = 1;
+    private static final int RESPONDER_PREFIX = 2;
+
+    /**
+     * Default number of messages sealed under each key of a ratcheted conversation.
+     */
+    public static final int DEFAULT_RATCHET_MESSAGES = 1000;
+
+    /**
+     * Default longest time in milliseconds messages of a ratcheted conversation are sealed under the same key.
+     */
+    public static final long DEFAULT_RATCHET_MILLIS = TimeUnit.MINUTES.toMillis( 1 );
+
+    /**
+     * Largest number of epochs the receiving chain is ratcheted forward at once, bounding the work done for a
+     * message whose epoch is far ahead.
+     */
+    private static final int MAX_EPOCH_SKIP = 1024;
+
+    /**
+     * Epochs are carried in the three bytes of the nonce after the direction.
+     */
+    private static final int MAX_EPOCH = ( 1 << 24 ) - 1;
+
+    private final SecretKeySpec aesKey;
+
+    /* Null unless the keys of the sealed messages are ratcheted, guarded by the sealer and the opener. */
+    private final Chain sendChain;
+    private Chain receiveChain;
+
+    private final int ratchetMessages;
+    private final long ratchetNanos;
+    private int epochMessages = 0;
+    private long epochStart;
+
+    /* Guarded by themselves, as messages are sent and received on different threads. */
+    private final Cipher sealer;
+    private final Cipher opener;
+    private final Cipher encipher;
+    private final Cipher decipher;
+
+    private final int noncePrefix;
+    private long nonceCounter = 0;
+
+    private final byte [ ] nonce = new byte [ SEALED_NONCE_LENGTH ];
+    private final byte [ ] iv = new byte [ IV_LENGTH ];
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * Constructs a cipher using the specified conversation key.
+     *
+     * @param aesKey    - the key of the conversation, <code>null</code> before a key exchange
+     * @param initiator - <code>true</code> on the side that started the key exchange, choosing the nonce prefix
+     */
+    public SessionCipher( final SecretKeySpec aesKey, final boolean initiator )
+    {
+        this( aesKey, null, initiator, 0, 0 );
+    }
+
+    /**
+     * Constructs a cipher ratcheting the keys of the sealed messages forward from the specified shared secret.
+     *
+     * @param aesKey          - the fixed key of the conversation, used for peers without sealed messages
+     * @param sharedSecret    - the shared secret of the key exchange, <code>null</code> not to ratchet
+     * @param initiator       - <code>true</code> on the side that started the key exchange, choosing the chains
+     * @param ratchetMessages - number of messages sealed under each key
+     * @param ratchetMillis   - longest time in milliseconds messages are sealed under the same key
+     */
+    public SessionCipher( final SecretKeySpec aesKey, final byte [ ] sharedSecret, final boolean initiator,
+            final int ratchetMessages, final long ratchetMillis )
+    {
+        this.aesKey = aesKey;
+        noncePrefix = initiator ? INITIATOR_PREFIX : RESPONDER_PREFIX;
+        this.ratchetMessages = Math.max( 1, ratchetMessages );
+        ratchetNanos = TimeUnit.MILLISECONDS.toNanos( ratchetMillis );
+        epochStart = System.nanoTime();
+
+        if ( sharedSecret == null )
+        {
+            sendChain = null;
+            receiveChain = null;
+        }
+        else
+        {
+            final byte [ ] prk = Hkdf.extract( null, sharedSecret );
+            final Chain initiatorChain = new Chain( Hkdf.expand( prk, "CryptoGram initiator chain",
+                    Hkdf.HASH_LENGTH ) );
+            final Chain responderChain = new Chain( Hkdf.expand( prk, "CryptoGram responder chain",
+                    Hkdf.HASH_LENGTH ) );
+            Arrays.fill( prk, (byte) 0 );
+
+            sendChain = initiator ? initiatorChain : responderChain;
+            receiveChain = initiator ? responderChain : initiatorChain;
+        }
+
+        try
+        {
+            sealer = Cipher.getInstance( SEALED_CIPHER_TYPE );
+            opener = Cipher.getInstance( SEALED_CIPHER_TYPE );
+            encipher = Cipher.getInstance( CIPHER_TYPE );
+            decipher = Cipher.getInstance( CIPHER_TYPE );
+        }
+        catch ( final NoSuchAlgorithmException | NoSuchPaddingException e )
+        {
+            /* Both transformations are required of every Java platform. */
+            throw new IllegalStateException( e );
+        }
+    }
+
+    /**
+     * Encrypts and authenticates the specified data into the specified buffer under the next nonce.
+     *
+     * @param plainText - array containing the data to be encrypted
+     * @param offset    - start of the data in the array
+     * @param length    - length of the data
+     * @param out       - buffer the nonce, the ciphertext and the tag are written to, with room for
+     *                  <code>length + {@link #SEALED_OVERHEAD}</code> bytes
+     * @param outOffset - start of the sealed message in the buffer
+     * @return the length of the sealed message, -1 if it could not be encrypted
+     */
+    public int seal( final byte [ ] plainText, final int offset, final int length, final byte [ ] out,
+            final int outOffset )
+    {
+        synchronized ( sealer )
+        {
+            try
+            {
+                SecretKeySpec key = aesKey;
+
+                if ( sendChain == null )
+                {
+                    ByteBuffer.wrap( nonce ).putInt( noncePrefix ).putLong( nonceCounter++ );
+                }
+                else
+                {
+                    ratchetIfDue();
+
+                    /* The direction, the epoch and the counter restarting from zero in each epoch. */
+                    ByteBuffer.wrap( nonce ).putInt( noncePrefix << 24 | sendChain.epoch ).putLong( nonceCounter++ );
+                    key = sendChain.key;
+                }
+
+                sealer.init( Cipher.ENCRYPT_MODE, key, new GCMParameterSpec( SEALED_TAG_BITS, nonce ) );
+
+                System.arraycopy( nonce, 0, out, outOffset, SEALED_NONCE_LENGTH );
+                return SEALED_NONCE_LENGTH
+                        + sealer.doFinal( plainText, offset, length, out, outOffset + SEALED_NONCE_LENGTH );
+            }
+            catch ( final GeneralSecurityException | IllegalArgumentException e )
+            {
+                e.printStackTrace();
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Encrypts and authenticates the specified data under the next nonce.
+     *
+     * @param plainText - data to be encrypted
+     * @return the nonce followed by the ciphertext and its authentication tag
+     */
+    public byte [ ] seal( final byte [ ] plainText )
+    {
+        final byte [ ] sealed = new byte [ plainText.length + SEALED_OVERHEAD ];
+
+        return seal( plainText, 0, plainText.length, sealed, 0 ) < 0 ? new byte [ 0 ] : sealed;
+    }
+
+    /**
+     * Authenticates and decrypts data sealed by the peer into the specified buffer.
+     *
+     * @param sealed    - array containing the nonce followed by the ciphertext and its authentication tag
+     * @param offset    - start of the sealed message in the array
+     * @param length    - length of the sealed message
+     * @param out       - buffer the decrypted data is written to, with room for
+     *                  <code>length - {@link #SEALED_OVERHEAD}</code> bytes
+     * @param outOffset - start of the decrypted data in the buffer
+     * @return the length of the decrypted data, -1 if the data could not be authenticated
+     */
+    public int open( final byte [ ] sealed, final int offset, final int length, final byte [ ] out,
+            final int outOffset )
+    {
+        if ( length < SEALED_OVERHEAD )
+        {
+            return -1;
+        }
+
+        synchronized ( opener )
+        {
+            if ( receiveChain == null )
+            {
+                return open( aesKey, sealed, offset, length, out, outOffset );
+            }
+
+            /* Messages sealed by this side and reflected back are refused. */
+            final int prefix = ByteBuffer.wrap( sealed, offset, 4 ).getInt();
+            final int epoch = prefix & MAX_EPOCH;
+
+            if ( prefix >>> 24 == noncePrefix )
+            {
+                return -1;
+            }
+
+            if ( epoch == receiveChain.epoch )
+            {
+                return open( receiveChain.key, sealed, offset, length, out, outOffset );
+            }
+
+            /* A message of the previous epoch delayed behind the first one of the current epoch. */
+            if ( epoch == receiveChain.epoch - 1 && receiveChain.previousKey != null )
+            {
+                return open( receiveChain.previousKey, sealed, offset, length, out, outOffset );
+            }
+
+            if ( epoch < receiveChain.epoch || epoch - receiveChain.epoch > MAX_EPOCH_SKIP )
+            {
+                return -1;
+            }
+
+            /* The peer has ratcheted forward, but the chain only follows once the message proves authentic. */
+            final Chain advanced = receiveChain.copy();
+            while ( advanced.epoch < epoch )
+            {
+                advanced.advance();
+            }
+
+            final int result = open( advanced.key, sealed, offset, length, out, outOffset );
+
+            if ( result >= 0 )
+            {
+                receiveChain.wipe();
+                receiveChain = advanced;
+            }
+            else
+            {
+                advanced.wipe();
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Authenticates and decrypts data sealed by the peer under the specified key. Called with the opener held.
+     *
+     * @param key       - the key the data was sealed under
+     * @param sealed    - array containing the nonce followed by the ciphertext and its authentication tag
+     * @param offset    - start of the sealed message in the array
+     * @param length    - length of the sealed message
+     * @param out       - buffer the decrypted data is written to
+     * @param outOffset - start of the decrypted data in the buffer
+     * @return the length of the decrypted data, -1 if the data could not be authenticated
+     */
+    private int open( final SecretKeySpec key, final byte [ ] sealed, final int offset, final int length,
+            final byte [ ] out, final int outOffset )
+    {
+        try
+        {
+            opener.init( Cipher.DECRYPT_MODE, key,
+                    new GCMParameterSpec( SEALED_TAG_BITS, sealed, offset, SEALED_NONCE_LENGTH ) );
+
+            return opener.doFinal( sealed, offset + SEALED_NONCE_LENGTH, length - SEALED_NONCE_LENGTH, out,
+                    outOffset );
+        }
+        catch ( final GeneralSecurityException | IllegalArgumentException e )
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Ratchets the sending chain forward if the current key has sealed enough messages or has been used long enough.
+     * Called with the sealer held.
+     */
+    private void ratchetIfDue()
+    {
+        final long now = System.nanoTime();
+
+        if ( ( epochMessages >= ratchetMessages || now - epochStart >= ratchetNanos ) && sendChain.epoch < MAX_EPOCH )
+        {
+            sendChain.advance();
+            nonceCounter = 0;
+            epochMessages = 0;
+            epochStart = now;
+        }
+        epochMessages++;
+    }
+
+    /**
+     * Returns the epoch of the key the next sealed message is encrypted under.
+     *
+     * @return the current sending epoch, 0 if the keys are not ratcheted
+     */
+    public int getEpoch()
+    {
+        synchronized ( sealer )
+        {
+            return sendChain == null ? 0 : sendChain.epoch;
+        }
+    }
+
+    /**
+     * Authenticates and decrypts data sealed by the peer.
+     *
+     * @param sealed - the nonce followed by the ciphertext and its authentication tag
+     * @return decrypted data, <code>null</code> if the data could not be authenticated
+     */
+    public byte [ ] open( final byte [ ] sealed )
+    {
+        if ( sealed.length < SEALED_OVERHEAD )
+        {
+            return null;
+        }
+
+        final byte [ ] plainText = new byte [ sealed.length - SEALED_OVERHEAD ];
+
+        return open( sealed, 0, sealed.length, plainText, 0 ) < 0 ? null : plainText;
+    }
+
+    /**
+     * Encrypts the specified data for a peer without sealed messages.
+     *
+     * @param plainText - data to be encrypted
+     * @return the encrypted data and the used cipher parameters
+     */
+    public byte [ ] [ ] encrypt( final byte [ ] plainText )
+    {
+        synchronized ( encipher )
+        {
+            try
+            {
+                random.nextBytes( iv );
+                encipher.init( Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec( iv ) );
+
+                final byte [ ] cipherText = encipher.doFinal( plainText );
+
+                /* The DER octet string that AlgorithmParameters.getEncoded() would produce for the IV. */
+                final byte [ ] params = new byte [ 2 + IV_LENGTH ];
+                params[ 0 ] = 0x04;
+                params[ 1 ] = IV_LENGTH;
+                System.arraycopy( iv, 0, params, 2, IV_LENGTH );
+
+                return new byte [ ] [ ] { cipherText, params };
+            }
+            catch ( final GeneralSecurityException e )
+            {
+                e.printStackTrace();
+                return new byte [ 0 ] [ 0 ];
+            }
+        }
+    }
+
+    /**
+     * Decrypts the specified data encrypted by {@link #encrypt(byte[])}.
+     *
+     * @param cipherText - data to be decrypted
+     * @param params     - the cipher parameters used to encrypt the data
+     * @return decrypted data
+     */
+    public byte [ ] decrypt( final byte [ ] cipherText, final byte [ ] params )
+    {
+        synchronized ( decipher )
+        {
+            try
+            {
+                if ( params.length == 2 + IV_LENGTH && params[ 0 ] == 0x04 && params[ 1 ] == IV_LENGTH )
+                {
+                    decipher.init( Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec( params, 2, IV_LENGTH ) );
+                }
+                else
+                {
+                    /* Some other encoding of the parameters. */
+                    final AlgorithmParameters aesParams = AlgorithmParameters.getInstance( KEY_TYPE );
+                    aesParams.init( params );
+                    decipher.init( Cipher.DECRYPT_MODE, aesKey, aesParams );
+                }
+
+                return decipher.doFinal( cipherText );
+            }
+            catch ( final GeneralSecurityException | IOException e )
+            {
+                e.printStackTrace();
+                return new byte [ 0 ];
+            }
+        }
+    }
+
+    /**
+     * The chain of keys of one direction of a ratcheted conversation.
+     */
+    private static final class Chain
+    {
+        private byte [ ] chainKey;
+        private int epoch = 0;
+        private SecretKeySpec key;
+        private SecretKeySpec previousKey = null;
+
+        /**
+         * Constructs a chain starting from the specified chain key at epoch 0.
+         *
+         * @param chainKey - the first chain key
+         */
+        private Chain( final byte [ ] chainKey )
+        {
+            this.chainKey = chainKey;
+            key = messageKey( chainKey );
+        }
+
+        /**
+         * Ratchets this chain forward one epoch, forgetting the chain key of the previous epoch.
+         */
+        private void advance()
+        {
+            final byte [ ] next = Hkdf.expand( chainKey, "CryptoGram chain key", Hkdf.HASH_LENGTH );
+            Arrays.fill( chainKey, (byte) 0 );
+
+            chainKey = next;
+            previousKey = key;
+            key = messageKey( chainKey );
+            epoch++;
+        }
+
+        /**
+         * Returns a copy of this chain that can be advanced on its own.
+         *
+         * @return a copy of this chain
+         */
+        private Chain copy()
+        {
+            final Chain copy = new Chain( chainKey.clone() );
+            copy.epoch = epoch;
+            copy.previousKey = previousKey;
+            return copy;
+        }
+
+        /**
+         * Overwrites the chain key of this chain once it is no longer used.
+         */
+        private void wipe()
+        {
+            Arrays.fill( chainKey, (byte) 0 );
+        }
+
+        private static SecretKeySpec messageKey( final byte [ ] chainKey )
+        {
+            return new SecretKeySpec( Hkdf.expand( chainKey, "CryptoGram message key", 16 ), KEY_TYPE );
+        }
+    }
+}
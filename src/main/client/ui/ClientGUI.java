@@ -20,6 +20,7 @@ import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.border.EmptyBorder;
 
+import main.client.Client;
 import main.client.Crypter;
 import main.common.Message;
 
@@ -63,7 +64,7 @@ public class ClientGUI extends JFrame
         createWindow();
         log( "For a list of available chat commands, type /help." );
         log( String.format( "Attempting to connect to %s:%d as %s...", serverIP, serverPort, username ) );
-        send( new Message( Message.LOGIN, username ) );
+        send( new Message( Message.LOGIN, username, Client.CAPABILITIES ) );
 
         new Timer( "Connection check" ).schedule( new TimerTask()
         {
@@ -186,7 +187,7 @@ public class ClientGUI extends JFrame
             if ( message.equals( "/help" ) )
             {
                 log( "Available chat commands:" );
-                log( "  /list            - List available users present in the Lobby." );
+                log( "  /list [from]     - List available users present in the Lobby." );
                 log( "  /join <username> - Start a conversation with the specified user." );
                 log( "  /leave           - Leave your current conversation." );
                 log( "  /quit            - Close the application." );
@@ -208,8 +209,8 @@ public class ClientGUI extends JFrame
                 {
                     final String cmd = message.replaceFirst( "/", "" );
 
-                    /* /list */
-                    if ( cmd.equals( "list" ) )
+                    /* /list [from] */
+                    if ( cmd.equals( "list" ) || cmd.startsWith( "list " ) )
                     {
                         msg = new Message( Message.MSG_CHAT_CMD, username, cmd );
                     }
@@ -232,13 +233,11 @@ public class ClientGUI extends JFrame
                 else
                 {
                     log( username + ": " + message );
-                    final byte [ ] [ ] cipherParams = crypter.encrypt( message.getBytes() );
+                    crypter.sendChatMessage( message.getBytes() );
 
-                    msg = new Message( Message.MSG_CHAT, cipherParams[ 0 ] );
-                    send( msg );
-
-                    msg = new Message( Message.MSG_PARAMS, cipherParams[ 1 ] );
-                    send( msg );
+                    chatHistory.setCaretPosition( chatHistory.getDocument().getLength() );
+                    chatMessage.setText( "" );
+                    chatMessage.requestFocusInWindow();
                 }
 
             }
@@ -252,7 +251,7 @@ public class ClientGUI extends JFrame
      */
     private void send( final Message message )
     {
-        crypter.sendMessage( message.getFormattedMessage() );
+        crypter.sendMessage( message );
         chatHistory.setCaretPosition( chatHistory.getDocument().getLength() );
         chatMessage.setText( "" );
         chatMessage.requestFocusInWindow();
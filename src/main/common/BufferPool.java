@@ -0,0 +1,75 @@
+package main.common;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A thread-safe pool of reusable datagram buffers, so that receiving and forwarding datagrams produces no garbage once
+ * the pool has warmed up.
+ *
+ * @author Lauri Halla-aho
+ */
+public class BufferPool
+{
+    private final BlockingQueue < Datagram > free;
+    private final int bufferSize;
+    private final boolean direct;
+
+    /**
+     * Constructs an empty pool that keeps at most the specified number of buffers.
+     *
+     * @param capacity   - maximum number of idle buffers kept by this pool
+     * @param bufferSize - size of each buffer in bytes
+     * @param direct     - <code>true</code> if the buffers are allocated outside of the heap
+     */
+    public BufferPool( final int capacity, final int bufferSize, final boolean direct )
+    {
+        free = new ArrayBlockingQueue <>( capacity );
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Takes a cleared datagram from this pool, allocating a new one if the pool is empty.
+     *
+     * @return a datagram to be returned with {@link Datagram#release()}
+     */
+    public Datagram acquire()
+    {
+        Datagram datagram = free.poll();
+
+        if ( datagram == null )
+        {
+            final ByteBuffer buffer = direct ? ByteBuffer.allocateDirect( bufferSize )
+                    : ByteBuffer.allocate( bufferSize );
+            datagram = new Datagram( buffer, null, this );
+        }
+
+        datagram.getData().clear();
+
+        return datagram;
+    }
+
+    /**
+     * Returns the specified datagram to this pool, discarding it if the pool is full.
+     *
+     * @param datagram - a datagram taken from this pool
+     */
+    void release( final Datagram datagram )
+    {
+        datagram.setTarget( null );
+        datagram.setReceivedAt( 0 );
+        free.offer( datagram );
+    }
+
+    /**
+     * Returns the number of idle buffers in this pool.
+     *
+     * @return the number of idle buffers
+     */
+    public int getIdleCount()
+    {
+        return free.size();
+    }
+}
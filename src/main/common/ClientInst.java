@@ -2,6 +2,7 @@ package main.common;
 
 import java.io.Serializable;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.Objects;
 
 /**
@@ -16,9 +17,31 @@ public class ClientInst implements Serializable
     private final String username;
     private final InetAddress address;
     private final int port;
+    private final InetSocketAddress endpoint;
+
+    /**
+     * Capabilities advertised by this client at login, such as {@link Message#CAP_WIRE_V2}. Capabilities between peers
+     * are kept even if the server does not support them itself.
+     */
+    private final int capabilities;
+
+    /**
+     * Hash code computed once, as client instances are used as keys on every forwarded message.
+     */
+    private final int hash;
 
     private int keepAliveAttempt = 0;
 
+    /**
+     * Reliable channel to this client, <code>null</code> if not negotiated.
+     */
+    private transient volatile ReliableChannel channel;
+
+    /**
+     * Time of the latest datagram received from this client in milliseconds.
+     */
+    private volatile long lastSeen = System.currentTimeMillis();
+
     /**
      * Constructs a new client instance with the specified info.
      *
@@ -27,10 +50,27 @@ public class ClientInst implements Serializable
      * @param port     - connected client's port number
      */
     public ClientInst( final String username, final InetAddress address, final int port )
+    {
+        this( username, address, port, 0 );
+    }
+
+    /**
+     * Constructs a new client instance with the specified info and advertised capabilities.
+     *
+     * @param username     - connected client's username
+     * @param address      - connected client's address
+     * @param port         - connected client's port number
+     * @param capabilities - capability bits advertised by the client
+     */
+    public ClientInst( final String username, final InetAddress address, final int port, final int capabilities )
     {
         this.username = username;
         this.address = address;
         this.port = port;
+        this.capabilities = capabilities;
+        endpoint = new InetSocketAddress( address, port );
+
+        hash = Objects.hash( username, address, port );
     }
 
     /**
@@ -63,6 +103,56 @@ public class ClientInst implements Serializable
         return port;
     }
 
+    /**
+     * Returns this client instance's address and port number as a socket address.
+     *
+     * @return this client instance's endpoint
+     */
+    public InetSocketAddress getEndpoint()
+    {
+        return endpoint;
+    }
+
+    /**
+     * Returns the capabilities advertised by this client.
+     *
+     * @return capability bits advertised by the client
+     */
+    public int getCapabilities()
+    {
+        return capabilities;
+    }
+
+    /**
+     * Returns the framing of messages sent to this client.
+     *
+     * @return {@link Message#WIRE_V2} if negotiated, {@link Message#WIRE_LEGACY} otherwise
+     */
+    public int getWireVersion()
+    {
+        return ( capabilities & Message.CAP_WIRE_V2 ) != 0 ? Message.WIRE_V2 : Message.WIRE_LEGACY;
+    }
+
+    /**
+     * Returns the reliable channel to this client.
+     *
+     * @return the reliable channel, <code>null</code> if the client did not negotiate {@link Message#CAP_RELIABLE}
+     */
+    public ReliableChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Sets the reliable channel to this client.
+     *
+     * @param channel - the reliable channel to this client
+     */
+    public void setChannel( final ReliableChannel channel )
+    {
+        this.channel = channel;
+    }
+
     /**
      * Returns this client instance's current keep-alive message counter.
      *
@@ -89,10 +179,28 @@ public class ClientInst implements Serializable
         keepAliveAttempt = 0;
     }
 
+    /**
+     * Returns the time of the latest datagram received from this client.
+     *
+     * @return the time of the latest datagram received from this client in milliseconds
+     */
+    public long getLastSeen()
+    {
+        return lastSeen;
+    }
+
+    /**
+     * Records that a datagram was received from this client, proving that it is still connected.
+     */
+    public void touch()
+    {
+        lastSeen = System.currentTimeMillis();
+    }
+
     @Override
     public int hashCode()
     {
-        return Objects.hash( username, address, port );
+        return hash;
     }
 
     @Override
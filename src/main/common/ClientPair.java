@@ -58,6 +58,17 @@ public class ClientPair implements Serializable
         return client1.equals( other ) || client2.equals( other );
     }
 
+    /**
+     * Returns the member of this pair conversing with the specified client instance.
+     *
+     * @param client - a member of this pair
+     * @return the other member of this pair
+     */
+    public ClientInst getPeer( final ClientInst client )
+    {
+        return client1.equals( client ) ? client2 : client1;
+    }
+
     @Override
     public int hashCode()
     {
@@ -0,0 +1,119 @@
+package main.common;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Contains the data and the recipient of a single datagram. A datagram taken from a {@link BufferPool} is returned to
+ * it by {@link #release()} once it has been processed or sent.
+ *
+ * @author Lauri Halla-aho
+ */
+public class Datagram
+{
+    private final ByteBuffer data;
+    private SocketAddress target;
+    private long receivedAt = 0;
+
+    private final BufferPool pool;
+
+    /**
+     * Constructs a datagram with the specified data and recipient.
+     *
+     * @param data   - contents of this datagram between the buffer's position and limit
+     * @param target - the recipient of this datagram
+     */
+    public Datagram( final ByteBuffer data, final SocketAddress target )
+    {
+        this( data, target, null );
+    }
+
+    /**
+     * Constructs a datagram with the specified formatted message and recipient.
+     *
+     * @param formattedMessage - the message to be sent as a formatted byte array
+     * @param address          - the address of the recipient
+     * @param port             - the port of the recipient
+     */
+    public Datagram( final byte [ ] formattedMessage, final InetAddress address, final int port )
+    {
+        this( ByteBuffer.wrap( formattedMessage ), new InetSocketAddress( address, port ) );
+    }
+
+    /**
+     * Constructs a datagram owned by the specified pool.
+     *
+     * @param data   - the buffer of this datagram
+     * @param target - the recipient of this datagram
+     * @param pool   - the pool this datagram is returned to, <code>null</code> if not pooled
+     */
+    Datagram( final ByteBuffer data, final SocketAddress target, final BufferPool pool )
+    {
+        this.data = data;
+        this.target = target;
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the contents of this datagram.
+     *
+     * @return the contents of this datagram
+     */
+    public ByteBuffer getData()
+    {
+        return data;
+    }
+
+    /**
+     * Returns the recipient of this datagram.
+     *
+     * @return the recipient of this datagram
+     */
+    public SocketAddress getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Sets the recipient of this datagram, allowing a received datagram to be forwarded as it is.
+     *
+     * @param target - the recipient of this datagram
+     */
+    public void setTarget( final SocketAddress target )
+    {
+        this.target = target;
+    }
+
+    /**
+     * Returns the time this datagram was received.
+     *
+     * @return the value of {@link System#nanoTime()} when this datagram was received, 0 if it was not received
+     */
+    public long getReceivedAt()
+    {
+        return receivedAt;
+    }
+
+    /**
+     * Records the time this datagram was received, so that the delay until it is forwarded can be measured.
+     *
+     * @param receivedAt - the value of {@link System#nanoTime()} when this datagram was received
+     */
+    public void setReceivedAt( final long receivedAt )
+    {
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * Returns this datagram to the pool it was taken from. The datagram must not be used afterwards.
+     */
+    public void release()
+    {
+        if ( pool != null )
+        {
+            pool.release( this );
+        }
+    }
+}
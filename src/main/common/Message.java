@@ -1,6 +1,11 @@
 package main.common;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Contains the type and payload of a message.
@@ -14,6 +19,18 @@ public class Message implements Serializable
     public static final int MSG_CHAT_CMD = 12;
     public static final int KEEP_ALIVE = 13;
 
+    /**
+     * An encrypted and authenticated chat message in a single frame, replacing a {@link #MSG_CHAT} and
+     * {@link #MSG_PARAMS} pair between peers that both support {@link #CAP_SEALED}. The payload holds the nonce
+     * followed by the ciphertext and its authentication tag.
+     */
+    public static final int MSG_SEALED = 14;
+
+    /**
+     * Acknowledges {@link #FLAG_RELIABLE} frames, see {@link ReliableChannel}.
+     */
+    public static final int ACK = 15;
+
     public static final int LOGIN = 20;
     public static final int LOGOUT = 21;
     public static final int PEER_AVAILABLE = 22;
@@ -24,6 +41,84 @@ public class Message implements Serializable
     public static final int DHKX_REQ = 30;
     public static final int DHKX_RES = 31;
 
+    /**
+     * Text framing: the type as two ASCII digits and a slash, followed by the payload.
+     */
+    public static final int WIRE_LEGACY = 1;
+
+    /**
+     * Binary framing: a version byte, the type, a flags byte and the payload length as an unsigned big-endian short,
+     * followed by the payload. The version byte can never be mistaken for the first digit of a legacy frame.
+     */
+    public static final int WIRE_V2 = 2;
+
+    public static final int HEADER_LENGTH_LEGACY = 3;
+    public static final int HEADER_LENGTH_V2 = 5;
+
+    /**
+     * Maximum length of a formatted message sent in a single datagram, matching the receive buffers of the server and
+     * the clients.
+     */
+    public static final int MAX_DATAGRAM_LENGTH = 1024;
+
+    /**
+     * Flag of a {@link #WIRE_V2} frame carrying one fragment of a longer message. The payload of the frame starts with
+     * a fragment header of the message id as an int, and the index of the fragment and the fragment count as unsigned
+     * shorts, followed by the fragment of the original payload.
+     */
+    public static final int FLAG_FRAGMENT = 0x01;
+
+    public static final int FRAGMENT_HEADER_LENGTH = 8;
+
+    /**
+     * Flag of a {@link #WIRE_V2} frame sent through a {@link ReliableChannel}. The payload of the frame starts with a
+     * sequence number as an int, removed by the receiving channel before the frame is handled.
+     */
+    public static final int FLAG_RELIABLE = 0x02;
+
+    public static final int RELIABLE_HEADER_LENGTH = 4;
+
+    /**
+     * Maximum length of a frame before a sequence number is added to it by a {@link ReliableChannel}.
+     */
+    public static final int MAX_FRAME_LENGTH = MAX_DATAGRAM_LENGTH - RELIABLE_HEADER_LENGTH;
+
+    /**
+     * Capability of sending and receiving {@link #WIRE_V2} frames.
+     */
+    public static final int CAP_WIRE_V2 = 1;
+
+    /**
+     * Capability of exchanging {@link #MSG_SEALED} chat messages with a peer.
+     */
+    public static final int CAP_SEALED = 1 << 1;
+
+    /**
+     * Capability of exchanging {@link #FLAG_RELIABLE} frames with the server.
+     */
+    public static final int CAP_RELIABLE = 1 << 2;
+
+    /**
+     * Capability of agreeing on the key of a conversation with X25519 instead of the classic Diffie-Hellman exchange.
+     */
+    public static final int CAP_X25519 = 1 << 3;
+
+    /**
+     * Capability of ratcheting the key of {@link #MSG_SEALED} chat messages forward as a conversation goes on.
+     */
+    public static final int CAP_RATCHET = 1 << 4;
+
+    /**
+     * Capability of resuming the keys of an earlier conversation with the same peer instead of a full key exchange.
+     */
+    public static final int CAP_RESUME = 1 << 5;
+
+    /**
+     * Separates the username of a LOGIN message from the capabilities of its sender. Capabilities are sent as one
+     * control character per capability bit, so that a server predating them trims them away with the whitespace.
+     */
+    static final char CAPABILITY_SEPARATOR = '\0';
+
     private static final long serialVersionUID = 8890994480826677411L;
 
     private final int type;
@@ -32,6 +127,7 @@ public class Message implements Serializable
 
     private String username = null;
     private String message = null;
+    private int capabilities = 0;
 
     /**
      * Constructs a message with the specified type, username, and payload.
@@ -45,6 +141,18 @@ public class Message implements Serializable
         this( type, username + "/" + payload );
     }
 
+    /**
+     * Constructs a message with the specified type and username, advertising the specified capabilities.
+     *
+     * @param type         - type of this message, usually {@link #LOGIN}
+     * @param username     - username of the sender
+     * @param capabilities - capability bits such as {@link #CAP_WIRE_V2}
+     */
+    public Message( final int type, final String username, final int capabilities )
+    {
+        this( type, username + encodeCapabilities( capabilities ) );
+    }
+
     /**
      * Constructs a message with the specified type and payload.
      *
@@ -53,7 +161,7 @@ public class Message implements Serializable
      */
     public Message( final int type, final String payload )
     {
-        this( type, payload.getBytes() );
+        this( type, payload.getBytes( StandardCharsets.UTF_8 ) );
     }
 
     /**
@@ -71,14 +179,26 @@ public class Message implements Serializable
         {
             case LOGIN:
             case LOGOUT:
-                username = new String( payload ).trim();
+            case PEER_AVAILABLE:
+                final String login = new String( payload, StandardCharsets.UTF_8 );
+                final int separator = login.indexOf( CAPABILITY_SEPARATOR );
+
+                if ( separator < 0 )
+                {
+                    username = login.trim();
+                }
+                else
+                {
+                    username = login.substring( 0, separator ).trim();
+                    capabilities = decodeCapabilities( login, separator + 1 );
+                }
                 break;
             case PEER_LEFT:
-                message = new String( payload ).trim();
+                message = new String( payload, StandardCharsets.UTF_8 ).trim();
                 break;
             case NEW_PEER:
             case MSG_CHAT_CMD:
-                final String payloadString = new String( payload ).trim();
+                final String payloadString = new String( payload, StandardCharsets.UTF_8 ).trim();
                 username = payloadString.substring( 0, payloadString.indexOf( '/' ) );
                 message = payloadString.substring( payloadString.indexOf( '/' ) + 1 );
                 break;
@@ -141,26 +261,108 @@ public class Message implements Serializable
     }
 
     /**
-     * Returns a formatted byte array of this message.
+     * Returns the capabilities advertised by the sender of a LOGIN message, or by the peer in a PEER_AVAILABLE message.
+     *
+     * @return capability bits such as {@link #CAP_WIRE_V2}, 0 if none were advertised
+     */
+    public int getCapabilities()
+    {
+        return capabilities;
+    }
+
+    /**
+     * Returns a formatted byte array of this message in the legacy framing understood by every peer.
      *
      * @return a formatted byte array
      */
     public byte [ ] getFormattedMessage()
     {
-        final String prefix = type + "/";
-        final int prefixLength = prefix.getBytes().length;
-        final byte [ ] result = new byte [ prefixLength + payload.length ];
+        return getFormattedMessage( WIRE_LEGACY );
+    }
+
+    /**
+     * Returns a formatted byte array of this message in the specified framing.
+     *
+     * @param wireVersion - {@link #WIRE_LEGACY} or {@link #WIRE_V2}
+     * @return a formatted byte array
+     */
+    public byte [ ] getFormattedMessage( final int wireVersion )
+    {
+        final int headerLength = headerLength( wireVersion );
+        final byte [ ] result = new byte [ headerLength + payload.length ];
+
+        writeHeader( result, 0, type, 0, payload.length, wireVersion );
+        System.arraycopy( payload, 0, result, headerLength, payload.length );
+
+        return result;
+    }
+
+    /**
+     * Returns this message as one or more {@link #WIRE_V2} frames that each fit a single datagram, leaving room for a
+     * sequence number. A message that fits is returned as a single unfragmented frame, otherwise the payload is split
+     * into {@link #FLAG_FRAGMENT} frames.
+     *
+     * @param messageId - id shared by the fragments, unique among the recent messages of the sender
+     * @return the formatted frames in order
+     */
+    public List < byte [ ] > getFormattedFragments( final int messageId )
+    {
+        if ( HEADER_LENGTH_V2 + payload.length <= MAX_FRAME_LENGTH )
+        {
+            return Collections.singletonList( getFormattedMessage( WIRE_V2 ) );
+        }
 
-        for ( int i = 0; i < prefixLength; i++ )
+        final int chunkLength = MAX_FRAME_LENGTH - HEADER_LENGTH_V2 - FRAGMENT_HEADER_LENGTH;
+        final int count = ( payload.length + chunkLength - 1 ) / chunkLength;
+        final List < byte [ ] > fragments = new ArrayList <>( count );
+
+        for ( int index = 0; index < count; index++ )
         {
-            result[ i ] = prefix.getBytes()[ i ];
+            final int offset = index * chunkLength;
+            final int length = Math.min( chunkLength, payload.length - offset );
+            final ByteBuffer fragment = ByteBuffer.allocate( HEADER_LENGTH_V2 + FRAGMENT_HEADER_LENGTH + length );
+
+            writeHeader( fragment.array(), 0, type, FLAG_FRAGMENT, FRAGMENT_HEADER_LENGTH + length, WIRE_V2 );
+            fragment.position( HEADER_LENGTH_V2 );
+            fragment.putInt( messageId ).putShort( (short) index ).putShort( (short) count );
+            fragment.put( payload, offset, length );
+
+            fragments.add( fragment.array() );
         }
 
-        for ( int i = prefixLength; i < result.length; i++ )
+        return fragments;
+    }
+
+    /**
+     * Re-encodes the formatted message between the position and the limit of the specified buffer in the specified
+     * framing without decoding its payload. The buffer's position is not changed.
+     *
+     * @param buffer      - buffer containing a formatted message in either framing
+     * @param wireVersion - {@link #WIRE_LEGACY} or {@link #WIRE_V2}
+     * @return a formatted byte array, or <code>null</code> if the buffer does not contain a formatted message or holds
+     *         a fragment that cannot be expressed in the legacy framing
+     */
+    public static byte [ ] reframe( final ByteBuffer buffer, final int wireVersion )
+    {
+        final int type = peekType( buffer );
+        final int flags = peekFlags( buffer );
+
+        if ( type < 0 || wireVersion != WIRE_V2 && ( flags & FLAG_FRAGMENT ) != 0 )
         {
-            result[ i ] = payload[ i - prefixLength ];
+            return null;
         }
 
+        final int payloadOffset = buffer.position() + headerLength( peekVersion( buffer ) );
+        final int payloadLength = payloadLength( buffer );
+        final int headerLength = headerLength( wireVersion );
+        final byte [ ] result = new byte [ headerLength + payloadLength ];
+
+        writeHeader( result, 0, type, flags, payloadLength, wireVersion );
+
+        final ByteBuffer source = buffer.duplicate();
+        source.position( payloadOffset );
+        source.get( result, headerLength, payloadLength );
+
         return result;
     }
 
@@ -172,20 +374,228 @@ public class Message implements Serializable
      */
     public static Message parseFormattedMessage( final byte [ ] formattedMessage )
     {
-        if ( formattedMessage.length >= 3 )
+        return parseFormattedMessage( formattedMessage, 0, formattedMessage.length );
+    }
+
+    /**
+     * Parses the specified region of a byte array into a message object.
+     *
+     * @param data   - array containing a formatted message produced by {@link #getFormattedMessage()}
+     * @param offset - start of the formatted message in the array
+     * @param length - length of the formatted message
+     * @return a message based on the specified formatted message
+     */
+    public static Message parseFormattedMessage( final byte [ ] data, final int offset, final int length )
+    {
+        return parseFormattedMessage( ByteBuffer.wrap( data, offset, length ) );
+    }
+
+    /**
+     * Parses the formatted message between the position and the limit of the specified buffer into a message object.
+     * The buffer's position is not changed.
+     *
+     * @param buffer - buffer containing a formatted message produced by {@link #getFormattedMessage()}
+     * @return a message based on the specified formatted message
+     */
+    public static Message parseFormattedMessage( final ByteBuffer buffer )
+    {
+        final int type = peekType( buffer );
+
+        if ( type >= 0 )
         {
-            final int type = Integer
-                    .parseInt( new String( new byte [ ] { formattedMessage[ 0 ], formattedMessage[ 1 ] } ) );
-            final byte [ ] payload = new byte [ formattedMessage.length - 3 ];
+            final byte [ ] payload = new byte [ payloadLength( buffer ) ];
 
-            for ( int i = 0; i < payload.length; i++ )
-            {
-                payload[ i ] = formattedMessage[ i + 3 ];
-            }
+            final ByteBuffer source = buffer.duplicate();
+            source.position( buffer.position() + headerLength( peekVersion( buffer ) ) );
+            source.get( payload );
 
             return new Message( type, payload );
         }
         return new Message( 0, new byte [ 0 ] );
     }
 
+    /**
+     * Reads the framing of the formatted message between the position and the limit of the specified buffer.
+     *
+     * @param buffer - buffer containing a formatted message
+     * @return {@link #WIRE_V2} if the message starts with the binary version byte, {@link #WIRE_LEGACY} otherwise
+     */
+    public static int peekVersion( final ByteBuffer buffer )
+    {
+        return buffer.hasRemaining() && buffer.get( buffer.position() ) == WIRE_V2 ? WIRE_V2 : WIRE_LEGACY;
+    }
+
+    /**
+     * Reads the flags of the formatted message between the position and the limit of the specified buffer.
+     *
+     * @param buffer - buffer containing a formatted message
+     * @return flags such as {@link #FLAG_FRAGMENT}, always 0 for the legacy framing
+     */
+    public static int peekFlags( final ByteBuffer buffer )
+    {
+        if ( peekVersion( buffer ) != WIRE_V2 || buffer.remaining() < HEADER_LENGTH_V2 )
+        {
+            return 0;
+        }
+        return buffer.get( buffer.position() + 2 ) & 0xFF;
+    }
+
+    /**
+     * Reads the type of the formatted message between the position and the limit of the specified buffer without
+     * decoding the rest of it or changing the buffer's position.
+     *
+     * @param buffer - buffer containing a formatted message produced by {@link #getFormattedMessage()}
+     * @return the type of the message, or -1 if the buffer does not contain a formatted message
+     */
+    public static int peekType( final ByteBuffer buffer )
+    {
+        final int offset = buffer.position();
+
+        if ( peekVersion( buffer ) == WIRE_V2 )
+        {
+            if ( buffer.remaining() < HEADER_LENGTH_V2
+                    || ( buffer.getShort( offset + 3 ) & 0xFFFF ) > buffer.remaining() - HEADER_LENGTH_V2 )
+            {
+                return -1;
+            }
+
+            return buffer.get( offset + 1 ) & 0xFF;
+        }
+
+        if ( buffer.remaining() < HEADER_LENGTH_LEGACY )
+        {
+            return -1;
+        }
+
+        final int tens = buffer.get( offset ) - '0';
+        final int ones = buffer.get( offset + 1 ) - '0';
+
+        if ( tens < 0 || tens > 9 || ones < 0 || ones > 9 || buffer.get( offset + 2 ) != '/' )
+        {
+            return -1;
+        }
+
+        return tens * 10 + ones;
+    }
+
+    /**
+     * Reads the type of the formatted message in the specified region of a byte array without decoding the rest of
+     * it.
+     *
+     * @param data   - array containing a formatted message produced by {@link #getFormattedMessage()}
+     * @param offset - start of the formatted message in the array
+     * @param length - length of the formatted message
+     * @return the type of the message, or -1 if the region does not contain a formatted message
+     */
+    public static int peekType( final byte [ ] data, final int offset, final int length )
+    {
+        return peekType( ByteBuffer.wrap( data, offset, length ) );
+    }
+
+    /**
+     * Returns the length of the payload of the valid formatted message between the position and the limit of the
+     * specified buffer.
+     *
+     * @param buffer - buffer containing a formatted message
+     * @return the length of the payload in bytes
+     */
+    private static int payloadLength( final ByteBuffer buffer )
+    {
+        if ( peekVersion( buffer ) == WIRE_V2 )
+        {
+            return buffer.getShort( buffer.position() + 3 ) & 0xFFFF;
+        }
+        return buffer.remaining() - HEADER_LENGTH_LEGACY;
+    }
+
+    /**
+     * Returns the length of the header of the specified framing.
+     *
+     * @param wireVersion - {@link #WIRE_LEGACY} or {@link #WIRE_V2}
+     * @return the length of the header in bytes
+     */
+    private static int headerLength( final int wireVersion )
+    {
+        return wireVersion == WIRE_V2 ? HEADER_LENGTH_V2 : HEADER_LENGTH_LEGACY;
+    }
+
+    /**
+     * Writes a header of the specified framing into the specified array.
+     *
+     * @param target        - array the header is written to
+     * @param offset        - start of the header in the array
+     * @param type          - type of the message
+     * @param flags         - flags of the message, ignored by the legacy framing
+     * @param payloadLength - length of the payload following the header
+     * @param wireVersion   - {@link #WIRE_LEGACY} or {@link #WIRE_V2}
+     */
+    private static void writeHeader( final byte [ ] target, final int offset, final int type, final int flags,
+            final int payloadLength, final int wireVersion )
+    {
+        if ( wireVersion == WIRE_V2 )
+        {
+            target[ offset ] = WIRE_V2;
+            target[ offset + 1 ] = (byte) type;
+            target[ offset + 2 ] = (byte) flags;
+            target[ offset + 3 ] = (byte) ( payloadLength >>> 8 );
+            target[ offset + 4 ] = (byte) payloadLength;
+        }
+        else
+        {
+            target[ offset ] = (byte) ( '0' + type / 10 );
+            target[ offset + 1 ] = (byte) ( '0' + type % 10 );
+            target[ offset + 2 ] = '/';
+        }
+    }
+
+    /**
+     * Encodes the specified capability bits as a suffix of a LOGIN payload.
+     *
+     * @param capabilities - capability bits
+     * @return the encoded suffix, empty if no capabilities are set
+     */
+    private static String encodeCapabilities( final int capabilities )
+    {
+        if ( capabilities == 0 )
+        {
+            return "";
+        }
+
+        final StringBuilder suffix = new StringBuilder().append( CAPABILITY_SEPARATOR );
+
+        /* Bit n is sent as the character n + 1, keeping every character below the space that trim() removes. */
+        for ( int bit = 0; bit < 31; bit++ )
+        {
+            if ( ( capabilities & 1 << bit ) != 0 )
+            {
+                suffix.append( (char) ( bit + 1 ) );
+            }
+        }
+
+        return suffix.toString();
+    }
+
+    /**
+     * Decodes the capability bits encoded by {@link #encodeCapabilities(int)}.
+     *
+     * @param payload - the LOGIN payload
+     * @param start   - index of the first capability character
+     * @return the capability bits
+     */
+    private static int decodeCapabilities( final String payload, final int start )
+    {
+        int capabilities = 0;
+
+        for ( int i = start; i < payload.length(); i++ )
+        {
+            final int bit = payload.charAt( i ) - 1;
+
+            if ( bit >= 0 && bit < 31 )
+            {
+                capabilities |= 1 << bit;
+            }
+        }
+
+        return capabilities;
+    }
 }
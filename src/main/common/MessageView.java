@@ -0,0 +1,306 @@
+package main.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable, read-only view of a formatted message in a buffer. Only the header is read when the view is positioned
+ * on a message, while the username and the text of the payload are decoded on first use. A view is not thread-safe and
+ * is only valid until the underlying buffer is reused.
+ *
+ * @author Lauri Halla-aho
+ */
+public class MessageView
+{
+    private ByteBuffer buffer;
+    private int type = -1;
+    private int wireVersion;
+    private int payloadStart;
+    private int payloadEnd;
+
+    private boolean decoded;
+    private String username;
+    private String message;
+    private int capabilities;
+
+    /**
+     * Array the text of a payload in a direct buffer is copied to before decoding, grown as needed.
+     */
+    private byte [ ] scratch = new byte [ 0 ];
+
+    /**
+     * Positions this view on the formatted message between the position and the limit of the specified buffer. The
+     * buffer's position is not changed.
+     *
+     * @param buffer - buffer containing a formatted message in either framing
+     * @return this view
+     */
+    public MessageView wrap( final ByteBuffer buffer )
+    {
+        this.buffer = buffer;
+        type = Message.peekType( buffer );
+        wireVersion = Message.peekVersion( buffer );
+
+        if ( type < 0 )
+        {
+            payloadStart = payloadEnd = buffer.position();
+        }
+        else if ( wireVersion == Message.WIRE_V2 )
+        {
+            payloadStart = buffer.position() + Message.HEADER_LENGTH_V2;
+            payloadEnd = payloadStart + ( buffer.getShort( buffer.position() + 3 ) & 0xFFFF );
+        }
+        else
+        {
+            payloadStart = buffer.position() + Message.HEADER_LENGTH_LEGACY;
+            payloadEnd = buffer.limit();
+        }
+
+        decoded = false;
+        username = null;
+        message = null;
+        capabilities = 0;
+
+        return this;
+    }
+
+    /**
+     * Returns the type of the viewed message.
+     *
+     * @return the type of the viewed message, or -1 if the buffer does not contain a formatted message
+     */
+    public int getType()
+    {
+        return type;
+    }
+
+    /**
+     * Returns the framing of the viewed message.
+     *
+     * @return {@link Message#WIRE_LEGACY} or {@link Message#WIRE_V2}
+     */
+    public int getWireVersion()
+    {
+        return wireVersion;
+    }
+
+    /**
+     * Returns the length of the payload of the viewed message.
+     *
+     * @return the length of the payload in bytes
+     */
+    public int getPayloadLength()
+    {
+        return payloadEnd - payloadStart;
+    }
+
+    /**
+     * Returns the username of the sender of the viewed message or an affected party, decoded on first use.
+     *
+     * @return the username, <code>null</code> if the type of the message carries none
+     * @see Message#getUsername()
+     */
+    public String getUsername()
+    {
+        decode();
+        return username;
+    }
+
+    /**
+     * Returns the text of the viewed message, decoded on first use.
+     *
+     * @return the text of the message, <code>null</code> if the type of the message carries none
+     * @see Message#getMessage()
+     */
+    public String getMessage()
+    {
+        decode();
+        return message;
+    }
+
+    /**
+     * Returns the capabilities advertised in a viewed LOGIN or PEER_AVAILABLE message.
+     *
+     * @return capability bits such as {@link Message#CAP_WIRE_V2}, 0 if none were advertised
+     * @see Message#getCapabilities()
+     */
+    public int getCapabilities()
+    {
+        decode();
+        return capabilities;
+    }
+
+    /**
+     * Returns a copy of the viewed message that remains valid after the buffer has been reused.
+     *
+     * @return a message with the type and payload of the viewed message
+     */
+    public Message toMessage()
+    {
+        if ( type < 0 )
+        {
+            return new Message( 0, new byte [ 0 ] );
+        }
+
+        final byte [ ] payload = new byte [ getPayloadLength() ];
+
+        for ( int i = 0; i < payload.length; i++ )
+        {
+            payload[ i ] = buffer.get( payloadStart + i );
+        }
+
+        return new Message( type, payload );
+    }
+
+    /**
+     * Decodes the fields carried by the type of the viewed message, splitting the payload on the byte level so that
+     * each field is decoded into a string exactly once.
+     */
+    private void decode()
+    {
+        if ( decoded )
+        {
+            return;
+        }
+        decoded = true;
+
+        switch ( type )
+        {
+            case Message.LOGIN:
+            case Message.LOGOUT:
+            case Message.PEER_AVAILABLE:
+                final int separator = indexOf( Message.CAPABILITY_SEPARATOR, payloadStart, payloadEnd );
+
+                if ( separator < 0 )
+                {
+                    username = decodeTrimmed( payloadStart, payloadEnd );
+                }
+                else
+                {
+                    username = decodeTrimmed( payloadStart, separator );
+
+                    for ( int i = separator + 1; i < payloadEnd; i++ )
+                    {
+                        final int bit = buffer.get( i ) - 1;
+
+                        if ( bit >= 0 && bit < 31 )
+                        {
+                            capabilities |= 1 << bit;
+                        }
+                    }
+                }
+                break;
+            case Message.PEER_LEFT:
+                message = decodeTrimmed( payloadStart, payloadEnd );
+                break;
+            case Message.NEW_PEER:
+            case Message.MSG_CHAT_CMD:
+                final int start = skipWhitespace( payloadStart, payloadEnd );
+                final int end = trimWhitespace( start, payloadEnd );
+                final int slash = indexOf( '/', start, end );
+
+                if ( slash >= 0 )
+                {
+                    username = decode( start, slash );
+                    message = decode( slash + 1, end );
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns the index of the first occurrence of the specified ASCII character in the specified range of the buffer.
+     *
+     * @param ch   - an ASCII character
+     * @param from - start of the range, inclusive
+     * @param to   - end of the range, exclusive
+     * @return the index of the character, or -1 if not found
+     */
+    private int indexOf( final char ch, final int from, final int to )
+    {
+        for ( int i = from; i < to; i++ )
+        {
+            if ( buffer.get( i ) == ch )
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the index of the first byte in the specified range that is not removed by {@link String#trim()}.
+     *
+     * @param from - start of the range, inclusive
+     * @param to   - end of the range, exclusive
+     * @return the index of the first byte to keep, <code>to</code> if there is none
+     */
+    private int skipWhitespace( final int from, final int to )
+    {
+        int i = from;
+        while ( i < to && ( buffer.get( i ) & 0xFF ) <= ' ' )
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Returns the end of the specified range without the trailing bytes removed by {@link String#trim()}.
+     *
+     * @param from - start of the range, inclusive
+     * @param to   - end of the range, exclusive
+     * @return the exclusive end of the bytes to keep
+     */
+    private int trimWhitespace( final int from, final int to )
+    {
+        int i = to;
+        while ( i > from && ( buffer.get( i - 1 ) & 0xFF ) <= ' ' )
+        {
+            i--;
+        }
+        return i;
+    }
+
+    /**
+     * Decodes the specified range of the buffer without its leading and trailing whitespace.
+     *
+     * @param from - start of the range, inclusive
+     * @param to   - end of the range, exclusive
+     * @return the decoded string
+     */
+    private String decodeTrimmed( final int from, final int to )
+    {
+        final int start = skipWhitespace( from, to );
+        return decode( start, trimWhitespace( start, to ) );
+    }
+
+    /**
+     * Decodes the specified range of the buffer as UTF-8.
+     *
+     * @param from - start of the range, inclusive
+     * @param to   - end of the range, exclusive
+     * @return the decoded string
+     */
+    private String decode( final int from, final int to )
+    {
+        if ( buffer.hasArray() )
+        {
+            return new String( buffer.array(), buffer.arrayOffset() + from, to - from, StandardCharsets.UTF_8 );
+        }
+
+        if ( scratch.length < to - from )
+        {
+            scratch = new byte [ to - from ];
+        }
+
+        for ( int i = from; i < to; i++ )
+        {
+            scratch[ i - from ] = buffer.get( i );
+        }
+
+        return new String( scratch, 0, to - from, StandardCharsets.UTF_8 );
+    }
+}
@@ -0,0 +1,230 @@
+package main.common;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Reassembles messages split into {@link Message#FLAG_FRAGMENT} frames. Incomplete messages are discarded after a
+ * timeout, and the fragments buffered for each sender are limited to a memory budget so that a sender cannot exhaust
+ * the memory of the receiver. Not thread-safe, meant to be used by a single receiving thread.
+ *
+ * @author Lauri Halla-aho
+ */
+public class Reassembler
+{
+    public static final int DEFAULT_BUDGET = 256 * 1024;
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    /**
+     * Maximum number of fragments of a single message.
+     */
+    public static final int MAX_FRAGMENTS = 256;
+
+    private final int budget;
+    private final long timeout;
+
+    private final Map < SocketAddress, Map < Integer, Partial > > senders = new HashMap <>();
+    private final Map < SocketAddress, Integer > buffered = new HashMap <>();
+
+    private long dropCount = 0;
+
+    /**
+     * Constructs a reassembler with the default memory budget and timeout.
+     */
+    public Reassembler()
+    {
+        this( DEFAULT_BUDGET, DEFAULT_TIMEOUT );
+    }
+
+    /**
+     * Constructs a reassembler with the specified memory budget and timeout.
+     *
+     * @param budget  - maximum number of payload bytes buffered per sender
+     * @param timeout - time in milliseconds an incomplete message is kept after its first fragment arrived
+     */
+    public Reassembler( final int budget, final long timeout )
+    {
+        this.budget = budget;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Buffers the fragment between the position and the limit of the specified buffer. The buffer's position is not
+     * changed, and the fragment is copied so that the buffer may be reused.
+     *
+     * @param sender - the endpoint the fragment was received from
+     * @param buffer - buffer containing a {@link Message#FLAG_FRAGMENT} frame
+     * @param now    - current time in milliseconds
+     * @return the reassembled message if this was its last missing fragment, <code>null</code> otherwise
+     */
+    public Message accept( final SocketAddress sender, final ByteBuffer buffer, final long now )
+    {
+        expire( now );
+
+        final int type = Message.peekType( buffer );
+        final int start = buffer.position() + Message.HEADER_LENGTH_V2;
+        final int length = ( buffer.getShort( buffer.position() + 3 ) & 0xFFFF ) - Message.FRAGMENT_HEADER_LENGTH;
+
+        if ( type < 0 || length < 0 || ( Message.peekFlags( buffer ) & Message.FLAG_FRAGMENT ) == 0 )
+        {
+            dropCount++;
+            return null;
+        }
+
+        final int messageId = buffer.getInt( start );
+        final int index = buffer.getShort( start + 4 ) & 0xFFFF;
+        final int count = buffer.getShort( start + 6 ) & 0xFFFF;
+
+        if ( count == 0 || count > MAX_FRAGMENTS || index >= count )
+        {
+            dropCount++;
+            return null;
+        }
+
+        final int used = buffered.getOrDefault( sender, 0 );
+
+        if ( used + length > budget )
+        {
+            dropCount++;
+            return null;
+        }
+
+        final Map < Integer, Partial > partials = senders.computeIfAbsent( sender, s -> new HashMap <>() );
+        Partial partial = partials.get( messageId );
+
+        if ( partial == null )
+        {
+            partial = new Partial( type, count, now );
+            partials.put( messageId, partial );
+        }
+        else if ( partial.type != type || partial.fragments.length != count )
+        {
+            dropCount++;
+            return null;
+        }
+
+        if ( partial.fragments[ index ] != null )
+        {
+            return null;
+        }
+
+        final byte [ ] fragment = new byte [ length ];
+        final ByteBuffer source = buffer.duplicate();
+        source.position( start + Message.FRAGMENT_HEADER_LENGTH );
+        source.get( fragment );
+
+        partial.fragments[ index ] = fragment;
+        partial.length += length;
+        partial.received++;
+        buffered.put( sender, used + length );
+
+        if ( partial.received < count )
+        {
+            return null;
+        }
+
+        remove( sender, messageId );
+
+        final byte [ ] payload = new byte [ partial.length ];
+        int offset = 0;
+
+        for ( final byte [ ] part : partial.fragments )
+        {
+            System.arraycopy( part, 0, payload, offset, part.length );
+            offset += part.length;
+        }
+
+        return new Message( type, payload );
+    }
+
+    /**
+     * Discards the incomplete messages whose first fragment arrived longer than the timeout ago.
+     *
+     * @param now - current time in milliseconds
+     */
+    public void expire( final long now )
+    {
+        final Iterator < Map.Entry < SocketAddress, Map < Integer, Partial > > > senderIterator = senders.entrySet()
+                .iterator();
+
+        while ( senderIterator.hasNext() )
+        {
+            final Map.Entry < SocketAddress, Map < Integer, Partial > > entry = senderIterator.next();
+            final Iterator < Partial > partialIterator = entry.getValue().values().iterator();
+
+            while ( partialIterator.hasNext() )
+            {
+                final Partial partial = partialIterator.next();
+
+                if ( now - partial.firstSeen > timeout )
+                {
+                    partialIterator.remove();
+                    buffered.merge( entry.getKey(), -partial.length, Integer::sum );
+                    dropCount++;
+                }
+            }
+
+            if ( entry.getValue().isEmpty() )
+            {
+                senderIterator.remove();
+                buffered.remove( entry.getKey() );
+            }
+        }
+    }
+
+    /**
+     * Returns the number of fragments and incomplete messages discarded because they were invalid, exceeded the
+     * memory budget or timed out.
+     *
+     * @return the number of discarded fragments and messages
+     */
+    public long getDropCount()
+    {
+        return dropCount;
+    }
+
+    /**
+     * Removes the specified message from the buffers of the specified sender.
+     *
+     * @param sender    - the endpoint the message was received from
+     * @param messageId - id of the message
+     */
+    private void remove( final SocketAddress sender, final int messageId )
+    {
+        final Map < Integer, Partial > partials = senders.get( sender );
+        final Partial partial = partials.remove( messageId );
+
+        if ( partials.isEmpty() )
+        {
+            senders.remove( sender );
+            buffered.remove( sender );
+        }
+        else
+        {
+            buffered.merge( sender, -partial.length, Integer::sum );
+        }
+    }
+
+    /**
+     * The fragments of a message received so far.
+     */
+    private static final class Partial
+    {
+        private final int type;
+        private final byte [ ] [ ] fragments;
+        private final long firstSeen;
+
+        private int received = 0;
+        private int length = 0;
+
+        private Partial( final int type, final int count, final long firstSeen )
+        {
+            this.type = type;
+            this.fragments = new byte [ count ] [ ];
+            this.firstSeen = firstSeen;
+        }
+    }
+}
@@ -0,0 +1,544 @@
+package main.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Reliable, ordered delivery of {@link Message#WIRE_V2} frames over one leg between a client and the server. Sent
+ * frames are numbered and kept in a sliding window until acknowledged, and retransmitted after a timeout derived from
+ * the measured round-trip time. Received frames are acknowledged with the next expected sequence number and a bitmap
+ * of the frames received beyond it, and handed out in order. Thread-safe. Frames are handed to the transmitter only
+ * after the channel's lock has been released, so a transmitter waiting for space in a send queue never holds up a
+ * thread draining that queue on its way into the channel.
+ * <p>
+ * A peer that stops acknowledging cannot make the channel hold on to frames without bounds: frames waiting for room in
+ * the window are dropped once {@link #MAX_BACKLOG} of them are queued, and the channel fails once a frame has been
+ * resent {@link #MAX_RETRANSMISSIONS} times, dropping everything it holds and every frame sent after that.
+ *
+ * @author Lauri Halla-aho
+ */
+public class ReliableChannel
+{
+    /**
+     * Sends a frame produced by the channel to the other end of the leg.
+     */
+    @FunctionalInterface
+    public interface Transmitter
+    {
+        /**
+         * Sends the specified formatted frame.
+         *
+         * @param frame - the formatted frame
+         */
+        void transmit( byte [ ] frame );
+    }
+
+    /**
+     * Maximum number of unacknowledged frames, also the number of frames buffered ahead of a missing one.
+     */
+    public static final int WINDOW = 64;
+
+    public static final long INITIAL_RTO = 1000;
+    public static final long MIN_RTO = 200;
+    public static final long MAX_RTO = 8000;
+
+    /**
+     * Maximum number of frames waiting for room in the window.
+     */
+    public static final int MAX_BACKLOG = 1024;
+
+    /**
+     * Number of times a frame is resent before the other end is given up on.
+     */
+    public static final int MAX_RETRANSMISSIONS = 10;
+
+    private static final int MASK = WINDOW - 1;
+
+    private final Transmitter transmitter;
+
+    /* Sending side. */
+    private final Pending [ ] inFlight = new Pending [ WINDOW ];
+    private final ArrayDeque < byte [ ] > backlog = new ArrayDeque <>();
+    private int sendBase = 0;
+    private int nextSeq = 0;
+
+    private long srtt = -1;
+    private long rttvar = 0;
+    private long rto = INITIAL_RTO;
+
+    private long retransmitCount = 0;
+    private long droppedCount = 0;
+    private boolean failed = false;
+
+    /* Frames to be transmitted once the lock is released, in the order they were produced. Guarded by this. */
+    private final ArrayDeque < byte [ ] > outbox = new ArrayDeque <>();
+
+    /* Receiving side. */
+    private final byte [ ] [ ] outOfOrder = new byte [ WINDOW ] [ ];
+    private int expected = 0;
+
+    /**
+     * Constructs a channel sending its frames through the specified transmitter.
+     *
+     * @param transmitter - sends the numbered frames and acknowledgements
+     */
+    public ReliableChannel( final Transmitter transmitter )
+    {
+        this.transmitter = transmitter;
+    }
+
+    /**
+     * Numbers and sends the specified frame, or queues it until the window has room.
+     *
+     * @param frame - a formatted {@link Message#WIRE_V2} frame of at most {@link Message#MAX_FRAME_LENGTH} bytes
+     * @param now   - current time in milliseconds
+     * @return <code>false</code> if the frame was dropped, as the backlog is full or the channel has failed
+     */
+    public boolean send( final byte [ ] frame, final long now )
+    {
+        synchronized ( this )
+        {
+            if ( failed || backlog.size() >= MAX_BACKLOG )
+            {
+                droppedCount++;
+                return false;
+            }
+
+            if ( backlog.isEmpty() && nextSeq - sendBase < WINDOW )
+            {
+                transmitNew( frame, now );
+            }
+            else
+            {
+                backlog.add( frame );
+            }
+        }
+
+        flush();
+        return true;
+    }
+
+    /**
+     * Handles the {@link Message#FLAG_RELIABLE} frame between the position and the limit of the specified buffer and
+     * acknowledges it. The sequence number is removed from the frame in place, moving the buffer's position. A frame
+     * arriving ahead of a missing one is copied and handed out by {@link #pollReady()} once the gap has been filled.
+     *
+     * @param buffer - buffer containing a numbered frame
+     * @return <code>true</code> if the frame is the next one in order and should be handled now, <code>false</code>
+     *         if it was buffered, was a duplicate or is too short to carry a sequence number
+     */
+    public boolean receive( final ByteBuffer buffer )
+    {
+        /* Truncated frames are dropped unacknowledged, as they carry no sequence number to acknowledge. */
+        if ( !isNumbered( buffer ) )
+        {
+            return false;
+        }
+
+        boolean inOrder = false;
+
+        synchronized ( this )
+        {
+            final int seq = strip( buffer );
+            final int distance = seq - expected;
+
+            if ( distance == 0 )
+            {
+                expected++;
+                inOrder = true;
+            }
+            else if ( distance > 0 && distance < WINDOW && outOfOrder[ seq & MASK ] == null )
+            {
+                final byte [ ] copy = new byte [ buffer.remaining() ];
+                buffer.duplicate().get( copy );
+                outOfOrder[ seq & MASK ] = copy;
+            }
+
+            /* Duplicates and frames beyond the window are only acknowledged, so the sender learns what is missing. */
+            acknowledge();
+        }
+
+        flush();
+        return inOrder;
+    }
+
+    /**
+     * Returns the next buffered frame whose predecessors have all been handed out.
+     *
+     * @return a formatted frame without its sequence number, <code>null</code> if the next frame has not arrived
+     */
+    public synchronized byte [ ] pollReady()
+    {
+        final byte [ ] frame = outOfOrder[ expected & MASK ];
+
+        if ( frame != null )
+        {
+            outOfOrder[ expected & MASK ] = null;
+            expected++;
+        }
+
+        return frame;
+    }
+
+    /**
+     * Handles the {@link Message#ACK} frame between the position and the limit of the specified buffer, releasing the
+     * acknowledged frames and opening the window for queued ones.
+     *
+     * @param buffer - buffer containing an acknowledgement
+     * @param now    - current time in milliseconds
+     */
+    public void onAck( final ByteBuffer buffer, final long now )
+    {
+        if ( Message.peekType( buffer ) != Message.ACK || buffer.remaining() < Message.HEADER_LENGTH_V2 + 12 )
+        {
+            return;
+        }
+
+        synchronized ( this )
+        {
+            processAck( buffer.getInt( buffer.position() + Message.HEADER_LENGTH_V2 ),
+                    buffer.getLong( buffer.position() + Message.HEADER_LENGTH_V2 + 4 ), now );
+        }
+
+        flush();
+    }
+
+    /**
+     * Resends the frames whose retransmission timeout has passed. Should be called periodically.
+     *
+     * @param now - current time in milliseconds
+     */
+    public void retransmit( final long now )
+    {
+        synchronized ( this )
+        {
+            for ( int seq = sendBase; seq != nextSeq; seq++ )
+            {
+                final Pending pending = inFlight[ seq & MASK ];
+
+                if ( pending != null && pending.deadline <= now )
+                {
+                    if ( pending.attempts >= MAX_RETRANSMISSIONS )
+                    {
+                        fail();
+                        break;
+                    }
+
+                    /* Each frame backs off on its own, so that a single lost frame does not slow down the rest. */
+                    pending.timeout = Math.min( pending.timeout * 2, MAX_RTO );
+                    resend( pending, now );
+                }
+            }
+        }
+
+        flush();
+    }
+
+    /**
+     * Returns the current retransmission timeout.
+     *
+     * @return the retransmission timeout in milliseconds
+     */
+    public synchronized long getRto()
+    {
+        return rto;
+    }
+
+    /**
+     * Returns the number of frames sent but not yet acknowledged, including those waiting for room in the window.
+     *
+     * @return the number of unacknowledged frames
+     */
+    public synchronized int getUnacknowledged()
+    {
+        return nextSeq - sendBase + backlog.size();
+    }
+
+    /**
+     * Returns <code>true</code> if the other end stopped acknowledging the frames of this channel and was given up on.
+     *
+     * @return <code>true</code> if the channel has failed and drops every frame sent
+     */
+    public synchronized boolean isFailed()
+    {
+        return failed;
+    }
+
+    /**
+     * Returns the number of frames dropped by this channel without sending them.
+     *
+     * @return the number of frames dropped because the backlog was full or the channel had failed
+     */
+    public synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the number of frames resent by this channel.
+     *
+     * @return the number of retransmissions
+     */
+    public synchronized long getRetransmitCount()
+    {
+        return retransmitCount;
+    }
+
+    /**
+     * Releases the frames acknowledged cumulatively and selectively, resends the oldest frame if later ones have
+     * arrived without it and sends queued frames that fit in the window. Called with the lock held.
+     *
+     * @param cumulative - sequence number of the next frame expected by the other end
+     * @param selective  - bitmap of the frames received beyond the expected one
+     * @param now        - current time in milliseconds
+     */
+    private void processAck( final int cumulative, final long selective, final long now )
+    {
+        /* Ignore acknowledgements of frames never sent. */
+        if ( cumulative - sendBase < 0 || cumulative - nextSeq > 0 )
+        {
+            return;
+        }
+
+        for ( ; sendBase != cumulative; sendBase++ )
+        {
+            acknowledged( sendBase, now );
+        }
+
+        for ( int bit = 0; bit < 64 && cumulative + 1 + bit - nextSeq < 0; bit++ )
+        {
+            if ( ( selective & 1L << bit ) != 0 )
+            {
+                acknowledged( cumulative + 1 + bit, now );
+            }
+        }
+
+        /* Later frames have arrived while the oldest one has not, so it is most likely lost: resend it at once. */
+        final Pending oldest = inFlight[ sendBase & MASK ];
+
+        if ( selective != 0 && oldest != null && !oldest.fastRetransmitted )
+        {
+            oldest.fastRetransmitted = true;
+            resend( oldest, now );
+        }
+
+        while ( !backlog.isEmpty() && nextSeq - sendBase < WINDOW )
+        {
+            transmitNew( backlog.poll(), now );
+        }
+    }
+
+    /**
+     * Transmits the frames produced while the lock was held. Called without the lock, so several threads may flush at
+     * once, each transmitting the frames it takes.
+     */
+    private void flush()
+    {
+        while ( true )
+        {
+            final byte [ ] frame;
+
+            synchronized ( this )
+            {
+                frame = outbox.poll();
+            }
+
+            if ( frame == null )
+            {
+                return;
+            }
+            transmitter.transmit( frame );
+        }
+    }
+
+    /**
+     * Numbers the specified frame with the next sequence number and queues it for transmission.
+     *
+     * @param frame - a formatted frame
+     * @param now   - current time in milliseconds
+     */
+    private void transmitNew( final byte [ ] frame, final long now )
+    {
+        final int seq = nextSeq++;
+        final Pending pending = new Pending( stamp( frame, seq ), now, rto );
+
+        inFlight[ seq & MASK ] = pending;
+        outbox.add( pending.frame );
+    }
+
+    /**
+     * Queues the specified frame to be resent and restarts its timer.
+     *
+     * @param pending - a frame in flight
+     * @param now     - current time in milliseconds
+     */
+    private void resend( final Pending pending, final long now )
+    {
+        pending.retransmitted = true;
+        pending.attempts++;
+        pending.deadline = now + pending.timeout;
+        retransmitCount++;
+
+        outbox.add( pending.frame );
+    }
+
+    /**
+     * Releases the specified frame, updating the round-trip time estimate unless it was retransmitted.
+     *
+     * @param seq - sequence number of an acknowledged frame
+     * @param now - current time in milliseconds
+     */
+    private void acknowledged( final int seq, final long now )
+    {
+        final Pending pending = inFlight[ seq & MASK ];
+
+        if ( pending == null )
+        {
+            return;
+        }
+        inFlight[ seq & MASK ] = null;
+
+        /* Samples of retransmitted frames are ambiguous, as the acknowledgement may be for either copy. */
+        if ( pending.retransmitted )
+        {
+            return;
+        }
+
+        final long sample = now - pending.sentAt;
+
+        if ( srtt < 0 )
+        {
+            srtt = sample;
+            rttvar = sample / 2;
+        }
+        else
+        {
+            rttvar = ( 3 * rttvar + Math.abs( srtt - sample ) ) / 4;
+            srtt = ( 7 * srtt + sample ) / 8;
+        }
+
+        rto = Math.max( MIN_RTO, Math.min( MAX_RTO, srtt + 4 * rttvar ) );
+    }
+
+    /**
+     * Queues an acknowledgement of every frame received so far.
+     */
+    private void acknowledge()
+    {
+        /* Frames buffered right after the expected one are held already, so they are acknowledged cumulatively. */
+        int cumulative = expected;
+        while ( cumulative - expected < WINDOW && outOfOrder[ cumulative & MASK ] != null )
+        {
+            cumulative++;
+        }
+
+        long selective = 0;
+        for ( int bit = 0; bit < 64 && cumulative + 1 + bit - expected < WINDOW; bit++ )
+        {
+            if ( outOfOrder[ ( cumulative + 1 + bit ) & MASK ] != null )
+            {
+                selective |= 1L << bit;
+            }
+        }
+
+        final byte [ ] payload = ByteBuffer.allocate( 12 ).putInt( cumulative ).putLong( selective ).array();
+
+        outbox.add( new Message( Message.ACK, payload ).getFormattedMessage( Message.WIRE_V2 ) );
+    }
+
+    /**
+     * Gives up on the other end, dropping the frames in flight and waiting for room in the window.
+     */
+    private void fail()
+    {
+        failed = true;
+        droppedCount += nextSeq - sendBase + backlog.size();
+
+        Arrays.fill( inFlight, null );
+        backlog.clear();
+        sendBase = nextSeq;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified buffer holds a complete {@link Message#WIRE_V2} frame whose declared
+     * length leaves room for a sequence number.
+     *
+     * @param buffer - buffer containing a received frame
+     * @return <code>true</code> if the sequence number can be stripped from the frame
+     */
+    private static boolean isNumbered( final ByteBuffer buffer )
+    {
+        /* A valid type also means the declared length fits in the buffer. */
+        return Message.peekType( buffer ) >= 0 && Message.peekVersion( buffer ) == Message.WIRE_V2
+                && ( buffer.getShort( buffer.position() + 3 ) & 0xFFFF ) >= Message.RELIABLE_HEADER_LENGTH;
+    }
+
+    /**
+     * Returns a copy of the specified frame carrying the specified sequence number.
+     *
+     * @param frame - a formatted frame
+     * @param seq   - the sequence number
+     * @return the numbered frame
+     */
+    private static byte [ ] stamp( final byte [ ] frame, final int seq )
+    {
+        final ByteBuffer stamped = ByteBuffer.allocate( frame.length + Message.RELIABLE_HEADER_LENGTH );
+
+        stamped.put( frame, 0, Message.HEADER_LENGTH_V2 ).putInt( seq );
+        stamped.put( frame, Message.HEADER_LENGTH_V2, frame.length - Message.HEADER_LENGTH_V2 );
+
+        stamped.put( 2, (byte) ( frame[ 2 ] | Message.FLAG_RELIABLE ) );
+        stamped.putShort( 3, (short) ( stamped.capacity() - Message.HEADER_LENGTH_V2 ) );
+
+        return stamped.array();
+    }
+
+    /**
+     * Removes the sequence number from the numbered frame between the position and the limit of the specified buffer
+     * by moving the header over it.
+     *
+     * @param buffer - buffer containing a numbered frame
+     * @return the sequence number
+     */
+    private static int strip( final ByteBuffer buffer )
+    {
+        final int start = buffer.position();
+        final int seq = buffer.getInt( start + Message.HEADER_LENGTH_V2 );
+        final byte version = buffer.get( start );
+        final byte type = buffer.get( start + 1 );
+        final int flags = buffer.get( start + 2 ) & ~Message.FLAG_RELIABLE;
+        final int length = ( buffer.getShort( start + 3 ) & 0xFFFF ) - Message.RELIABLE_HEADER_LENGTH;
+
+        /* The moved header ends where the sequence number did, right before the payload. */
+        final int moved = start + Message.RELIABLE_HEADER_LENGTH;
+        buffer.put( moved, version ).put( moved + 1, type ).put( moved + 2, (byte) flags );
+        buffer.putShort( moved + 3, (short) length );
+
+        buffer.position( moved );
+
+        return seq;
+    }
+
+    /**
+     * A numbered frame waiting for its acknowledgement.
+     */
+    private static final class Pending
+    {
+        private final byte [ ] frame;
+        private final long sentAt;
+        private long timeout;
+        private long deadline;
+        private boolean retransmitted = false;
+        private boolean fastRetransmitted = false;
+        private int attempts = 0;
+
+        private Pending( final byte [ ] frame, final long sentAt, final long timeout )
+        {
+            this.frame = frame;
+            this.sentAt = sentAt;
+            this.timeout = timeout;
+            deadline = sentAt + timeout;
+        }
+    }
+}
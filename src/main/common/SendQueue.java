@@ -0,0 +1,291 @@
+package main.common;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of outbound datagrams drained in batches by a single writer.
+ *
+ * @author Lauri Halla-aho
+ */
+public class SendQueue implements Runnable
+{
+    /**
+     * Callers wait for free space when the queue is full.
+     */
+    public static final int POLICY_BLOCK = 0;
+
+    /**
+     * Datagrams offered to a full queue are dropped and counted.
+     */
+    public static final int POLICY_DROP = 1;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Maximum number of datagrams taken from the queue at once.
+     */
+    public static final int BATCH_SIZE = 64;
+
+    private final BlockingQueue < Datagram > queue;
+    private final int capacity;
+    private final int policy;
+
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private DatagramSocket socket;
+    private Thread writer;
+    private volatile boolean running = false;
+
+    private Runnable wakeup;
+
+    /**
+     * Constructs a send queue with the specified capacity and overflow policy.
+     *
+     * @param capacity - maximum number of queued datagrams
+     * @param policy   - {@link #POLICY_BLOCK} or {@link #POLICY_DROP}
+     */
+    public SendQueue( final int capacity, final int policy )
+    {
+        this.capacity = capacity;
+        this.policy = policy;
+        queue = new ArrayBlockingQueue <>( capacity );
+    }
+
+    /**
+     * Starts a dedicated writer thread that sends the queued datagrams through the specified socket.
+     *
+     * @param socket - the socket the datagrams are sent through
+     */
+    public void start( final DatagramSocket socket )
+    {
+        this.socket = socket;
+        running = true;
+
+        writer = new Thread( this, "Message Sender" );
+        writer.start();
+    }
+
+    /**
+     * Sets the action run after a datagram has been queued, used by event loops that drain the queue themselves
+     * instead of starting a writer thread.
+     *
+     * @param wakeup - action notifying the consumer of this queue
+     */
+    public void setWakeup( final Runnable wakeup )
+    {
+        this.wakeup = wakeup;
+    }
+
+    /**
+     * Queues the specified datagram according to the overflow policy of this queue. The queue takes ownership of the
+     * datagram and releases it once it has been sent or dropped.
+     *
+     * @param datagram - datagram to be sent
+     * @return <code>true</code> if the datagram was queued, <code>false</code> if it was dropped
+     */
+    public boolean offer( final Datagram datagram )
+    {
+        return offer( datagram, true );
+    }
+
+    /**
+     * Queues the specified datagram according to the overflow policy of this queue.
+     *
+     * @param datagram - datagram to be sent
+     * @param mayBlock - <code>false</code> if the caller must never wait for space, such as an event loop draining
+     *                 this or another queue
+     * @return <code>true</code> if the datagram was queued, <code>false</code> if it was dropped
+     */
+    public boolean offer( final Datagram datagram, final boolean mayBlock )
+    {
+        boolean queued;
+
+        if ( policy == POLICY_BLOCK && mayBlock )
+        {
+            try
+            {
+                queue.put( datagram );
+                queued = true;
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        }
+        else
+        {
+            queued = queue.offer( datagram );
+        }
+
+        if ( !queued )
+        {
+            dropCount.incrementAndGet();
+            datagram.release();
+        }
+        else if ( wakeup != null )
+        {
+            wakeup.run();
+        }
+
+        return queued;
+    }
+
+    /**
+     * Releases a datagram taken from this queue that could not be sent, counting it as dropped.
+     *
+     * @param datagram - datagram taken from this queue
+     */
+    public void discard( final Datagram datagram )
+    {
+        dropCount.incrementAndGet();
+        datagram.release();
+    }
+
+    /**
+     * Moves at most {@link #BATCH_SIZE} queued datagrams to the specified collection. The caller becomes responsible
+     * for releasing them once sent.
+     *
+     * @param batch - collection the datagrams are moved to
+     * @return the number of datagrams moved
+     */
+    public int drainTo( final Collection < ? super Datagram > batch )
+    {
+        return queue.drainTo( batch, BATCH_SIZE );
+    }
+
+    /**
+     * Returns the number of datagrams currently waiting in this queue.
+     *
+     * @return the number of datagrams currently waiting in this queue
+     */
+    public int getDepth()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Returns the maximum number of datagrams this queue can hold.
+     *
+     * @return the maximum number of datagrams this queue can hold
+     */
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * Returns the overflow policy of this queue.
+     *
+     * @return {@link #POLICY_BLOCK} or {@link #POLICY_DROP}
+     */
+    public int getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Returns the number of datagrams dropped because this queue was full.
+     *
+     * @return the number of dropped datagrams
+     */
+    public long getDropCount()
+    {
+        return dropCount.get();
+    }
+
+    @Override
+    public void run()
+    {
+        final List < Datagram > batch = new ArrayList <>( BATCH_SIZE );
+        final DatagramPacket packet = new DatagramPacket( new byte [ 0 ], 0 );
+        byte [ ] scratch = new byte [ 0 ];
+
+        /* Keep writing until the queue has been emptied after closing, so that farewell messages are not lost. */
+        while ( running || !queue.isEmpty() )
+        {
+            try
+            {
+                final Datagram first = queue.poll( 100, TimeUnit.MILLISECONDS );
+
+                if ( first == null )
+                {
+                    continue;
+                }
+
+                batch.add( first );
+                queue.drainTo( batch, BATCH_SIZE - 1 );
+            }
+            catch ( final InterruptedException e )
+            {
+                continue;
+            }
+
+            for ( final Datagram datagram : batch )
+            {
+                final ByteBuffer data = datagram.getData();
+
+                if ( data.hasArray() )
+                {
+                    packet.setData( data.array(), data.arrayOffset() + data.position(), data.remaining() );
+                }
+                else
+                {
+                    if ( scratch.length < data.remaining() )
+                    {
+                        scratch = new byte [ data.remaining() ];
+                    }
+
+                    final int length = data.remaining();
+                    data.duplicate().get( scratch, 0, length );
+                    packet.setData( scratch, 0, length );
+                }
+
+                packet.setSocketAddress( datagram.getTarget() );
+
+                try
+                {
+                    socket.send( packet );
+                }
+                catch ( final IOException e )
+                {
+                    e.printStackTrace();
+                }
+
+                datagram.release();
+            }
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Stops the writer thread after the datagrams already queued have been sent.
+     */
+    public void close()
+    {
+        running = false;
+
+        if ( writer != null )
+        {
+            try
+            {
+                writer.join( 1000 );
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package main.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.common.ClientInst;
+
+/**
+ * A thread-safe registry of the clients connected to the server, indexed by username and by remote endpoint.
+ *
+ * @author Lauri Halla-aho
+ */
+class ClientRegistry
+{
+    private final ConcurrentHashMap < String, ClientInst > byUsername = new ConcurrentHashMap <>();
+    private final ConcurrentHashMap < InetSocketAddress, ClientInst > byEndpoint = new ConcurrentHashMap <>();
+
+    /**
+     * Registers a client connecting from the specified endpoint with the requested username, or with a variation of
+     * it generated by appending a number if the username is already taken.
+     *
+     * @param username     - requested username
+     * @param address      - address of the connecting client
+     * @param port         - port number of the connecting client
+     * @param capabilities - capabilities advertised by the connecting client
+     * @return the registered client instance
+     */
+    ClientInst register( final String username, final InetAddress address, final int port, final int capabilities )
+    {
+        ClientInst client = new ClientInst( username, address, port, capabilities );
+
+        int ctr = 0;
+        while ( byUsername.putIfAbsent( client.getUsername(), client ) != null )
+        {
+            client = new ClientInst( username + ctr, address, port, capabilities );
+            ctr++;
+        }
+
+        byEndpoint.put( client.getEndpoint(), client );
+
+        return client;
+    }
+
+    /**
+     * Removes the specified client instance from this registry.
+     *
+     * @param client - a client instance to be removed
+     * @return <code>true</code> if the client instance was registered
+     */
+    boolean remove( final ClientInst client )
+    {
+        byEndpoint.remove( client.getEndpoint(), client );
+
+        return byUsername.remove( client.getUsername(), client );
+    }
+
+    /**
+     * Returns the client instance with the specified username.
+     *
+     * @param username - username of a client to be searched
+     * @return the client instance with the specified username, <code>null</code> if not connected
+     */
+    ClientInst get( final String username )
+    {
+        return byUsername.get( username );
+    }
+
+    /**
+     * Returns the client instance connected from the specified endpoint.
+     *
+     * @param address - address of a client to be searched
+     * @param port    - port number of a client to be searched
+     * @return the client instance connected from the specified endpoint, <code>null</code> if not connected
+     */
+    ClientInst get( final InetAddress address, final int port )
+    {
+        return byEndpoint.get( new InetSocketAddress( address, port ) );
+    }
+
+    /**
+     * Returns <code>true</code> if no connected client has the specified username.
+     *
+     * @param username - requested username
+     * @return <code>true</code> if the specified username is available
+     */
+    boolean isUsernameAvailable( final String username )
+    {
+        return !byUsername.containsKey( username );
+    }
+
+    /**
+     * Returns a live view of the connected clients that can be iterated while clients join and leave.
+     *
+     * @return the connected clients
+     */
+    Collection < ClientInst > getClients()
+    {
+        return byUsername.values();
+    }
+
+    /**
+     * Returns the number of connected clients.
+     *
+     * @return the number of connected clients
+     */
+    int size()
+    {
+        return byUsername.size();
+    }
+}
@@ -0,0 +1,156 @@
+package main.server;
+
+import java.net.InetAddress;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import main.common.ClientInst;
+
+/**
+ * Partitions the processing of clients onto single-threaded shards. Each client is assigned to the shard chosen by a
+ * stable hash of its address and port, and the messages it sends are processed in order on the thread of that shard.
+ * Decisions about a client of another shard, such as whether it may be joined, are posted to the mailbox of that shard
+ * as a task, so a shard never waits for another one. Outbound datagrams go through the thread-safe send queues and
+ * reliable channels, so forwarding a message to a client of another shard needs no extra hop.
+ * <p>
+ * The shards only serialize the processing of each client. The client registry, the lobby and the pair index are still
+ * shared by all shards and remain thread-safe, so their contention is not removed.
+ *
+ * @author Lauri Halla-aho
+ */
+class ClientShards
+{
+    /**
+     * Default maximum number of received datagrams waiting in the mailbox of a single shard.
+     */
+    static final int DEFAULT_MAILBOX_CAPACITY = 8192;
+
+    private final Shard [ ] shards;
+    private final int mailboxCapacity;
+
+    /**
+     * Constructs and starts the specified number of shards.
+     *
+     * @param count           - number of shards, usually the number of cores
+     * @param mailboxCapacity - maximum number of received datagrams waiting in the mailbox of a single shard
+     */
+    ClientShards( final int count, final int mailboxCapacity )
+    {
+        this.mailboxCapacity = mailboxCapacity;
+        shards = new Shard [ count ];
+
+        for ( int i = 0; i < count; i++ )
+        {
+            shards[ i ] = new Shard( "Client Shard " + i );
+            shards[ i ].start();
+        }
+    }
+
+    /**
+     * Posts a task processing a received datagram to the shard owning its sender. Received datagrams are refused when
+     * the mailbox is full, so that a flood cannot grow it without bounds.
+     *
+     * @param address - address of the sender
+     * @param port    - port of the sender
+     * @param task    - task processing the datagram
+     * @return <code>true</code> if the task was posted, <code>false</code> if the mailbox of the shard is full
+     */
+    boolean offer( final InetAddress address, final int port, final Runnable task )
+    {
+        final Shard shard = shards[ shardOf( address, port ) ];
+
+        if ( shard.mailbox.size() >= mailboxCapacity )
+        {
+            return false;
+        }
+        return shard.mailbox.offer( task );
+    }
+
+    /**
+     * Runs the specified task on the shard owning the specified client: at once if called from that shard, otherwise
+     * by posting it to the mailbox of the shard. Tasks passed between shards are never refused, as they are bounded
+     * by the received datagrams that caused them.
+     *
+     * @param client - the client the task concerns
+     * @param task   - task to be run
+     */
+    void execute( final ClientInst client, final Runnable task )
+    {
+        final Shard shard = shards[ shardOf( client.getAddress(), client.getPort() ) ];
+
+        if ( Thread.currentThread() == shard )
+        {
+            task.run();
+        }
+        else
+        {
+            shard.mailbox.add( task );
+        }
+    }
+
+    /**
+     * Returns the number of tasks waiting in the mailboxes of all shards.
+     *
+     * @return the number of waiting tasks
+     */
+    int getDepth()
+    {
+        int depth = 0;
+
+        for ( final Shard shard : shards )
+        {
+            depth += shard.mailbox.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the index of the shard owning the client at the specified address and port.
+     *
+     * @param address - address of a client
+     * @param port    - port of a client
+     * @return the index of the owning shard
+     */
+    private int shardOf( final InetAddress address, final int port )
+    {
+        final int hash = 31 * address.hashCode() + port;
+
+        /* Spread the bits of the port, as clients behind the same address differ only by it. */
+        return Math.floorMod( hash ^ ( hash >>> 16 ), shards.length );
+    }
+
+    /**
+     * A single shard running the tasks of its mailbox in order.
+     */
+    private static final class Shard extends Thread
+    {
+        private final BlockingQueue < Runnable > mailbox = new LinkedBlockingQueue <>();
+
+        private Shard( final String name )
+        {
+            super( name );
+            setDaemon( true );
+        }
+
+        @Override
+        public void run()
+        {
+            while ( true )
+            {
+                try
+                {
+                    mailbox.take().run();
+                }
+                catch ( final InterruptedException e )
+                {
+                    return;
+                }
+                catch ( final RuntimeException e )
+                {
+                    /* A failing task must not take the clients of the shard down with it. */
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
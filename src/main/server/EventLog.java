@@ -0,0 +1,585 @@
+package main.server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous log of server events. Logging threads only claim a preallocated record in a lock-free ring and fill
+ * in its fields, while a background thread formats the records and writes them either to the standard error stream or
+ * to size-rotated, memory-mapped log files. Each category of events has its own level, so that frequent events can be
+ * turned off without losing the rest. When the ring is full, new events are dropped and counted instead of making the
+ * logging thread wait.
+ *
+ * @author Lauri Halla-aho
+ */
+public class EventLog
+{
+    /* Categories of events. */
+    public static final int SERVER = 0;
+    public static final int SESSION = 1;
+    public static final int COMMAND = 2;
+    public static final int RELAY = 3;
+    public static final int LIMIT = 4;
+
+    public static final int CATEGORY_COUNT = 5;
+
+    private static final String [ ] CATEGORY_NAMES = { "server", "session", "command", "relay", "limit" };
+
+    /* Levels of events, from the most to the least verbose. */
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int OFF = 3;
+
+    private static final String [ ] LEVEL_NAMES = { "debug", "info", "warn", "off" };
+
+    /**
+     * Number of records in the ring, a power of two.
+     */
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    /**
+     * Size in bytes at which a log file is rotated.
+     */
+    public static final long DEFAULT_FILE_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * Number of rotated log files kept besides the current one.
+     */
+    private static final int MAX_ROTATED_FILES = 5;
+
+    private static final String FILE_NAME = "server.log";
+
+    /**
+     * Time in nanoseconds the writing thread sleeps while the ring is empty.
+     */
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern( "HH:mm:ss" )
+            .withZone( ZoneId.systemDefault() );
+
+    private final Record [ ] ring;
+    private final int mask;
+
+    /**
+     * Sequence number of the next record to be claimed by a logging thread.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Sequence number of the next record to be written, only advanced by the writing thread.
+     */
+    private volatile long tail = 0;
+
+    private final AtomicLong dropCount = new AtomicLong();
+
+    private final int [ ] levels = new int [ CATEGORY_COUNT ];
+
+    private final Sink sink;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    /* Used by the writing thread only. */
+    private final StringBuilder line = new StringBuilder( 128 );
+    private long formattedSecond = Long.MIN_VALUE;
+    private String formattedTime;
+
+    /**
+     * Constructs a log writing to the standard error stream.
+     *
+     * @param levels - level of each category, <code>null</code> for {@link #INFO} in every category
+     */
+    public EventLog( final int [ ] levels )
+    {
+        this( new StreamSink( System.err ), levels );
+    }
+
+    /**
+     * Constructs a log writing to memory-mapped files in the specified directory.
+     *
+     * @param directory - directory of the log files
+     * @param fileSize  - size in bytes at which a log file is rotated
+     * @param levels    - level of each category, <code>null</code> for {@link #INFO} in every category
+     * @throws IOException if the log directory or file cannot be created
+     */
+    public EventLog( final Path directory, final long fileSize, final int [ ] levels ) throws IOException
+    {
+        this( new MappedFileSink( directory, fileSize ), levels );
+    }
+
+    /**
+     * Constructs a log writing to the specified sink and starts its writing thread.
+     *
+     * @param sink   - destination of the formatted events
+     * @param levels - level of each category, <code>null</code> for {@link #INFO} in every category
+     */
+    private EventLog( final Sink sink, final int [ ] levels )
+    {
+        this.sink = sink;
+        ring = new Record [ DEFAULT_CAPACITY ];
+        mask = DEFAULT_CAPACITY - 1;
+
+        for ( int i = 0; i < ring.length; i++ )
+        {
+            ring[ i ] = new Record( i - ring.length );
+        }
+
+        if ( levels == null )
+        {
+            Arrays.fill( this.levels, INFO );
+        }
+        else
+        {
+            System.arraycopy( levels, 0, this.levels, 0, CATEGORY_COUNT );
+        }
+
+        writer = new Thread( this::write, "Event Log" );
+        writer.setDaemon( true );
+        writer.start();
+
+        /* Events logged right before the server exits are written out and the current file is cut to its length. */
+        Runtime.getRuntime().addShutdownHook( new Thread( this::close, "Event Log Shutdown" ) );
+    }
+
+    /**
+     * Returns <code>true</code> if events of the specified category and level are logged. Callers may check this
+     * before building the arguments of an event.
+     *
+     * @param category - category of the event
+     * @param level    - level of the event
+     * @return <code>true</code> if the event would be logged
+     */
+    public boolean isEnabled( final int category, final int level )
+    {
+        return level >= levels[ category ];
+    }
+
+    /**
+     * Logs an event described by the specified message.
+     *
+     * @param category - category of the event
+     * @param level    - level of the event
+     * @param message  - description of the event
+     */
+    public void log( final int category, final int level, final String message )
+    {
+        log( category, level, message, null, null );
+    }
+
+    /**
+     * Logs an event described by the specified prefix, argument and suffix. The argument is only converted to a string
+     * by the writing thread, so it should not change after it has been logged.
+     *
+     * @param category - category of the event
+     * @param level    - level of the event
+     * @param prefix   - text before the argument, may be <code>null</code>
+     * @param argument - subject of the event, such as a username, may be <code>null</code>
+     * @param suffix   - text after the argument, may be <code>null</code>
+     */
+    public void log( final int category, final int level, final String prefix, final Object argument,
+            final String suffix )
+    {
+        if ( level < levels[ category ] )
+        {
+            return;
+        }
+
+        final long seq = claim();
+
+        if ( seq < 0 )
+        {
+            dropCount.incrementAndGet();
+            return;
+        }
+
+        final Record record = ring[ (int) seq & mask ];
+        record.time = System.currentTimeMillis();
+        record.prefix = prefix;
+        record.argument = argument;
+        record.suffix = suffix;
+
+        /* Publishing the sequence number hands the record over to the writing thread. */
+        record.published = seq;
+    }
+
+    /**
+     * Returns the number of events dropped because the ring was full.
+     *
+     * @return the number of dropped events
+     */
+    public long getDropCount()
+    {
+        return dropCount.get();
+    }
+
+    /**
+     * Writes out the events logged so far and stops the writing thread.
+     */
+    public void close()
+    {
+        if ( !running )
+        {
+            return;
+        }
+        running = false;
+
+        LockSupport.unpark( writer );
+        try
+        {
+            writer.join( 1000 );
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Parses a category name.
+     *
+     * @param name - a category name such as <code>relay</code>
+     * @return the category, or -1 if the name is unknown
+     */
+    public static int parseCategory( final String name )
+    {
+        return Arrays.asList( CATEGORY_NAMES ).indexOf( name.toLowerCase() );
+    }
+
+    /**
+     * Parses a level name.
+     *
+     * @param name - a level name such as <code>debug</code>
+     * @return the level, or -1 if the name is unknown
+     */
+    public static int parseLevel( final String name )
+    {
+        return Arrays.asList( LEVEL_NAMES ).indexOf( name.toLowerCase() );
+    }
+
+    /**
+     * Claims the next record of the ring.
+     *
+     * @return the sequence number of the claimed record, or -1 if the ring is full
+     */
+    private long claim()
+    {
+        while ( true )
+        {
+            final long seq = head.get();
+
+            if ( seq - tail >= ring.length )
+            {
+                return -1;
+            }
+
+            if ( head.compareAndSet( seq, seq + 1 ) )
+            {
+                return seq;
+            }
+        }
+    }
+
+    /**
+     * Formats and writes the published records in order until the log is closed, flushing whenever the ring runs
+     * empty.
+     */
+    private void write()
+    {
+        boolean dirty = false;
+
+        while ( true )
+        {
+            final Record record = ring[ (int) tail & mask ];
+
+            if ( record.published == tail )
+            {
+                format( record );
+                record.prefix = record.suffix = null;
+                record.argument = null;
+                tail = tail + 1;
+
+                writeLine();
+                dirty = true;
+            }
+            else if ( tail != head.get() )
+            {
+                /* The record has been claimed but its fields are still being filled in. */
+                Thread.yield();
+            }
+            else
+            {
+                if ( dirty )
+                {
+                    sink.flush();
+                    dirty = false;
+                }
+
+                if ( !running )
+                {
+                    break;
+                }
+
+                LockSupport.parkNanos( IDLE_PARK_NANOS );
+            }
+        }
+
+        sink.close();
+    }
+
+    /**
+     * Formats the specified record into the line buffer.
+     *
+     * @param record - a published record
+     */
+    private void format( final Record record )
+    {
+        /* Events arrive in time order, so the time of day is only formatted once a second. */
+        final long second = record.time / 1000;
+
+        if ( second != formattedSecond )
+        {
+            formattedSecond = second;
+            formattedTime = TIME_FORMAT.format( Instant.ofEpochSecond( second ) );
+        }
+
+        line.setLength( 0 );
+        line.append( formattedTime ).append( ' ' );
+
+        if ( record.prefix != null )
+        {
+            line.append( record.prefix );
+        }
+        if ( record.argument != null )
+        {
+            line.append( record.argument );
+        }
+        if ( record.suffix != null )
+        {
+            line.append( record.suffix );
+        }
+
+        line.append( '\n' );
+    }
+
+    /**
+     * Writes the line buffer to the sink.
+     */
+    private void writeLine()
+    {
+        try
+        {
+            sink.write( line.toString().getBytes( StandardCharsets.UTF_8 ) );
+        }
+        catch ( final IOException e )
+        {
+            /* There is nowhere else to log to, so the event is lost. */
+            dropCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * A slot of the ring, reused for every event written into it.
+     */
+    private static final class Record
+    {
+        /**
+         * Sequence number of the event in this record once its fields have been filled in.
+         */
+        private volatile long published;
+
+        private long time;
+        private String prefix;
+        private Object argument;
+        private String suffix;
+
+        private Record( final long published )
+        {
+            this.published = published;
+        }
+    }
+
+    /**
+     * Destination of the formatted events.
+     */
+    private interface Sink
+    {
+        void write( byte [ ] bytes ) throws IOException;
+
+        void flush();
+
+        void close();
+    }
+
+    /**
+     * Writes the formatted events to a stream.
+     */
+    private static final class StreamSink implements Sink
+    {
+        private final PrintStream stream;
+
+        private StreamSink( final PrintStream stream )
+        {
+            this.stream = stream;
+        }
+
+        @Override
+        public void write( final byte [ ] bytes )
+        {
+            stream.write( bytes, 0, bytes.length );
+        }
+
+        @Override
+        public void flush()
+        {
+            stream.flush();
+        }
+
+        @Override
+        public void close()
+        {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Appends the formatted events to a memory-mapped file, which is rotated once it is full. Rotated files are
+     * numbered from the newest to the oldest, and the oldest ones beyond {@link #MAX_ROTATED_FILES} are deleted.
+     */
+    private static final class MappedFileSink implements Sink
+    {
+        private final Path directory;
+        private final long fileSize;
+
+        private FileChannel channel;
+        private MappedByteBuffer buffer;
+
+        private MappedFileSink( final Path directory, final long fileSize ) throws IOException
+        {
+            this.directory = directory;
+            this.fileSize = fileSize;
+
+            Files.createDirectories( directory );
+            open();
+        }
+
+        @Override
+        public void write( final byte [ ] bytes ) throws IOException
+        {
+            /* A line longer than a whole file is cut rather than rotating empty files. */
+            if ( buffer.remaining() < bytes.length && buffer.position() > 0 )
+            {
+                rotate();
+            }
+
+            buffer.put( bytes, 0, Math.min( bytes.length, buffer.remaining() ) );
+        }
+
+        @Override
+        public void flush()
+        {
+            /* Written pages reach the file through the page cache even if the server crashes, no need to force. */
+        }
+
+        @Override
+        public void close()
+        {
+            try
+            {
+                truncate();
+            }
+            catch ( final IOException e )
+            {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Opens a new current log file and maps it in full.
+         *
+         * @throws IOException if the file cannot be created or mapped
+         */
+        private void open() throws IOException
+        {
+            final Path file = directory.resolve( FILE_NAME );
+
+            /* A file left behind by an earlier run is kept as the newest rotated file. */
+            if ( Files.exists( file ) )
+            {
+                shift();
+            }
+
+            channel = FileChannel.open( file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE );
+            buffer = channel.map( FileChannel.MapMode.READ_WRITE, 0, fileSize );
+        }
+
+        /**
+         * Closes the full current log file and opens a new one.
+         *
+         * @throws IOException if the files cannot be rotated
+         */
+        private void rotate() throws IOException
+        {
+            truncate();
+            open();
+        }
+
+        /**
+         * Cuts the current log file to the length written and closes it.
+         *
+         * @throws IOException if the file cannot be truncated
+         */
+        private void truncate() throws IOException
+        {
+            if ( channel == null )
+            {
+                return;
+            }
+
+            final int written = buffer.position();
+
+            buffer.force();
+            buffer = null;
+            channel.truncate( written );
+            channel.close();
+            channel = null;
+        }
+
+        /**
+         * Renames the current and the rotated log files to the next number, deleting the oldest one.
+         *
+         * @throws IOException if a file cannot be renamed
+         */
+        private void shift() throws IOException
+        {
+            Files.deleteIfExists( directory.resolve( FILE_NAME + "." + MAX_ROTATED_FILES ) );
+
+            for ( int i = MAX_ROTATED_FILES - 1; i >= 1; i-- )
+            {
+                final Path rotated = directory.resolve( FILE_NAME + "." + i );
+
+                if ( Files.exists( rotated ) )
+                {
+                    Files.move( rotated, directory.resolve( FILE_NAME + "." + ( i + 1 ) ),
+                            StandardCopyOption.REPLACE_EXISTING );
+                }
+            }
+
+            Files.move( directory.resolve( FILE_NAME ), directory.resolve( FILE_NAME + ".1" ),
+                    StandardCopyOption.REPLACE_EXISTING );
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package main.server;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import main.common.ClientInst;
+
+/**
+ * A hashed timer wheel of per-client keep-alive deadlines. Deadlines may be scheduled from any thread, while the
+ * wheel is advanced by a single thread that runs the expiry handler.
+ *
+ * @author Lauri Halla-aho
+ */
+class KeepAliveWheel
+{
+    /**
+     * Decides what to do with a client whose deadline has passed.
+     */
+    @FunctionalInterface
+    interface ExpiryHandler
+    {
+        /**
+         * Handles the expired deadline of the specified client.
+         *
+         * @param client - client whose deadline has passed
+         * @param now    - current time in milliseconds
+         * @return the next deadline of the client in milliseconds, or a negative value to stop tracking it
+         */
+        long expired( ClientInst client, long now );
+    }
+
+    private final long tickMillis;
+    private final ArrayDeque < Timeout > [ ] slots;
+    private final ExpiryHandler handler;
+
+    /**
+     * Deadlines scheduled since the last advance, placed into the slots by the advancing thread.
+     */
+    private final Queue < Timeout > scheduled = new ConcurrentLinkedQueue <>();
+
+    private long currentTick;
+    private int size = 0;
+
+    /**
+     * Constructs a timer wheel with the specified resolution.
+     *
+     * @param tickMillis - length of a single tick in milliseconds
+     * @param slotCount  - number of slots in the wheel
+     * @param handler    - handler run for every expired deadline
+     * @param now        - current time in milliseconds
+     */
+    @SuppressWarnings( { "unchecked", "rawtypes" } )
+    KeepAliveWheel( final long tickMillis, final int slotCount, final ExpiryHandler handler, final long now )
+    {
+        this.tickMillis = tickMillis;
+        this.handler = handler;
+
+        slots = new ArrayDeque [ slotCount ];
+        for ( int slot = 0; slot < slotCount; slot++ )
+        {
+            slots[ slot ] = new ArrayDeque <>();
+        }
+
+        currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules the specified client to be checked at the specified time. Safe to call from any thread.
+     *
+     * @param client   - client to be checked
+     * @param deadline - time of the check in milliseconds
+     */
+    void schedule( final ClientInst client, final long deadline )
+    {
+        scheduled.add( new Timeout( client, deadline ) );
+    }
+
+    /**
+     * Runs the expiry handler for every deadline passed since the previous call. Must always be called from the same
+     * thread.
+     *
+     * @param now - current time in milliseconds
+     */
+    void advance( final long now )
+    {
+        Timeout timeout;
+        while ( ( timeout = scheduled.poll() ) != null )
+        {
+            place( timeout );
+            size++;
+        }
+
+        final long lastTick = now / tickMillis;
+
+        while ( currentTick <= lastTick )
+        {
+            final ArrayDeque < Timeout > slot = slots[ (int) ( currentTick % slots.length ) ];
+
+            /* Deadlines further than one revolution away stay in the slot until their round comes. */
+            for ( int i = slot.size(); i > 0; i-- )
+            {
+                timeout = slot.poll();
+
+                if ( timeout.deadline / tickMillis > currentTick )
+                {
+                    slot.add( timeout );
+                    continue;
+                }
+
+                final long next = handler.expired( timeout.client, now );
+
+                if ( next >= 0 )
+                {
+                    timeout.deadline = next;
+                    place( timeout );
+                }
+                else
+                {
+                    size--;
+                }
+            }
+
+            currentTick++;
+        }
+    }
+
+    /**
+     * Returns the number of clients tracked by this wheel, excluding those scheduled since the last advance.
+     *
+     * @return the number of tracked clients
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Places the specified timeout into the slot of its deadline, no earlier than the next tick.
+     *
+     * @param timeout - timeout to be placed
+     */
+    private void place( final Timeout timeout )
+    {
+        final long tick = Math.max( timeout.deadline / tickMillis, currentTick + 1 );
+
+        slots[ (int) ( tick % slots.length ) ].add( timeout );
+    }
+
+    /**
+     * A keep-alive deadline of a single client.
+     */
+    private static final class Timeout
+    {
+        private final ClientInst client;
+        private long deadline;
+
+        private Timeout( final ClientInst client, final long deadline )
+        {
+            this.client = client;
+            this.deadline = deadline;
+        }
+    }
+}
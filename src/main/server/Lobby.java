@@ -0,0 +1,185 @@
+package main.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The sorted set of connected clients not in a conversation, maintained incrementally as clients join, leave, and
+ * start or end conversations. Listings are split into pages that fit a single datagram.
+ *
+ * @author Lauri Halla-aho
+ */
+class Lobby
+{
+    /**
+     * Maximum size of a single page of the listing in bytes, leaving room for the message header.
+     */
+    static final int PAGE_BYTES = 1000;
+
+    private static final String HEADER = "Available users:\n";
+
+    /**
+     * Appended to the requester's own entry in the listing.
+     */
+    private static final String MARKER = " (you)";
+
+    private final ConcurrentSkipListSet < String > available = new ConcurrentSkipListSet <>();
+
+    /**
+     * Incremented on every change of the set, invalidating the cached first page.
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile CachedPage firstPage;
+
+    /**
+     * Adds the specified client to the set of available clients.
+     *
+     * @param username - username of an available client
+     */
+    void add( final String username )
+    {
+        if ( available.add( username ) )
+        {
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes the specified client from the set of available clients.
+     *
+     * @param username - username of a client no longer available
+     */
+    void remove( final String username )
+    {
+        if ( available.remove( username ) )
+        {
+            generation.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of available clients.
+     *
+     * @return the number of available clients
+     */
+    int size()
+    {
+        return available.size();
+    }
+
+    /**
+     * Returns a page of the listing of available clients, starting after the specified cursor. The requester is marked
+     * in the listing.
+     *
+     * @param requester - username of the party requesting the list
+     * @param cursor    - the last username of the previous page, <code>null</code> for the first page
+     * @return a string representation of a page of available clients
+     */
+    String getPage( final String requester, final String cursor )
+    {
+        final String page = cursor == null ? getFirstPage() : buildPage( available.tailSet( cursor, false ) );
+
+        final String entry = "\n - " + requester + "\n";
+        final int index = page.indexOf( entry );
+
+        if ( index < 0 )
+        {
+            return page;
+        }
+
+        return page.substring( 0, index + entry.length() - 1 ) + MARKER + page.substring( index + entry.length() - 1 );
+    }
+
+    /**
+     * Returns the first page of the listing, rebuilding it only if the set has changed since it was cached.
+     *
+     * @return the first page of the listing
+     */
+    private String getFirstPage()
+    {
+        /* Read the generation before the set, so that a concurrent change invalidates the page being built. */
+        final long current = generation.get();
+        final CachedPage cached = firstPage;
+
+        if ( cached != null && cached.generation == current )
+        {
+            return cached.text;
+        }
+
+        final String text = buildPage( available );
+        firstPage = new CachedPage( current, text );
+
+        return text;
+    }
+
+    /**
+     * Builds a page of the listing from the specified usernames, ending with a hint for requesting the next page if
+     * they do not all fit. Usernames too long to fit on any page are left out.
+     *
+     * @param usernames - usernames in listing order
+     * @return a page of the listing of at most {@link #PAGE_BYTES} bytes, including the requester's marker
+     */
+    private static String buildPage( final NavigableSet < String > usernames )
+    {
+        final StringBuilder page = new StringBuilder( HEADER );
+        int bytes = HEADER.getBytes( StandardCharsets.UTF_8 ).length;
+        String last = null;
+
+        for ( final String username : usernames )
+        {
+            final String line = " - " + username + "\n";
+            final int lineBytes = line.getBytes( StandardCharsets.UTF_8 ).length;
+
+            /*
+             * Each listed username reserves room for the hint continuing after it and for the requester's marker, so
+             * the hint appended after the last listed username always fits.
+             */
+            if ( bytes + lineBytes + continuation( username ).getBytes( StandardCharsets.UTF_8 ).length
+                    + MARKER.length() > PAGE_BYTES )
+            {
+                if ( last == null )
+                {
+                    continue;
+                }
+
+                page.append( continuation( last ) );
+                return page.toString();
+            }
+
+            page.append( line );
+            bytes += lineBytes;
+            last = username;
+        }
+
+        return page.toString();
+    }
+
+    /**
+     * Returns the hint for requesting the page following the specified username.
+     *
+     * @param last - the last username listed on a page
+     * @return the continuation hint
+     */
+    private static String continuation( final String last )
+    {
+        return "Type /list " + last + " for more.";
+    }
+
+    /**
+     * A page of the listing built at a specific generation of the set.
+     */
+    private static final class CachedPage
+    {
+        private final long generation;
+        private final String text;
+
+        private CachedPage( final long generation, final String text )
+        {
+            this.generation = generation;
+            this.text = text;
+        }
+    }
+}
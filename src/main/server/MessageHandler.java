@@ -0,0 +1,24 @@
+package main.server;
+
+import java.net.InetAddress;
+
+import main.common.Datagram;
+
+/**
+ * Provides a method for handling a datagram received by the server.
+ *
+ * @author Lauri Halla-aho
+ */
+@FunctionalInterface
+interface MessageHandler
+{
+    /**
+     * Handles the formatted message received from the specified sender. The handler takes ownership of the datagram
+     * and must either release it or pass it on to be sent.
+     *
+     * @param datagram      - the received datagram, its contents between the buffer's position and limit
+     * @param senderAddress - address of the sender
+     * @param senderPort    - port of the sender
+     */
+    void handle( Datagram datagram, InetAddress senderAddress, int senderPort );
+}
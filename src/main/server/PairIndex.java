@@ -0,0 +1,156 @@
+package main.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import main.common.ClientInst;
+import main.common.ClientPair;
+
+/**
+ * A thread-safe index mapping each conversing client directly to its conversation pair. The lobby of available clients
+ * is updated together with the index. Clients are only paired while they are registered, so a client logging out on
+ * another thread cannot be left behind in a pair.
+ *
+ * @author Lauri Halla-aho
+ */
+class PairIndex
+{
+    private final ConcurrentHashMap < ClientInst, ClientPair > pairs = new ConcurrentHashMap <>();
+
+    private final ClientRegistry clients;
+    private final Lobby lobby;
+
+    /**
+     * Constructs an empty index keeping the specified lobby up to date.
+     *
+     * @param clients - the registry of connected clients
+     * @param lobby   - the lobby of available clients
+     */
+    PairIndex( final ClientRegistry clients, final Lobby lobby )
+    {
+        this.clients = clients;
+        this.lobby = lobby;
+    }
+
+    /**
+     * Pairs the specified clients if both are still registered and neither of them is already in a conversation. Both
+     * clients are indexed atomically.
+     *
+     * @param first  - the client starting the conversation
+     * @param second - the client joined by the first one
+     * @return the new pair, <code>null</code> if either client has left or is already in a conversation
+     */
+    synchronized ClientPair pair( final ClientInst first, final ClientInst second )
+    {
+        if ( pairs.containsKey( first ) || pairs.containsKey( second ) )
+        {
+            return null;
+        }
+
+        /* A client is removed from the registry before it leaves this index, so the check cannot be overtaken. */
+        if ( clients.get( first.getUsername() ) != first || clients.get( second.getUsername() ) != second )
+        {
+            return null;
+        }
+
+        final ClientPair pair = new ClientPair( first, second );
+        pairs.put( first, pair );
+        pairs.put( second, pair );
+
+        lobby.remove( first.getUsername() );
+        lobby.remove( second.getUsername() );
+
+        return pair;
+    }
+
+    /**
+     * Removes the conversation pair of the specified client from this index for both of its members and returns them
+     * to the lobby.
+     *
+     * @param client - a member of the pair to be removed
+     * @return the removed pair, <code>null</code> if the client was not in a conversation
+     */
+    synchronized ClientPair unpair( final ClientInst client )
+    {
+        final ClientPair pair = pairs.remove( client );
+
+        if ( pair != null )
+        {
+            final ClientInst peer = pair.getPeer( client );
+            pairs.remove( peer, pair );
+
+            lobby.add( client.getUsername() );
+            lobby.add( peer.getUsername() );
+        }
+
+        return pair;
+    }
+
+    /**
+     * Removes the specified disconnecting client from the lobby and from its conversation, returning its peer to the
+     * lobby.
+     *
+     * @param client - a client leaving the server
+     * @return the removed pair, <code>null</code> if the client was not in a conversation
+     */
+    synchronized ClientPair leave( final ClientInst client )
+    {
+        lobby.remove( client.getUsername() );
+
+        final ClientPair pair = pairs.remove( client );
+
+        if ( pair != null )
+        {
+            final ClientInst peer = pair.getPeer( client );
+            pairs.remove( peer, pair );
+
+            lobby.add( peer.getUsername() );
+        }
+
+        return pair;
+    }
+
+    /**
+     * Returns the conversation pair of the specified client.
+     *
+     * @param client - a client instance to be searched for
+     * @return the conversation pair of the client, <code>null</code> if not in a conversation
+     */
+    ClientPair getPair( final ClientInst client )
+    {
+        return pairs.get( client );
+    }
+
+    /**
+     * Returns the client in a conversation with the specified client.
+     *
+     * @param client - a client instance to be searched for
+     * @return the peer of the client, <code>null</code> if not in a conversation
+     */
+    ClientInst getPeer( final ClientInst client )
+    {
+        final ClientPair pair = pairs.get( client );
+
+        return pair != null ? pair.getPeer( client ) : null;
+    }
+
+    /**
+     * Returns <code>true</code> if the specified client is in a conversation.
+     *
+     * @param client - a client instance to be searched for
+     * @return <code>true</code> if the client is in a conversation
+     */
+    boolean isPaired( final ClientInst client )
+    {
+        return pairs.containsKey( client );
+    }
+
+    /**
+     * Returns the number of active conversation pairs.
+     *
+     * @return the number of active conversation pairs
+     */
+    int size()
+    {
+        return pairs.size() / 2;
+    }
+}
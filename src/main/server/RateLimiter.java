@@ -0,0 +1,195 @@
+package main.server;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import main.common.Message;
+
+/**
+ * Token buckets per remote endpoint and message class, checked before a received datagram is decoded. Each class has
+ * its own sustained rate and burst, so that a client flooding one class of messages does not lose the others.
+ *
+ * @author Lauri Halla-aho
+ */
+class RateLimiter
+{
+    /**
+     * Messages relayed between peers: chat messages, cipher parameters and key exchange secrets.
+     */
+    static final int CLASS_CHAT = 0;
+
+    /**
+     * Messages handled by the server on behalf of the client, such as logging in, listing the lobby or joining a
+     * conversation.
+     */
+    static final int CLASS_COMMAND = 1;
+
+    /**
+     * Keep-alives and acknowledgements, which are cheap to handle and sent in proportion to the received traffic.
+     */
+    static final int CLASS_CONTROL = 2;
+
+    static final int CLASS_COUNT = 3;
+
+    /* Results of acquire. */
+    static final int ALLOWED = 0;
+    static final int DROPPED = 1;
+    static final int DROPPED_NOTIFY = 2;
+
+    /**
+     * Sustained rate of each class in messages per second.
+     */
+    private static final int [ ] RATES = { 50, 5, 100 };
+
+    /**
+     * Maximum burst of each class in messages.
+     */
+    private static final int [ ] BURSTS = { 100, 10, 200 };
+
+    /**
+     * Time in milliseconds after which the buckets of a silent endpoint are forgotten.
+     */
+    private static final long IDLE_MILLIS = 10000;
+
+    /**
+     * Minimum time in milliseconds between two throttle notices to the same endpoint.
+     */
+    private static final long NOTICE_INTERVAL = 5000;
+
+    private final ConcurrentHashMap < InetSocketAddress, Buckets > endpoints = new ConcurrentHashMap <>();
+    private final AtomicLongArray dropCounts = new AtomicLongArray( CLASS_COUNT );
+
+    /**
+     * Takes a token for a message of the specified type from the buckets of the specified endpoint.
+     *
+     * @param address - address of the sender
+     * @param port    - port of the sender
+     * @param type    - type of the received message
+     * @param now     - current time in milliseconds
+     * @return {@link #ALLOWED} if the message may be handled, {@link #DROPPED} if it must be dropped, or
+     *         {@link #DROPPED_NOTIFY} if it must be dropped and the sender should be told that it is being throttled
+     */
+    int acquire( final InetAddress address, final int port, final int type, final long now )
+    {
+        final int messageClass = classOf( type );
+        final Buckets buckets = endpoints.computeIfAbsent( new InetSocketAddress( address, port ),
+                endpoint -> new Buckets( now ) );
+
+        synchronized ( buckets )
+        {
+            buckets.lastSeen = now;
+
+            if ( buckets.take( messageClass, now ) )
+            {
+                return ALLOWED;
+            }
+
+            dropCounts.incrementAndGet( messageClass );
+
+            if ( now - buckets.lastNotice >= NOTICE_INTERVAL )
+            {
+                buckets.lastNotice = now;
+                return DROPPED_NOTIFY;
+            }
+            return DROPPED;
+        }
+    }
+
+    /**
+     * Forgets the buckets of the endpoints that have been silent long enough for their buckets to be full again.
+     *
+     * @param now - current time in milliseconds
+     */
+    void evictIdle( final long now )
+    {
+        endpoints.values().removeIf( buckets -> now - buckets.lastSeen > IDLE_MILLIS );
+    }
+
+    /**
+     * Returns the number of messages of the specified class dropped so far.
+     *
+     * @param messageClass - {@link #CLASS_CHAT}, {@link #CLASS_COMMAND} or {@link #CLASS_CONTROL}
+     * @return the number of dropped messages
+     */
+    long getDropCount( final int messageClass )
+    {
+        return dropCounts.get( messageClass );
+    }
+
+    /**
+     * Returns the class of the specified message type.
+     *
+     * @param type - a message type
+     * @return the class the message is limited in
+     */
+    static int classOf( final int type )
+    {
+        switch ( type )
+        {
+            case Message.MSG_CHAT:
+            case Message.MSG_PARAMS:
+            case Message.MSG_SEALED:
+            case Message.DHKX_REQ:
+            case Message.DHKX_RES:
+                return CLASS_CHAT;
+            case Message.LOGIN:
+            case Message.LOGOUT:
+            case Message.MSG_CHAT_CMD:
+            case Message.PEER_LEFT:
+                return CLASS_COMMAND;
+            default:
+                return CLASS_CONTROL;
+        }
+    }
+
+    /**
+     * The token buckets of a single endpoint. Tokens are counted in thousandths, so that a bucket can be refilled for
+     * every elapsed millisecond without rounding away slow rates.
+     */
+    private static final class Buckets
+    {
+        private final long [ ] tokens = new long [ CLASS_COUNT ];
+        private final long [ ] refilled = new long [ CLASS_COUNT ];
+        private long lastSeen;
+        private long lastNotice = Long.MIN_VALUE / 2;
+
+        private Buckets( final long now )
+        {
+            for ( int messageClass = 0; messageClass < CLASS_COUNT; messageClass++ )
+            {
+                tokens[ messageClass ] = BURSTS[ messageClass ] * 1000L;
+                refilled[ messageClass ] = now;
+            }
+            lastSeen = now;
+        }
+
+        /**
+         * Refills the bucket of the specified class and takes a token from it.
+         *
+         * @param messageClass - class of the received message
+         * @param now          - current time in milliseconds
+         * @return <code>true</code> if a token was available
+         */
+        private boolean take( final int messageClass, final long now )
+        {
+            final long elapsed = now - refilled[ messageClass ];
+
+            if ( elapsed > 0 )
+            {
+                tokens[ messageClass ] = Math.min( BURSTS[ messageClass ] * 1000L,
+                        tokens[ messageClass ] + elapsed * RATES[ messageClass ] );
+                refilled[ messageClass ] = now;
+            }
+
+            if ( tokens[ messageClass ] < 1000 )
+            {
+                return false;
+            }
+
+            tokens[ messageClass ] -= 1000;
+            return true;
+        }
+    }
+}
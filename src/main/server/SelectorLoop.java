@@ -0,0 +1,242 @@
+package main.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+
+import main.common.BufferPool;
+import main.common.Datagram;
+import main.common.SendQueue;
+
+/**
+ * A single-threaded event loop that reads, decodes, routes and writes datagrams on a non-blocking channel.
+ *
+ * @author Lauri Halla-aho
+ */
+class SelectorLoop implements Runnable
+{
+    /**
+     * Maximum number of datagrams read from the channel before pending writes are flushed.
+     */
+    private static final int READ_BATCH = 64;
+
+    /**
+     * <code>true</code> on the threads of all event loops, which must never wait for space in a send queue: two loops
+     * forwarding into each other's full queues would otherwise wait for each other forever.
+     */
+    private static final ThreadLocal < Boolean > ON_LOOP = ThreadLocal.withInitial( () -> Boolean.FALSE );
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+
+    private final MessageHandler handler;
+    private final SendQueue sendQueue;
+    private final BufferPool bufferPool;
+
+    /**
+     * Datagrams taken from the send queue that could not be written yet because the send buffer was full.
+     */
+    private final ArrayDeque < Datagram > pendingWrites = new ArrayDeque <>();
+
+    private Thread loopThread;
+    private volatile boolean running = false;
+
+    /**
+     * Opens a non-blocking channel on the specified port and registers it with a new selector.
+     *
+     * @param port       - the port number the channel is bound to
+     * @param reusePort  - <code>true</code> if other channels may be bound to the same port through SO_REUSEPORT
+     * @param handler    - the handler received messages are passed to
+     * @param sendQueue  - the queue of outbound datagrams written by this loop
+     * @param bufferPool - the pool of buffers datagrams are received into
+     * @throws IOException if the channel or the selector could not be opened
+     */
+    SelectorLoop( final int port, final boolean reusePort, final MessageHandler handler, final SendQueue sendQueue,
+            final BufferPool bufferPool ) throws IOException
+    {
+        this.handler = handler;
+        this.sendQueue = sendQueue;
+        this.bufferPool = bufferPool;
+
+        channel = DatagramChannel.open();
+        channel.configureBlocking( false );
+        if ( reusePort )
+        {
+            channel.setOption( StandardSocketOptions.SO_REUSEPORT, true );
+        }
+        channel.bind( new InetSocketAddress( port ) );
+
+        selector = Selector.open();
+        key = channel.register( selector, SelectionKey.OP_READ );
+
+        sendQueue.setWakeup( this::wakeup );
+    }
+
+    /**
+     * Starts the event loop thread.
+     *
+     * @param threadName - name of the event loop thread
+     */
+    void start( final String threadName )
+    {
+        running = true;
+        loopThread = new Thread( this, threadName );
+        loopThread.start();
+    }
+
+    @Override
+    public void run()
+    {
+        ON_LOOP.set( Boolean.TRUE );
+
+        while ( running )
+        {
+            try
+            {
+                selector.select();
+                selector.selectedKeys().clear();
+
+                if ( key.isValid() && key.isReadable() )
+                {
+                    read();
+                }
+
+                flush();
+            }
+            catch ( final IOException e )
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reads and processes the datagrams currently available on the channel.
+     *
+     * @throws IOException if reading from the channel fails
+     */
+    private void read() throws IOException
+    {
+        for ( int i = 0; i < READ_BATCH; i++ )
+        {
+            final Datagram datagram = bufferPool.acquire();
+            final SocketAddress source;
+
+            try
+            {
+                source = channel.receive( datagram.getData() );
+            }
+            catch ( final IOException e )
+            {
+                datagram.release();
+                throw e;
+            }
+
+            if ( source == null )
+            {
+                datagram.release();
+                return;
+            }
+
+            datagram.getData().flip();
+
+            /* The handler releases the pooled buffer or passes it on to be forwarded as it is. */
+            final InetSocketAddress sender = (InetSocketAddress) source;
+            try
+            {
+                handler.handle( datagram, sender.getAddress(), sender.getPort() );
+            }
+            catch ( final RuntimeException e )
+            {
+                /* A datagram the handler fails on must not stop the loop from serving everyone else. */
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes queued datagrams in batches until the send queue is empty or the socket's send buffer is full, and updates
+     * the interest set accordingly. Datagrams failing to be written are dropped.
+     */
+    private void flush()
+    {
+        while ( !pendingWrites.isEmpty() || sendQueue.drainTo( pendingWrites ) > 0 )
+        {
+            final Datagram pending = pendingWrites.peek();
+
+            try
+            {
+                if ( channel.send( pending.getData(), pending.getTarget() ) == 0 )
+                {
+                    break;
+                }
+                pending.release();
+            }
+            catch ( final IOException e )
+            {
+                /* A datagram that cannot be sent, such as one to an unreachable target, is dropped alone. */
+                e.printStackTrace();
+                sendQueue.discard( pending );
+            }
+
+            pendingWrites.poll();
+        }
+
+        final int interest = pendingWrites.isEmpty() ? SelectionKey.OP_READ
+                : SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+
+        if ( key.isValid() && key.interestOps() != interest )
+        {
+            key.interestOps( interest );
+        }
+    }
+
+    /**
+     * Queues the specified datagram to be written by the event loop. Datagrams sent from any event loop to a full
+     * queue are dropped regardless of the overflow policy, while other threads wait for space if the policy says so.
+     *
+     * @param datagram - datagram to be sent
+     */
+    void send( final Datagram datagram )
+    {
+        /* An event loop drains its own queue and must keep draining it, so it never waits for space in any queue. */
+        sendQueue.offer( datagram, !ON_LOOP.get() );
+    }
+
+    /**
+     * Wakes the selector so that datagrams queued by other threads are written.
+     */
+    private void wakeup()
+    {
+        /* Writes queued by the loop itself are flushed at the end of the current iteration. */
+        if ( Thread.currentThread() != loopThread )
+        {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops the event loop and closes the channel and the selector.
+     */
+    void close()
+    {
+        running = false;
+        selector.wakeup();
+
+        try
+        {
+            channel.close();
+            selector.close();
+        }
+        catch ( final IOException e )
+        {
+            e.printStackTrace();
+        }
+    }
+}
@@ -4,17 +4,24 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.ThreadLocalRandom;
 
+import javax.management.JMException;
+
+import main.common.BufferPool;
 import main.common.ClientInst;
 import main.common.ClientPair;
+import main.common.Datagram;
 import main.common.Message;
+import main.common.MessageView;
+import main.common.ReliableChannel;
+import main.common.SendQueue;
 
 /**
  * A server that handles clients and forwards messages between connected clients.
@@ -25,19 +32,78 @@ public class Server implements Runnable
 {
     private static final int MAX_KEEPALIVE_ATTEMPTS = 5;
 
-    private DatagramSocket socket;
+    /**
+     * Capabilities offered to clients at login.
+     */
+    private static final int CAPABILITIES = Message.CAP_WIRE_V2 | Message.CAP_RELIABLE;
+
+    private static final int RECEIVE_BUFFER_SIZE = Message.MAX_DATAGRAM_LENGTH;
+
+    /**
+     * Maximum number of idle receive buffers kept per shard.
+     */
+    private static final int BUFFER_POOL_SIZE = 1024;
+
+    /**
+     * Silence in milliseconds after which a client is probed with keep-alive messages.
+     */
+    private static final long IDLE_TIMEOUT = 4000;
+
+    /**
+     * Interval in milliseconds between keep-alive probes sent to an idle client.
+     */
+    private static final long KEEPALIVE_INTERVAL = 2000;
+
+    /**
+     * Upper bound in milliseconds of the random delay added to each keep-alive deadline.
+     */
+    private static final long KEEPALIVE_JITTER = 500;
+
+    /**
+     * Resolution of the keep-alive timer wheel in milliseconds.
+     */
+    private static final long KEEPALIVE_TICK = 100;
+
     private final int serverPort;
+    private final boolean useSelector;
+
+    /*
+     * One socket, receiving loop, and send queue per shard. All sockets share the server port through SO_REUSEPORT.
+     */
+    private final int shardCount;
+    private final DatagramSocket [ ] sockets;
+    private final SelectorLoop [ ] selectorLoops;
+    private final SendQueue [ ] sendQueues;
+    private final BufferPool [ ] bufferPools;
 
     private final Thread serverThread;
     private boolean serverRunning = false;
 
     private Thread clientHandler;
-    private Thread messageSender;
-    private Thread messageReceiver;
 
-    private final List < ClientInst > clients;
-    private final List < ClientInst > alive;
-    private final List < ClientPair > clientPairs;
+    private final ClientRegistry clients;
+    private final Lobby lobby;
+    private final PairIndex pairs;
+    private final KeepAliveWheel keepAlive;
+
+    /**
+     * Single-threaded shards owning the clients, <code>null</code> if messages are processed by the receiving threads.
+     */
+    private final ClientShards shards;
+
+    /**
+     * Budgets of the messages received from each endpoint, <code>null</code> if rate limiting is disabled.
+     */
+    private final RateLimiter rateLimiter;
+    private final boolean throttleNotice;
+
+    private final EventLog events;
+    private final ServerMetrics metrics;
+
+    /**
+     * Views reused by each receiving thread for the messages the server handles itself.
+     */
+    private final ThreadLocal < MessageView > views = ThreadLocal.withInitial( MessageView::new );
 
     /**
      * Constructs a server occupying the specified port number.
@@ -45,21 +111,84 @@ public class Server implements Runnable
      * @param serverPort - the port number this server is run on
      */
     public Server( final int serverPort )
+    {
+        this( serverPort, new ServerOptions() );
+    }
+
+    /**
+     * Constructs a server occupying the specified port number.
+     *
+     * @param serverPort - the port number this server is run on
+     * @param options    - optional settings of this server
+     */
+    public Server( final int serverPort, final ServerOptions options )
     {
         this.serverPort = serverPort;
-        clients = new ArrayList <>();
-        alive = new ArrayList <>();
-        clientPairs = new ArrayList <>();
+        useSelector = options.useSelector();
+        shardCount = options.getShardCount();
+        sockets = new DatagramSocket [ shardCount ];
+        selectorLoops = new SelectorLoop [ shardCount ];
+        sendQueues = new SendQueue [ shardCount ];
+        bufferPools = new BufferPool [ shardCount ];
+
+        /* Shared by all receiving loops. */
+        clients = new ClientRegistry();
+        lobby = new Lobby();
+        pairs = new PairIndex( clients, lobby );
+        keepAlive = new KeepAliveWheel( KEEPALIVE_TICK, 512, this::checkClient, System.currentTimeMillis() );
+        shards = options.getActorCount() > 0
+                ? new ClientShards( options.getActorCount(), ClientShards.DEFAULT_MAILBOX_CAPACITY )
+                : null;
+        events = openEventLog( options );
+        rateLimiter = options.useRateLimiting() ? new RateLimiter() : null;
+        throttleNotice = options.sendThrottleNotice();
+        metrics = new ServerMetrics( clients, lobby, pairs, Arrays.asList( sendQueues ), shards, rateLimiter,
+                events );
+
+        final boolean reusePort = shardCount > 1;
 
         try
         {
-            socket = new DatagramSocket( serverPort );
+            for ( int shard = 0; shard < shardCount; shard++ )
+            {
+                sendQueues[ shard ] = new SendQueue( options.getSendQueueCapacity(), options.getSendQueuePolicy() );
+
+                /* Blocking sockets can only receive into arrays, so direct buffers are used by event loops only. */
+                bufferPools[ shard ] = new BufferPool( BUFFER_POOL_SIZE, RECEIVE_BUFFER_SIZE,
+                        useSelector && options.useDirectBuffers() );
+
+                if ( useSelector )
+                {
+                    selectorLoops[ shard ] = new SelectorLoop( serverPort, reusePort, this::receive,
+                            sendQueues[ shard ], bufferPools[ shard ] );
+                }
+                else
+                {
+                    sockets[ shard ] = new DatagramSocket( null );
+                    if ( reusePort )
+                    {
+                        sockets[ shard ].setOption( StandardSocketOptions.SO_REUSEPORT, true );
+                    }
+                    sockets[ shard ].bind( new InetSocketAddress( serverPort ) );
+
+                    sendQueues[ shard ].start( sockets[ shard ] );
+                }
+            }
         }
-        catch ( final SocketException e )
+        catch ( final IOException | UnsupportedOperationException e )
         {
             e.printStackTrace();
         }
 
+        try
+        {
+            metrics.register( serverPort );
+        }
+        catch ( final JMException e )
+        {
+            events.log( EventLog.SERVER, EventLog.WARN, "Failed to register the server metrics: ", e, null );
+        }
+
         serverThread = new Thread( this, "Server" );
         serverThread.start();
     }
@@ -72,11 +201,35 @@ public class Server implements Runnable
         handleClients();
         receiveMessages();
 
-        log( "CryptoGram lobby running on port " + serverPort );
+        events.log( EventLog.SERVER, EventLog.INFO, "CryptoGram lobby running on port ", serverPort, null );
     }
 
     /**
-     * Sends keep-alive messages to connected clients and removes unresponsive clients.
+     * Opens the event log configured in the specified options, falling back to the standard error stream if the log
+     * files cannot be created.
+     *
+     * @param options - optional settings of this server
+     * @return the event log
+     */
+    private static EventLog openEventLog( final ServerOptions options )
+    {
+        if ( options.getLogDirectory() != null )
+        {
+            try
+            {
+                return new EventLog( options.getLogDirectory(), options.getLogFileSize(), options.getLogLevels() );
+            }
+            catch ( final IOException e )
+            {
+                e.printStackTrace();
+            }
+        }
+
+        return new EventLog( options.getLogLevels() );
+    }
+
+    /**
+     * Advances the keep-alive timer wheel, which probes idle clients and removes unresponsive ones.
      */
     private void handleClients()
     {
@@ -87,47 +240,37 @@ public class Server implements Runnable
             {
                 while ( serverRunning )
                 {
-                    final Message msg = new Message( Message.KEEP_ALIVE );
-
-                    /* Send keep-alive messages to all connected clients. */
-                    broadcast( msg.getFormattedMessage() );
-
-                    /* Wait two seconds to give the clients time to respond. */
                     try
                     {
-                        Thread.sleep( 2000 );
+                        Thread.sleep( KEEPALIVE_TICK );
                     }
                     catch ( final InterruptedException e )
                     {
                         e.printStackTrace();
                     }
 
-                    /*
-                     * Check if the clients have responded, if not increment the attempt counter or kick them if the
-                     * maximum has been reached.
-                     */
-                    for ( int clientNo = 0; clientNo < clients.size(); clientNo++ )
+                    final long now = System.currentTimeMillis();
+
+                    keepAlive.advance( now );
+
+                    if ( rateLimiter != null )
+                    {
+                        rateLimiter.evictIdle( now );
+                    }
+
+                    for ( final ClientInst client : clients.getClients() )
                     {
-                        final ClientInst client = clients.get( clientNo );
+                        final ReliableChannel channel = client.getChannel();
 
-                        if ( !alive.contains( client ) )
+                        if ( channel != null )
                         {
-                            if ( client.getKeepAliveAttempt() >= MAX_KEEPALIVE_ATTEMPTS )
-                            {
-                                final Message logout = new Message( Message.LOGOUT, client.getUsername() );
-                                processMessage( logout, client.getAddress(), client.getPort() );
-                                log( client.getUsername() + " timed out." );
-                            }
-                            else
+                            channel.retransmit( now );
+
+                            if ( channel.isFailed() )
                             {
-                                client.incKeepAliveAttempt();
+                                giveUp( client );
                             }
                         }
-                        else
-                        {
-                            alive.remove( client );
-                            client.resetKeepAliveAttempt();
-                        }
                     }
                 }
             }
@@ -137,72 +280,188 @@ public class Server implements Runnable
     }
 
     /**
-     * Forms a datagram packet from the specified information and sends it.
+     * Checks the liveness of a client whose keep-alive deadline has passed. Any datagram received from the client
+     * counts as proof of life, so only clients that have been silent for a while are probed.
      *
-     * @param formattedMessage - the message to be sent as a formatted byte array
-     * @param address          - the address of the recipient
-     * @param port             - the port of the recipient
+     * @param client - client whose deadline has passed
+     * @param now    - current time in milliseconds
+     * @return the next deadline of the client in milliseconds, or a negative value if it is no longer connected
      */
-    private void sendMessage( final byte [ ] formattedMessage, final InetAddress address, final int port )
+    private long checkClient( final ClientInst client, final long now )
     {
-        final DatagramPacket packet = new DatagramPacket( formattedMessage, formattedMessage.length, address, port );
-        sendMessage( packet );
+        if ( clients.get( client.getUsername() ) != client )
+        {
+            return -1;
+        }
+
+        final long lastSeen = client.getLastSeen();
+
+        /* The client has been heard from recently, check again once it may have gone idle. */
+        if ( now - lastSeen < IDLE_TIMEOUT )
+        {
+            client.resetKeepAliveAttempt();
+            return lastSeen + IDLE_TIMEOUT + jitter();
+        }
+
+        if ( client.getKeepAliveAttempt() >= MAX_KEEPALIVE_ATTEMPTS )
+        {
+            /* Removed by its own shard, so that a message it sent just before is not processed after it has gone. */
+            execute( client, () ->
+            {
+                logout( client );
+                events.log( EventLog.SESSION, EventLog.INFO, null, client.getUsername(), " timed out." );
+            } );
+            metrics.timedOut();
+
+            return -1;
+        }
+
+        client.incKeepAliveAttempt();
+
+        final Message msg = new Message( Message.KEEP_ALIVE );
+        sendMessage( msg, client );
+
+        return now + KEEPALIVE_INTERVAL + jitter();
     }
 
     /**
-     * Sends the specified datagram packet to its recipient.
+     * Logs out a client that stopped acknowledging the frames of its reliable channel, so that its peer is returned to
+     * the lobby instead of losing its messages until the keep-alive timeout.
      *
-     * @param packet - the datagram packet to be sent
+     * @param client - a client whose reliable channel has failed
      */
-    private void sendMessage( final DatagramPacket packet )
+    private void giveUp( final ClientInst client )
     {
-        messageSender = new Thread( "Message Sender" )
+        /* Removed by its own shard, like a client that timed out; later checks find it already gone. */
+        execute( client, () ->
         {
-            @Override
-            public void run()
+            if ( clients.get( client.getUsername() ) == client )
             {
-                try
-                {
-                    socket.send( packet );
-                }
-                catch ( final IOException e )
-                {
-                    e.printStackTrace();
-                }
+                logout( client );
+                events.log( EventLog.SESSION, EventLog.WARN, null, client.getUsername(),
+                        " stopped acknowledging messages." );
+                metrics.timedOut();
             }
-        };
+        } );
+    }
 
-        messageSender.start();
+    /**
+     * Returns a random delay spreading the keep-alive deadlines of the clients apart.
+     *
+     * @return a random delay in milliseconds
+     */
+    private static long jitter()
+    {
+        return ThreadLocalRandom.current().nextLong( KEEPALIVE_JITTER );
     }
 
     /**
-     * Sends the specified message to all connected clients.
+     * Queues the specified message to be sent to the specified client in the framing negotiated with it.
      *
-     * @param formattedMessage - message to be sent to all
+     * @param message   - the message to be sent
+     * @param recipient - the recipient of the message
      */
-    private void broadcast( final byte [ ] formattedMessage )
+    private void sendMessage( final Message message, final ClientInst recipient )
     {
-        for ( int clientNo = 0; clientNo < clients.size(); clientNo++ )
+        final ReliableChannel channel = recipient.getChannel();
+
+        /* Login replies precede the channel on the client's side, and lost keep-alive probes are simply sent again. */
+        if ( channel != null && message.getType() != Message.LOGIN && message.getType() != Message.KEEP_ALIVE )
+        {
+            channel.send( message.getFormattedMessage( Message.WIRE_V2 ), System.currentTimeMillis() );
+        }
+        else
         {
-            final ClientInst client = clients.get( clientNo );
-            sendMessage( formattedMessage, client.getAddress(), client.getPort() );
+            sendMessage( message.getFormattedMessage( recipient.getWireVersion() ), recipient.getAddress(),
+                    recipient.getPort() );
         }
     }
 
     /**
-     * Starts a thread that handles listening for incoming messages and processes them accordingly.
+     * Queues the specified message to be sent to the specified recipient.
+     *
+     * @param formattedMessage - the message to be sent as a formatted byte array
+     * @param address          - the address of the recipient
+     * @param port             - the port of the recipient
+     */
+    private void sendMessage( final byte [ ] formattedMessage, final InetAddress address, final int port )
+    {
+        send( new Datagram( formattedMessage, address, port ) );
+    }
+
+    /**
+     * Queues the specified datagram to be sent to its recipient.
+     *
+     * @param datagram - the datagram to be sent
+     */
+    private void send( final Datagram datagram )
+    {
+        /* Any shard's socket can send from the server port; a fixed shard per recipient keeps its messages in order. */
+        final int shard = Math.floorMod( datagram.getTarget().hashCode(), shardCount );
+
+        if ( useSelector )
+        {
+            selectorLoops[ shard ].send( datagram );
+        }
+        else
+        {
+            sendQueues[ shard ].offer( datagram );
+        }
+    }
+
+    /**
+     * Returns the queues of outbound datagrams of this server, one per shard.
+     *
+     * @return the queues of outbound datagrams, exposing their depth and drop count
+     */
+    public List < SendQueue > getSendQueues()
+    {
+        return Arrays.asList( sendQueues );
+    }
+
+    /**
+     * Starts a thread per shard that handles listening for incoming messages and processes them accordingly, or the
+     * event loops if the server runs in selector mode.
      */
     private void receiveMessages()
     {
-        messageReceiver = new Thread( "Message Receiver" )
+        for ( int shard = 0; shard < shardCount; shard++ )
+        {
+            if ( useSelector )
+            {
+                selectorLoops[ shard ].start( shardCount > 1 ? "Event Loop " + shard : "Event Loop" );
+            }
+            else
+            {
+                receiveMessages( sockets[ shard ], bufferPools[ shard ],
+                        shardCount > 1 ? "Message Receiver " + shard : "Message Receiver" );
+            }
+        }
+    }
+
+    /**
+     * Starts a thread that handles listening for incoming messages on the specified socket and processes them
+     * accordingly.
+     *
+     * @param socket     - the socket messages are received from
+     * @param bufferPool - the pool of buffers messages are received into
+     * @param threadName - name of the receiving thread
+     */
+    private void receiveMessages( final DatagramSocket socket, final BufferPool bufferPool, final String threadName )
+    {
+        new Thread( threadName )
         {
             @Override
             public void run()
             {
+                final DatagramPacket packet = new DatagramPacket( new byte [ 0 ], 0 );
+
                 while ( serverRunning )
                 {
-                    final byte [ ] messageBytes = new byte [ 1024 ];
-                    final DatagramPacket packet = new DatagramPacket( messageBytes, messageBytes.length );
+                    final Datagram datagram = bufferPool.acquire();
+                    final ByteBuffer buffer = datagram.getData();
+
+                    packet.setData( buffer.array(), buffer.arrayOffset(), buffer.capacity() );
                     try
                     {
                         socket.receive( packet );
@@ -210,176 +469,347 @@ public class Server implements Runnable
                     catch ( final IOException e )
                     {
                         e.printStackTrace();
+                        datagram.release();
+                        continue;
                     }
 
-                    final byte [ ] payload = new byte [ packet.getLength() ];
-
-                    System.arraycopy( packet.getData(), packet.getOffset(), payload, 0, packet.getLength() );
-
-                    final Message message = Message.parseFormattedMessage( payload );
+                    buffer.limit( packet.getLength() );
 
-                    processMessage( message, packet.getAddress(), packet.getPort() );
+                    try
+                    {
+                        receive( datagram, packet.getAddress(), packet.getPort() );
+                    }
+                    catch ( final RuntimeException e )
+                    {
+                        /* A datagram failing to be processed must not stop the receiving thread. */
+                        e.printStackTrace();
+                    }
                 }
             }
-        };
-
-        messageReceiver.start();
+        }.start();
     }
 
     /**
-     * Processes the received messages and reacts appropriately.
+     * Handles a datagram received by one of the receiving loops.
      *
-     * @param message       - received message
+     * @param datagram      - the received datagram
      * @param senderAddress - address of the sender
      * @param senderPort    - port of the sender
      */
-    private void processMessage( final Message message, final InetAddress senderAddress, final int senderPort )
+    private void receive( final Datagram datagram, final InetAddress senderAddress, final int senderPort )
     {
-        /* USER LOGIN HANDLING */
-        if ( message.getType() == Message.LOGIN )
+        final int type = Message.peekType( datagram.getData() );
+
+        datagram.setReceivedAt( System.nanoTime() );
+        metrics.received( type );
+
+        /* Only the header is read before a datagram over the sender's budget is dropped. */
+        if ( rateLimiter != null )
         {
-            if ( isUsernameAvailable( message.getUsername() ) )
+            final int verdict = rateLimiter.acquire( senderAddress, senderPort, type, System.currentTimeMillis() );
+
+            if ( verdict != RateLimiter.ALLOWED )
             {
-                log( message.getUsername() + " joined the lobby." );
-                clients.add( new ClientInst( message.getUsername(), senderAddress, senderPort ) );
+                metrics.dropped( type );
+                datagram.release();
 
-                sendMessage( message.getFormattedMessage(), senderAddress, senderPort );
+                if ( verdict == RateLimiter.DROPPED_NOTIFY )
+                {
+                    throttled( senderAddress, senderPort );
+                }
+                return;
             }
-            /* A user with an identical name is already connected, find an available variation. */
-            else
+        }
+
+        /* The rest is done by the shard owning the sender, the receiving thread moves on to the next datagram. */
+        if ( shards != null )
+        {
+            if ( !shards.offer( senderAddress, senderPort, () -> route( datagram, senderAddress, senderPort ) ) )
             {
-                log( "User with a duplicate name tried to join the lobby." );
+                metrics.dropped( type );
+                datagram.release();
+            }
+            return;
+        }
 
-                String newUsername = message.getUsername();
+        route( datagram, senderAddress, senderPort );
+    }
 
-                int ctr = 0;
-                while ( !isUsernameAvailable( newUsername ) )
-                {
-                    newUsername = message.getUsername() + ctr;
-                    ctr++;
-                }
+    /**
+     * Passes a received datagram that was not dropped by the rate limit to the reliable channel of its sender, or
+     * dispatches it directly.
+     *
+     * @param datagram      - the received datagram
+     * @param senderAddress - address of the sender
+     * @param senderPort    - port of the sender
+     */
+    private void route( final Datagram datagram, final InetAddress senderAddress, final int senderPort )
+    {
+        final int type = Message.peekType( datagram.getData() );
 
-                log( "Generated a unique name for the new user." );
+        /* Acknowledgements and numbered frames belong to the reliable channel of the sending client. */
+        if ( type == Message.ACK || ( Message.peekFlags( datagram.getData() ) & Message.FLAG_RELIABLE ) != 0 )
+        {
+            receiveReliable( datagram, senderAddress, senderPort );
+        }
+        else
+        {
+            dispatch( datagram, senderAddress, senderPort );
+        }
+    }
 
-                clients.add( new ClientInst( newUsername, senderAddress, senderPort ) );
+    /**
+     * Tells a logged in client that its messages are being dropped for exceeding its rate limit.
+     *
+     * @param senderAddress - address of the throttled sender
+     * @param senderPort    - port of the throttled sender
+     */
+    private void throttled( final InetAddress senderAddress, final int senderPort )
+    {
+        final ClientInst sender = clients.get( senderAddress, senderPort );
 
-                final Message msg = new Message( Message.LOGIN, newUsername );
+        if ( sender == null )
+        {
+            return;
+        }
 
-                sendMessage( msg.getFormattedMessage(), senderAddress, senderPort );
-            }
+        events.log( EventLog.LIMIT, EventLog.WARN, null, sender.getUsername(), " exceeded the rate limit." );
+
+        if ( throttleNotice )
+        {
+            final Message msg = new Message( Message.MSG_CHAT_CMD, "server",
+                    "You are sending messages too fast, some of them were dropped." );
+
+            sendMessage( msg, sender );
         }
-        /* KEEP ALIVE */
-        else if ( message.getType() == Message.KEEP_ALIVE )
+    }
+
+    /**
+     * Passes an acknowledgement or a numbered frame to the reliable channel of the sending client, and dispatches the
+     * frames that are next in order.
+     *
+     * @param datagram      - the received datagram
+     * @param senderAddress - address of the sender
+     * @param senderPort    - port of the sender
+     */
+    private void receiveReliable( final Datagram datagram, final InetAddress senderAddress, final int senderPort )
+    {
+        final ClientInst sender = clients.get( senderAddress, senderPort );
+        final ReliableChannel channel = sender == null ? null : sender.getChannel();
+
+        if ( channel == null )
         {
-            final Optional < ClientInst > maybeClient = findClient( senderAddress, senderPort );
+            metrics.dropped( Message.peekType( datagram.getData() ) );
+            datagram.release();
+            return;
+        }
 
-            if ( maybeClient.isPresent() )
-            {
-                final ClientInst sender = maybeClient.get();
+        sender.touch();
 
-                alive.add( sender );
-            }
+        if ( Message.peekType( datagram.getData() ) == Message.ACK )
+        {
+            channel.onAck( datagram.getData(), System.currentTimeMillis() );
+            datagram.release();
         }
-        /* SECRET SHARING */
-        else if ( message.getType() == Message.DHKX_REQ || message.getType() == Message.DHKX_RES )
+        else if ( channel.receive( datagram.getData() ) )
         {
-            final Optional < ClientInst > maybeClient = findClient( senderAddress, senderPort );
+            dispatch( datagram, senderAddress, senderPort );
 
-            if ( maybeClient.isPresent() )
+            /* Frames that arrived early are handled once the frame before them has been. */
+            byte [ ] ready;
+            while ( ( ready = channel.pollReady() ) != null )
             {
-                final ClientInst sender = maybeClient.get();
-                if ( forwardToPeer( message.getFormattedMessage(), sender ) )
-                {
-                    log( "Forwarded secret parameters from " + sender.getUsername() );
-                }
-                else
-                {
-                    log( "Failed to forward secret parameters from " + sender.getUsername() + " (not paired)." );
-                }
+                dispatch( new Datagram( ByteBuffer.wrap( ready ), sender.getEndpoint() ), senderAddress, senderPort );
             }
         }
-        /* CHAT HANDLING */
-        else if ( message.getType() == Message.MSG_CHAT || message.getType() == Message.MSG_PARAMS )
+        else
         {
-            final Optional < ClientInst > maybeClient = findClient( senderAddress, senderPort );
+            datagram.release();
+        }
+    }
 
-            if ( maybeClient.isPresent() )
-            {
-                final ClientInst sender = maybeClient.get();
-                if ( forwardToPeer( message.getFormattedMessage(), sender ) )
-                {
-                    log( "Forwarded chat message/params from " + sender.getUsername() );
-                }
-                else
-                {
-                    log( "Failed to forward chat message/params from " + sender.getUsername() + " (not paired)." );
+    /**
+     * Handles a received datagram without a sequence number. Messages relayed between peers are forwarded in the
+     * buffer they were received into after reading only their type, while all other messages are decoded and
+     * processed and their buffer returned to the pool.
+     *
+     * @param datagram      - the received datagram
+     * @param senderAddress - address of the sender
+     * @param senderPort    - port of the sender
+     */
+    private void dispatch( final Datagram datagram, final InetAddress senderAddress, final int senderPort )
+    {
+        final int type = Message.peekType( datagram.getData() );
 
-                    final Message msg = new Message( Message.MSG_CHAT_CMD, "server", "You are not in a conversation." );
+        if ( type == Message.MSG_CHAT || type == Message.MSG_PARAMS || type == Message.MSG_SEALED
+                || type == Message.DHKX_REQ || type == Message.DHKX_RES )
+        {
+            relay( type, datagram, senderAddress, senderPort );
+        }
+        /* Fragments are reassembled by the receiving client, only relayed messages may be split. */
+        else if ( ( Message.peekFlags( datagram.getData() ) & Message.FLAG_FRAGMENT ) != 0 )
+        {
+            metrics.dropped( type );
+            datagram.release();
+        }
+        else
+        {
+            /* Fields are decoded from the buffer only if the handling of the message needs them. */
+            processMessage( views.get().wrap( datagram.getData() ), senderAddress, senderPort );
+            datagram.release();
+        }
+    }
 
-                    sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
-                }
+    /**
+     * Forwards a received chat message, cipher parameters, or key exchange secret to the sender's peer without
+     * decoding or copying it.
+     *
+     * @param type          - type of the received message
+     * @param datagram      - the received datagram
+     * @param senderAddress - address of the sender
+     * @param senderPort    - port of the sender
+     */
+    private void relay( final int type, final Datagram datagram, final InetAddress senderAddress,
+            final int senderPort )
+    {
+        final ClientInst sender = clients.get( senderAddress, senderPort );
+
+        if ( sender == null )
+        {
+            metrics.dropped( type );
+            datagram.release();
+            return;
+        }
+
+        sender.touch();
+
+        /* Read before the datagram is passed on. */
+        final long receivedAt = datagram.getReceivedAt();
+
+        /* SECRET SHARING */
+        if ( type == Message.DHKX_REQ || type == Message.DHKX_RES )
+        {
+            if ( forwardToPeer( datagram, sender ) )
+            {
+                metrics.forwarded( type, receivedAt );
+                events.log( EventLog.RELAY, EventLog.DEBUG, "Forwarded secret parameters from ", sender.getUsername(),
+                        null );
+            }
+            else
+            {
+                metrics.dropped( type );
+                datagram.release();
+                events.log( EventLog.RELAY, EventLog.INFO, "Failed to forward secret parameters from ",
+                        sender.getUsername(), " (not paired)." );
             }
         }
-        /* USER LOGOUT HANDLING */
-        else if ( message.getType() == Message.LOGOUT )
+        /* CHAT HANDLING */
+        else if ( forwardToPeer( datagram, sender ) )
         {
-            final Optional < ClientInst > maybeClient = findClient( message.getUsername() );
+            metrics.forwarded( type, receivedAt );
+            events.log( EventLog.RELAY, EventLog.DEBUG, "Forwarded chat message/params from ", sender.getUsername(),
+                    null );
+        }
+        else
+        {
+            metrics.dropped( type );
+            datagram.release();
+            events.log( EventLog.RELAY, EventLog.INFO, "Failed to forward chat message/params from ",
+                    sender.getUsername(), " (not paired)." );
 
-            if ( maybeClient.isPresent() )
-            {
-                final ClientInst sender = maybeClient.get();
+            final Message msg = new Message( Message.MSG_CHAT_CMD, "server", "You are not in a conversation." );
+
+            sendMessage( msg, sender );
+        }
+    }
 
-                log( sender.getUsername() + " left the lobby." );
-                clients.remove( sender );
+    /**
+     * Processes the received messages and reacts appropriately.
+     *
+     * @param message       - view of the received message
+     * @param senderAddress - address of the sender
+     * @param senderPort    - port of the sender
+     */
+    private void processMessage( final MessageView message, final InetAddress senderAddress, final int senderPort )
+    {
+        /* Any datagram from a connected client proves that it is still alive. */
+        final Optional < ClientInst > maybeSender = findClient( senderAddress, senderPort );
+        maybeSender.ifPresent( ClientInst::touch );
 
-                final Optional < ClientPair > maybePair = findPair( sender );
+        /* REPEATED LOGIN, the reply to the first one was lost. */
+        if ( message.getType() == Message.LOGIN && maybeSender.isPresent() )
+        {
+            final ClientInst client = maybeSender.get();
 
-                if ( maybePair.isPresent() )
-                {
-                    final ClientPair pair = maybePair.get();
-                    final ClientInst peer = findPeer( sender ).get();
+            sendMessage( loginReply( message, client ), client );
+        }
+        /* USER LOGIN HANDLING */
+        else if ( message.getType() == Message.LOGIN )
+        {
+            /* Registration is atomic, a variation of the name is generated if it is already taken. */
+            final ClientInst client = clients.register( message.getUsername(), senderAddress, senderPort,
+                    message.getCapabilities() );
 
-                    clientPairs.remove( pair );
+            if ( ( client.getCapabilities() & Message.CAP_RELIABLE ) != 0 && client.getWireVersion() == Message.WIRE_V2 )
+            {
+                client.setChannel( new ReliableChannel(
+                        frame -> sendMessage( frame, client.getAddress(), client.getPort() ) ) );
+            }
 
-                    final Message msg = new Message( Message.PEER_LEFT,
-                            sender.getUsername() + " has left. You have been returned to the lobby." );
+            keepAlive.schedule( client, System.currentTimeMillis() + IDLE_TIMEOUT + jitter() );
+            lobby.add( client.getUsername() );
 
-                    sendMessage( msg.getFormattedMessage(), peer.getAddress(), peer.getPort() );
-                }
+            if ( client.getUsername().equals( message.getUsername() ) )
+            {
+                events.log( EventLog.SESSION, EventLog.INFO, null, client.getUsername(),
+                        " joined the lobby." );
+            }
+            else
+            {
+                events.log( EventLog.SESSION, EventLog.INFO,
+                        "User with a duplicate name tried to join the lobby." );
+                events.log( EventLog.SESSION, EventLog.INFO, "Generated a unique name for the new user." );
             }
+
+            sendMessage( loginReply( message, client ), client );
+        }
+        /* KEEP ALIVE */
+        else if ( message.getType() == Message.KEEP_ALIVE )
+        {
+            /* Nothing else to do, the sender has already been marked as alive. */
+        }
+        /* USER LOGOUT HANDLING */
+        else if ( message.getType() == Message.LOGOUT )
+        {
+            findClient( message.getUsername() ).ifPresent( this::logout );
         }
         /* USER LEFT CONVERSATION */
         else if ( message.getType() == Message.PEER_LEFT )
         {
-            final Optional < ClientInst > maybeClient = findClient( senderAddress, senderPort );
-
-            if ( maybeClient.isPresent() )
+            if ( maybeSender.isPresent() )
             {
-                final ClientInst sender = maybeClient.get();
+                final ClientInst sender = maybeSender.get();
 
-                final Optional < ClientPair > maybePair = findPair( sender );
+                final ClientPair pair = pairs.unpair( sender );
 
-                if ( maybePair.isPresent() )
+                if ( pair != null )
                 {
-                    final ClientPair pair = maybePair.get();
-                    final ClientInst peer = findPeer( sender ).get();
-
-                    clientPairs.remove( pair );
+                    final ClientInst peer = pair.getPeer( sender );
 
                     Message msg = new Message( Message.PEER_LEFT,
                             sender.getUsername() + " has left. You have been returned to the lobby" );
 
-                    sendMessage( msg.getFormattedMessage(), peer.getAddress(), peer.getPort() );
+                    sendMessage( msg, peer );
 
                     msg = new Message( Message.MSG_CHAT_CMD, "server",
                             "You have left the conversation with " + peer.getUsername() + "." );
 
-                    sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
+                    sendMessage( msg, sender );
                 }
             }
         }
         /* CHAT COMMAND HANDLING */
-        else if ( message.getType() == Message.MSG_CHAT_CMD )
+        else if ( message.getType() == Message.MSG_CHAT_CMD && message.getMessage() != null )
         {
             final Optional < ClientInst > maybeClient = findClient( message.getUsername() );
 
@@ -387,16 +817,18 @@ public class Server implements Runnable
             {
                 final ClientInst sender = maybeClient.get();
 
-                /* List command */
-                if ( message.getMessage().equals( "list" ) )
+                /* List command, optionally continuing after the specified username. */
+                if ( message.getMessage().equals( "list" ) || message.getMessage().startsWith( "list " ) )
                 {
-                    final String clientList = getAvailableClientsString( message.getUsername() );
+                    final String cursor = message.getMessage().length() > 5 ? message.getMessage().substring( 5 ) : null;
+                    final String clientList = lobby.getPage( sender.getUsername(), cursor );
 
-                    log( sender.getUsername() + " requested a list of the available clients." );
+                    events.log( EventLog.COMMAND, EventLog.INFO, null, sender.getUsername(),
+                            " requested a list of the available clients." );
 
                     final Message msg = new Message( Message.MSG_CHAT_CMD, "server", clientList );
 
-                    sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
+                    sendMessage( msg, sender );
                 }
                 /* Join command. */
                 else if ( message.getMessage().startsWith( "join" ) )
@@ -410,7 +842,6 @@ public class Server implements Runnable
                         if ( maybeNewPeer.isPresent() )
                         {
                             final ClientInst newPeer = maybeNewPeer.get();
-                            final Optional < ClientPair > maybePair = findPair( newPeer );
 
                             /* Client tried to start a conversation with themselves. */
                             if ( newPeer.equals( sender ) )
@@ -418,46 +849,29 @@ public class Server implements Runnable
                                 final Message msg = new Message( Message.MSG_CHAT_CMD, "server",
                                         "You can't start a conversation with yourself." );
 
-                                sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
+                                sendMessage( msg, sender );
                             }
                             /* Client is already in a conversation. */
-                            else if ( findPair( sender ).isPresent() )
+                            else if ( pairs.isPaired( sender ) )
                             {
                                 final Message msg = new Message( Message.MSG_CHAT_CMD, "server",
                                         "You are already in a conversation with "
                                                 + findPeer( sender ).get().getUsername() + "." );
 
-                                sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
-                            }
-                            /* Requested peer is already in a conversation. */
-                            else if ( maybePair.isPresent() )
-                            {
-                                final Message msg = new Message( Message.PEER_BUSY );
-
-                                sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
+                                sendMessage( msg, sender );
                             }
-                            /* Everything is OK. */
+                            /* The state of the requested peer is decided by the shard owning it. */
                             else
                             {
-                                Message msg = new Message( Message.PEER_AVAILABLE );
-
-                                sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
-
-                                msg = new Message( Message.NEW_PEER, sender.getUsername(),
-                                        "Entering a conversation with " + sender.getUsername() + "." );
-
-                                sendMessage( msg.getFormattedMessage(), newPeer.getAddress(), newPeer.getPort() );
-
-                                clientPairs.add( new ClientPair( sender, newPeer ) );
+                                execute( newPeer, () -> acceptJoin( sender, newPeer ) );
                             }
-
                         }
                         /* Specified username not found. */
                         else
                         {
                             final Message msg = new Message( Message.MSG_CHAT_CMD, "server", "User not found." );
 
-                            sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
+                            sendMessage( msg, sender );
                         }
                     }
                     /* Invalid usage of the command. */
@@ -466,7 +880,7 @@ public class Server implements Runnable
                         final Message msg = new Message( Message.MSG_CHAT_CMD, "server",
                                 "Join command usage:\n/join <username>" );
 
-                        sendMessage( msg.getFormattedMessage(), sender.getAddress(), sender.getPort() );
+                        sendMessage( msg, sender );
                     }
                 }
             }
@@ -474,84 +888,120 @@ public class Server implements Runnable
     }
 
     /**
-     * Returns a list of client instances not in a conversation.
+     * Pairs the specified clients if the requested peer is available, and tells both of them the outcome. Run by the
+     * shard owning the requested peer, the reply to the initiator is passed back to the shard owning it.
      *
-     * @return a list of available client instances
+     * @param sender  - the client that sent the join command
+     * @param newPeer - the requested peer
      */
-    private List < ClientInst > getAvailableClients()
+    private void acceptJoin( final ClientInst sender, final ClientInst newPeer )
     {
-        return clients.stream().filter( client -> clientPairs.stream().noneMatch( pair -> pair.contains( client ) ) )
-                .collect( Collectors.toList() );
+        /*
+         * Requested peer is already in a conversation, or meanwhile the initiator was joined by someone else or either
+         * client logged out on its own shard.
+         */
+        if ( pairs.isPaired( newPeer ) || pairs.pair( sender, newPeer ) == null )
+        {
+            execute( sender, () -> sendMessage( new Message( Message.PEER_BUSY ), sender ) );
+            return;
+        }
+
+        /* Everything is OK, the clients were paired atomically. */
+        final Message msg = new Message( Message.NEW_PEER, sender.getUsername(),
+                "Entering a conversation with " + sender.getUsername() + "." );
+
+        sendMessage( msg, newPeer );
+
+        /* Tell the initiator what the peer supports, so that it can propose the key exchange. */
+        final Message reply = sender.getCapabilities() == 0 ? new Message( Message.PEER_AVAILABLE )
+                : new Message( Message.PEER_AVAILABLE, "", newPeer.getCapabilities() );
+
+        execute( sender, () -> sendMessage( reply, sender ) );
     }
 
     /**
-     * Returns a string representation of a list of available clients.
+     * Runs the specified task on the shard owning the specified client, or at once without client shards.
      *
-     * @param requester - username of the party requesting the list
-     * @return a string representation of a list of available clients
+     * @param client - the client the task concerns
+     * @param task   - task to be run
      */
-    private String getAvailableClientsString( final String requester )
+    private void execute( final ClientInst client, final Runnable task )
     {
-        final List < ClientInst > availableClients = getAvailableClients();
-
-        final StringBuilder list = new StringBuilder( "Available users:\n" );
-        for ( final ClientInst client : availableClients )
+        if ( shards == null )
         {
-            list.append( " - " + client.getUsername() );
-            if ( client.getUsername().equals( requester ) )
-            {
-                list.append( " (you)" );
-            }
-            list.append( "\n" );
+            task.run();
+        }
+        else
+        {
+            shards.execute( client, task );
         }
-
-        return list.toString();
     }
 
     /**
-     * Returns a client instance with the specified username if one is connected to the server.
+     * Returns the reply to a LOGIN message confirming the username of the registered client. Only a client that
+     * advertised capabilities is told which of them the server shares.
      *
-     * @param username - username of a client to be searched
-     * @return a client instance with the specified username if present, empty otherwise
+     * @param message - view of the received LOGIN message
+     * @param client  - the registered client
+     * @return the reply to the client
      */
-    private Optional < ClientInst > findClient( final String username )
+    private static Message loginReply( final MessageView message, final ClientInst client )
     {
-        return clients.stream().filter( client -> client.getUsername().equals( username ) ).findFirst();
+        if ( message.getCapabilities() == 0 )
+        {
+            return new Message( Message.LOGIN, client.getUsername() );
+        }
+        return new Message( Message.LOGIN, client.getUsername(), client.getCapabilities() & CAPABILITIES );
     }
 
     /**
-     * Returns a client instance with the specified address and port number if one is connected to the server.
+     * Removes the specified client from the server, returning its peer to the lobby.
      *
-     * @param address - address of a client to be searched
-     * @param port    - port number of a client to be searched
-     * @return a client instance with the specified address and port number if present, empty otherwise
+     * @param client - a client leaving the server
      */
-    private Optional < ClientInst > findClient( final InetAddress address, final int port )
+    private void logout( final ClientInst client )
     {
-        return clients.stream().filter( client -> client.getAddress().equals( address ) && client.getPort() == port )
-                .findFirst();
+        events.log( EventLog.SESSION, EventLog.INFO, null, client.getUsername(), " left the lobby." );
+        clients.remove( client );
+
+        final ClientPair pair = pairs.leave( client );
+
+        if ( pair != null )
+        {
+            final ClientInst peer = pair.getPeer( client );
+
+            final Message msg = new Message( Message.PEER_LEFT,
+                    client.getUsername() + " has left. You have been returned to the lobby." );
+
+            sendMessage( msg, peer );
+        }
     }
 
     /**
-     * Returns <code>true</code> if the specified username is available.
+     * Returns a client instance with the specified username if one is connected to the server.
      *
-     * @param username - requested username
-     * @return <code>true</code> if the specified username is available
+     * @param username - username of a client to be searched
+     * @return a client instance with the specified username if present, empty otherwise
      */
-    private boolean isUsernameAvailable( final String username )
+    private Optional < ClientInst > findClient( final String username )
     {
-        return !findClient( username ).isPresent();
+        if ( username == null )
+        {
+            return Optional.empty();
+        }
+        return Optional.ofNullable( clients.get( username ) );
     }
 
     /**
-     * Returns a client pair containing the specified client instance if one is present.
+     * Returns a client instance with the specified address and port number if one is connected to the server.
      *
-     * @param client - a client instance to be searched for
-     * @return a client pair containing the specified client instance if one is present, empty otherwise
+     * @param address - address of a client to be searched
+     * @param port    - port number of a client to be searched
+     * @return a client instance with the specified address and port number if present, empty otherwise
      */
-    private Optional < ClientPair > findPair( final ClientInst client )
+    private Optional < ClientInst > findClient( final InetAddress address, final int port )
     {
-        return clientPairs.stream().filter( pair -> pair.contains( client ) ).findFirst();
+        return Optional.ofNullable( clients.get( address, port ) );
     }
 
     /**
@@ -562,51 +1012,56 @@ public class Server implements Runnable
      */
     private Optional < ClientInst > findPeer( final ClientInst client )
     {
-        final Optional < ClientPair > maybePair = findPair( client );
-
-        if ( maybePair.isPresent() )
-        {
-            final ClientPair pair = maybePair.get();
-
-            final ClientInst peer = pair.getFirst().equals( client ) ? pair.getSecond() : pair.getFirst();
-
-            return Optional.of( peer );
-        }
-
-        return Optional.empty();
+        return Optional.ofNullable( pairs.getPeer( client ) );
     }
 
     /**
-     * Forwards the specified message to the specified client's peer.
+     * Forwards the specified received datagram to the specified client's peer, passing on its ownership.
      *
-     * @param formattedMessage - a message to be forwarded
-     * @param sender           - the client instance the message originated from
-     * @return <code>true</code> if the forwarding was successful
+     * @param datagram - the datagram to be forwarded
+     * @param sender   - the client instance the message originated from
+     * @return <code>true</code> if the forwarding was successful, <code>false</code> if the datagram is still owned by
+     *         the caller
      */
-    private boolean forwardToPeer( final byte [ ] formattedMessage, final ClientInst sender )
+    private boolean forwardToPeer( final Datagram datagram, final ClientInst sender )
     {
-        final Optional < ClientInst > maybePeer = findPeer( sender );
+        /* A single index lookup, as this is done for every forwarded message. */
+        final ClientInst peer = pairs.getPeer( sender );
+
+        if ( peer == null )
+        {
+            return false;
+        }
 
-        if ( maybePeer.isPresent() )
+        /* A reliable channel keeps a numbered copy until the peer acknowledges it. */
+        if ( peer.getChannel() != null )
         {
-            final ClientInst peer = maybePeer.get();
+            final byte [ ] frame = Message.reframe( datagram.getData(), Message.WIRE_V2 );
+            datagram.release();
+
+            if ( frame != null )
+            {
+                peer.getChannel().send( frame, System.currentTimeMillis() );
+            }
+            return true;
+        }
 
-            sendMessage( formattedMessage, peer.getAddress(), peer.getPort() );
+        /* Peers using different framings get a re-encoded copy, otherwise the received buffer is passed on as is. */
+        if ( Message.peekVersion( datagram.getData() ) != peer.getWireVersion() )
+        {
+            final byte [ ] reframed = Message.reframe( datagram.getData(), peer.getWireVersion() );
+            datagram.release();
 
+            if ( reframed != null )
+            {
+                sendMessage( reframed, peer.getAddress(), peer.getPort() );
+            }
             return true;
         }
 
-        return false;
-    }
+        datagram.setTarget( peer.getEndpoint() );
+        send( datagram );
 
-    /**
-     * Logs an event to the console of the server.
-     *
-     * @param message - event message to be logged
-     */
-    private void log( final String message )
-    {
-        final String timeStamp = new SimpleDateFormat( "HH:mm:ss" ).format( new Date() );
-        System.err.println( timeStamp + " " + message );
+        return true;
     }
 }
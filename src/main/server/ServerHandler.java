@@ -1,5 +1,9 @@
 package main.server;
 
+import java.nio.file.Paths;
+
+import main.common.SendQueue;
+
 /**
  * A class providing the functionality to start a server.
  *
@@ -14,23 +18,182 @@ public class ServerHandler
      */
     public ServerHandler( final int port )
     {
-        new Server( port );
+        this( port, new ServerOptions() );
+    }
+
+    /**
+     * Constructs a new server handler.
+     *
+     * @param port    - port of the server to be started
+     * @param options - optional settings of the server to be started
+     */
+    public ServerHandler( final int port, final ServerOptions options )
+    {
+        new Server( port, options );
     }
 
     public static void main( final String [ ] args )
     {
-        int port;
+        int port = 1984;
+        int first = 0;
+
+        /* The port is optional, so options may follow it or start right away. */
+        if ( args.length > 0 && !args[ 0 ].startsWith( "-" ) )
+        {
+            try
+            {
+                port = Integer.parseInt( args[ 0 ] );
+                first = 1;
+            }
+            catch ( final NumberFormatException e )
+            {
+                System.out.println( "Invalid port: " + args[ 0 ] );
+                printUsage();
+                return;
+            }
+        }
+
+        final ServerOptions options = new ServerOptions();
+
+        try
+        {
+            for ( int i = first; i < args.length; i++ )
+            {
+                if ( args[ i ].equals( "-nio" ) )
+                {
+                    options.setUseSelector( true );
+                }
+                else if ( args[ i ].equals( "-direct" ) )
+                {
+                    options.setUseDirectBuffers( true );
+                }
+                else if ( args[ i ].equals( "-shards" ) )
+                {
+                    options.setShardCount( intOf( args, ++i ) );
+                }
+                else if ( args[ i ].equals( "-actors" ) )
+                {
+                    options.setActorCount( intOf( args, ++i ) );
+                }
+                else if ( args[ i ].equals( "-queue" ) )
+                {
+                    final int capacity = intOf( args, ++i );
+
+                    if ( capacity < 1 )
+                    {
+                        throw new IllegalArgumentException( "Invalid value of -queue: " + args[ i ] );
+                    }
+                    options.setSendQueueCapacity( capacity );
+                }
+                else if ( args[ i ].equals( "-drop" ) )
+                {
+                    options.setSendQueuePolicy( SendQueue.POLICY_DROP );
+                }
+                else if ( args[ i ].equals( "-nolimit" ) )
+                {
+                    options.setRateLimiting( false );
+                }
+                else if ( args[ i ].equals( "-nonotice" ) )
+                {
+                    options.setThrottleNotice( false );
+                }
+                else if ( args[ i ].equals( "-logdir" ) )
+                {
+                    options.setLogDirectory( Paths.get( valueOf( args, ++i ) ) );
+                }
+                else if ( args[ i ].equals( "-logsize" ) )
+                {
+                    options.setLogFileSize( intOf( args, ++i ) * 1024L * 1024 );
+                }
+                else if ( args[ i ].equals( "-log" ) )
+                {
+                    final String [ ] setting = valueOf( args, ++i ).split( "=" );
+                    final int category = EventLog.parseCategory( setting[ 0 ] );
+                    final int level = setting.length > 1 ? EventLog.parseLevel( setting[ 1 ] ) : -1;
+
+                    if ( category < 0 || level < 0 )
+                    {
+                        throw new IllegalArgumentException( "Invalid log setting: " + args[ i ] );
+                    }
+                    options.setLogLevel( category, level );
+                }
+                else
+                {
+                    throw new IllegalArgumentException( "Unknown option: " + args[ i ] );
+                }
+            }
+        }
+        catch ( final IllegalArgumentException e )
+        {
+            System.out.println( e.getMessage() );
+            printUsage();
+            return;
+        }
+
+        if ( first == 0 )
+        {
+            System.out.println( "Starting CryptoGram Server on the default port 1984." );
+        }
+
+        new ServerHandler( port, options );
+    }
+
+    /**
+     * Returns the value of the option preceding the specified index.
+     *
+     * @param args  - the command line arguments
+     * @param index - index of the value
+     * @return the value of the option
+     * @throws IllegalArgumentException if the option is the last argument
+     */
+    private static String valueOf( final String [ ] args, final int index )
+    {
+        if ( index >= args.length )
+        {
+            throw new IllegalArgumentException( "Missing value of " + args[ index - 1 ] );
+        }
+        return args[ index ];
+    }
+
+    /**
+     * Returns the numeric value of the option preceding the specified index.
+     *
+     * @param args  - the command line arguments
+     * @param index - index of the value
+     * @return the value of the option
+     * @throws IllegalArgumentException if the value is missing or not a number
+     */
+    private static int intOf( final String [ ] args, final int index )
+    {
+        final String value = valueOf( args, index );
+
         try
         {
-            port = Integer.parseInt( args[ 0 ] );
+            return Integer.parseInt( value );
         }
-        catch ( final Exception e )
+        catch ( final NumberFormatException e )
         {
-            System.out.println( "Usage: java -jar CryptoGramServer.jar [port]" );
-            System.out.println( "Starting CryptoGram Server on the default port 1948." );
-            port = 1984;
+            throw new IllegalArgumentException( "Invalid value of " + args[ index - 1 ] + ": " + value );
         }
+    }
 
-        new ServerHandler( port );
+    /**
+     * Prints the command line usage of the server.
+     */
+    private static void printUsage()
+    {
+        System.out.println( "Usage: java -jar CryptoGramServer.jar [port] [options]" );
+        System.out.println( "Options:" );
+        System.out.println( "  -nio                        handle all traffic in selector-driven event loops" );
+        System.out.println( "  -direct                     with -nio, receive into pooled direct buffers" );
+        System.out.println( "  -shards <count>             open this many sockets on the port with SO_REUSEPORT" );
+        System.out.println( "  -actors <count>             process the clients on this many single-threaded shards" );
+        System.out.println( "  -queue <capacity>           maximum number of outbound datagrams waiting" );
+        System.out.println( "  -drop                       drop outbound datagrams when the send queue is full" );
+        System.out.println( "  -nolimit                    disable the per-client rate limit" );
+        System.out.println( "  -nonotice                   do not tell throttled clients about dropped messages" );
+        System.out.println( "  -logdir <directory>         write the event log to rotating files in the directory" );
+        System.out.println( "  -logsize <megabytes>        size at which a log file is rotated" );
+        System.out.println( "  -log <category>=<level>     minimum level of the events logged in a category" );
     }
 }
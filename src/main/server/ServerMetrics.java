@@ -0,0 +1,394 @@
+package main.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import main.common.Message;
+import main.common.SendQueue;
+
+/**
+ * Counts the messages handled by a server and measures its forwarding latency. Counters are updated by the receiving
+ * threads without locking, while the gauges are read from the server's state only when queried.
+ *
+ * @author Lauri Halla-aho
+ */
+class ServerMetrics implements ServerMetricsMXBean
+{
+    /**
+     * Message types are counted in a slot of their own up to this value, and above it in the slot of invalid types.
+     */
+    private static final int MAX_TYPE = 63;
+
+    private static final int INVALID = MAX_TYPE + 1;
+
+    /**
+     * Number of latency buckets. Bucket <code>i</code> counts latencies below <code>2^i</code> microseconds, and the
+     * last one everything above.
+     */
+    private static final int LATENCY_BUCKETS = 24;
+
+    private final ClientRegistry clients;
+    private final Lobby lobby;
+    private final PairIndex pairs;
+    private final List < SendQueue > sendQueues;
+    private final ClientShards shards;
+    private final RateLimiter rateLimiter;
+    private final EventLog events;
+
+    private final AtomicLongArray received = new AtomicLongArray( INVALID + 1 );
+    private final AtomicLongArray forwarded = new AtomicLongArray( INVALID + 1 );
+    private final AtomicLongArray dropped = new AtomicLongArray( INVALID + 1 );
+    private final AtomicLong keepAliveTimeouts = new AtomicLong();
+
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray( LATENCY_BUCKETS );
+    private final LongAdder latencyCount = new LongAdder();
+    private final LongAdder latencySum = new LongAdder();
+
+    /**
+     * Constructs the metrics of a server with the specified state.
+     *
+     * @param clients     - the registry of connected clients
+     * @param lobby       - the clients available for a conversation
+     * @param pairs       - the conversations in progress
+     * @param sendQueues  - the outbound queues of each shard
+     * @param shards      - the shards processing the clients, <code>null</code> if disabled
+     * @param rateLimiter - the rate limiter of received messages, <code>null</code> if disabled
+     * @param events      - the event log of the server
+     */
+    ServerMetrics( final ClientRegistry clients, final Lobby lobby, final PairIndex pairs,
+            final List < SendQueue > sendQueues, final ClientShards shards, final RateLimiter rateLimiter,
+            final EventLog events )
+    {
+        this.clients = clients;
+        this.lobby = lobby;
+        this.pairs = pairs;
+        this.sendQueues = sendQueues;
+        this.shards = shards;
+        this.rateLimiter = rateLimiter;
+        this.events = events;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server.
+     *
+     * @param serverPort - the port of the server, distinguishing servers running in the same process
+     * @throws JMException if the metrics cannot be registered
+     */
+    void register( final int serverPort ) throws JMException
+    {
+        ManagementFactory.getPlatformMBeanServer().registerMBean( this,
+                new ObjectName( "CryptoGram:type=Server,port=" + serverPort ) );
+    }
+
+    /**
+     * Counts a received datagram.
+     *
+     * @param type - type of the datagram, or -1 if it does not contain a formatted message
+     */
+    void received( final int type )
+    {
+        received.incrementAndGet( slot( type ) );
+    }
+
+    /**
+     * Counts a received datagram that was dropped.
+     *
+     * @param type - type of the datagram, or -1 if it does not contain a formatted message
+     */
+    void dropped( final int type )
+    {
+        dropped.incrementAndGet( slot( type ) );
+    }
+
+    /**
+     * Counts a message forwarded to a peer and records its latency.
+     *
+     * @param type       - type of the message
+     * @param receivedAt - the value of {@link System#nanoTime()} when the message was received, 0 if unknown
+     */
+    void forwarded( final int type, final long receivedAt )
+    {
+        forwarded.incrementAndGet( slot( type ) );
+
+        if ( receivedAt != 0 )
+        {
+            final long micros = Math.max( 0, ( System.nanoTime() - receivedAt ) / 1000 );
+
+            /* The number of significant bits is the index of the power of two bounding the latency. */
+            latencyBuckets.incrementAndGet( Math.min( LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros( micros ) ) );
+            latencyCount.increment();
+            latencySum.add( micros );
+        }
+    }
+
+    /**
+     * Counts a client removed for not answering keep-alive probes or not acknowledging reliable messages.
+     */
+    void timedOut()
+    {
+        keepAliveTimeouts.incrementAndGet();
+    }
+
+    @Override
+    public int getConnectedClients()
+    {
+        return clients.size();
+    }
+
+    @Override
+    public int getLobbySize()
+    {
+        return lobby.size();
+    }
+
+    @Override
+    public int getActivePairs()
+    {
+        return pairs.size();
+    }
+
+    @Override
+    public long getKeepAliveTimeouts()
+    {
+        return keepAliveTimeouts.get();
+    }
+
+    @Override
+    public int getSendQueueDepth()
+    {
+        int depth = 0;
+        for ( final SendQueue queue : sendQueues )
+        {
+            depth += queue.getDepth();
+        }
+        return depth;
+    }
+
+    @Override
+    public int getMailboxDepth()
+    {
+        return shards == null ? 0 : shards.getDepth();
+    }
+
+    @Override
+    public long getSendQueueDrops()
+    {
+        long drops = 0;
+        for ( final SendQueue queue : sendQueues )
+        {
+            drops += queue.getDropCount();
+        }
+        return drops;
+    }
+
+    @Override
+    public long getThrottledMessages()
+    {
+        if ( rateLimiter == null )
+        {
+            return 0;
+        }
+
+        long throttled = 0;
+        for ( int messageClass = 0; messageClass < RateLimiter.CLASS_COUNT; messageClass++ )
+        {
+            throttled += rateLimiter.getDropCount( messageClass );
+        }
+        return throttled;
+    }
+
+    @Override
+    public long getLogDrops()
+    {
+        return events.getDropCount();
+    }
+
+    @Override
+    public Map < String, Long > getReceivedMessages()
+    {
+        return byType( received );
+    }
+
+    @Override
+    public Map < String, Long > getForwardedMessages()
+    {
+        return byType( forwarded );
+    }
+
+    @Override
+    public Map < String, Long > getDroppedMessages()
+    {
+        return byType( dropped );
+    }
+
+    @Override
+    public long getForwardLatencyCount()
+    {
+        return latencyCount.sum();
+    }
+
+    @Override
+    public double getForwardLatencyMeanMicros()
+    {
+        final long count = latencyCount.sum();
+
+        return count == 0 ? 0 : (double) latencySum.sum() / count;
+    }
+
+    @Override
+    public long getForwardLatencyP50Micros()
+    {
+        return percentile( 0.5 );
+    }
+
+    @Override
+    public long getForwardLatencyP99Micros()
+    {
+        return percentile( 0.99 );
+    }
+
+    @Override
+    public Map < String, Long > getForwardLatencyHistogram()
+    {
+        final Map < String, Long > histogram = new LinkedHashMap <>();
+
+        for ( int bucket = 0; bucket < LATENCY_BUCKETS; bucket++ )
+        {
+            final long count = latencyBuckets.get( bucket );
+
+            if ( count != 0 )
+            {
+                histogram.put( bucket == LATENCY_BUCKETS - 1 ? ">" + upperBound( bucket - 1 ) + "us"
+                        : "<=" + upperBound( bucket ) + "us", count );
+            }
+        }
+
+        return histogram;
+    }
+
+    /**
+     * Returns the upper bound of the latency bucket containing the specified fraction of the samples.
+     *
+     * @param fraction - a fraction between 0 and 1
+     * @return the upper bound of the bucket in microseconds, 0 if there are no samples
+     */
+    private long percentile( final double fraction )
+    {
+        long total = 0;
+        for ( int bucket = 0; bucket < LATENCY_BUCKETS; bucket++ )
+        {
+            total += latencyBuckets.get( bucket );
+        }
+
+        final long rank = (long) Math.ceil( total * fraction );
+        long seen = 0;
+
+        for ( int bucket = 0; bucket < LATENCY_BUCKETS && total > 0; bucket++ )
+        {
+            seen += latencyBuckets.get( bucket );
+
+            if ( seen >= rank )
+            {
+                return upperBound( bucket );
+            }
+        }
+
+        return 0;
+    }
+
+    /**
+     * Returns the largest latency counted in the specified bucket.
+     *
+     * @param bucket - index of a latency bucket
+     * @return the upper bound of the bucket in microseconds
+     */
+    private static long upperBound( final int bucket )
+    {
+        return ( 1L << bucket ) - 1;
+    }
+
+    /**
+     * Returns the non-zero counters of the specified array keyed by the name of their message type.
+     *
+     * @param counters - counters indexed by slot
+     * @return the counters keyed by type name
+     */
+    private static Map < String, Long > byType( final AtomicLongArray counters )
+    {
+        final Map < String, Long > counts = new LinkedHashMap <>();
+
+        for ( int slot = 0; slot < counters.length(); slot++ )
+        {
+            final long count = counters.get( slot );
+
+            if ( count != 0 )
+            {
+                counts.put( slot == INVALID ? "INVALID" : typeName( slot ), count );
+            }
+        }
+
+        return counts;
+    }
+
+    /**
+     * Returns the counter slot of the specified message type.
+     *
+     * @param type - a message type, or -1 if the datagram does not contain a formatted message
+     * @return the slot of the type
+     */
+    private static int slot( final int type )
+    {
+        return type < 0 || type > MAX_TYPE ? INVALID : type;
+    }
+
+    /**
+     * Returns the name of the specified message type.
+     *
+     * @param type - a message type
+     * @return the name of the constant of the type in {@link Message}, or the number of an unknown type
+     */
+    private static String typeName( final int type )
+    {
+        switch ( type )
+        {
+            case Message.MSG_CHAT:
+                return "MSG_CHAT";
+            case Message.MSG_PARAMS:
+                return "MSG_PARAMS";
+            case Message.MSG_CHAT_CMD:
+                return "MSG_CHAT_CMD";
+            case Message.KEEP_ALIVE:
+                return "KEEP_ALIVE";
+            case Message.MSG_SEALED:
+                return "MSG_SEALED";
+            case Message.ACK:
+                return "ACK";
+            case Message.LOGIN:
+                return "LOGIN";
+            case Message.LOGOUT:
+                return "LOGOUT";
+            case Message.PEER_AVAILABLE:
+                return "PEER_AVAILABLE";
+            case Message.PEER_BUSY:
+                return "PEER_BUSY";
+            case Message.PEER_LEFT:
+                return "PEER_LEFT";
+            case Message.NEW_PEER:
+                return "NEW_PEER";
+            case Message.DHKX_REQ:
+                return "DHKX_REQ";
+            case Message.DHKX_RES:
+                return "DHKX_RES";
+            default:
+                return "TYPE_" + type;
+        }
+    }
+}
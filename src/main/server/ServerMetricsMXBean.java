@@ -0,0 +1,132 @@
+package main.server;
+
+import java.util.Map;
+
+/**
+ * The metrics of a running server exported through the platform MBean server under
+ * <code>CryptoGram:type=Server,port=&lt;port&gt;</code>.
+ *
+ * @author Lauri Halla-aho
+ */
+public interface ServerMetricsMXBean
+{
+    /**
+     * Returns the number of logged in clients.
+     *
+     * @return the number of connected clients
+     */
+    int getConnectedClients();
+
+    /**
+     * Returns the number of clients in the lobby, available for a conversation.
+     *
+     * @return the number of clients in the lobby
+     */
+    int getLobbySize();
+
+    /**
+     * Returns the number of conversations in progress.
+     *
+     * @return the number of active client pairs
+     */
+    int getActivePairs();
+
+    /**
+     * Returns the number of clients removed for not answering keep-alive probes.
+     *
+     * @return the number of keep-alive timeouts
+     */
+    long getKeepAliveTimeouts();
+
+    /**
+     * Returns the number of outbound datagrams waiting to be sent, summed over all shards.
+     *
+     * @return the depth of the send queues
+     */
+    int getSendQueueDepth();
+
+    /**
+     * Returns the number of received datagrams and other tasks waiting in the mailboxes of the client shards.
+     *
+     * @return the depth of the mailboxes, 0 if messages are processed by the receiving threads
+     */
+    int getMailboxDepth();
+
+    /**
+     * Returns the number of outbound datagrams dropped because a send queue was full.
+     *
+     * @return the number of datagrams dropped by the send queues
+     */
+    long getSendQueueDrops();
+
+    /**
+     * Returns the number of received messages dropped for exceeding their sender's rate limit.
+     *
+     * @return the number of throttled messages
+     */
+    long getThrottledMessages();
+
+    /**
+     * Returns the number of events dropped because the event log could not keep up.
+     *
+     * @return the number of dropped log events
+     */
+    long getLogDrops();
+
+    /**
+     * Returns the number of received datagrams per message type.
+     *
+     * @return the number of received datagrams keyed by type name
+     */
+    Map < String, Long > getReceivedMessages();
+
+    /**
+     * Returns the number of messages forwarded to a peer per message type.
+     *
+     * @return the number of forwarded messages keyed by type name
+     */
+    Map < String, Long > getForwardedMessages();
+
+    /**
+     * Returns the number of received datagrams dropped per message type, whether throttled, not deliverable or
+     * invalid.
+     *
+     * @return the number of dropped datagrams keyed by type name
+     */
+    Map < String, Long > getDroppedMessages();
+
+    /**
+     * Returns the number of forwarded messages whose latency has been measured.
+     *
+     * @return the number of latency samples
+     */
+    long getForwardLatencyCount();
+
+    /**
+     * Returns the mean time from receiving a message to handing it to the transport towards the peer.
+     *
+     * @return the mean forwarding latency in microseconds
+     */
+    double getForwardLatencyMeanMicros();
+
+    /**
+     * Returns the median forwarding latency, rounded up to the histogram bucket it falls into.
+     *
+     * @return the upper bound of the median forwarding latency in microseconds
+     */
+    long getForwardLatencyP50Micros();
+
+    /**
+     * Returns the 99th percentile of the forwarding latency, rounded up to the histogram bucket it falls into.
+     *
+     * @return the upper bound of the 99th percentile forwarding latency in microseconds
+     */
+    long getForwardLatencyP99Micros();
+
+    /**
+     * Returns the histogram of the forwarding latency in buckets doubling in width.
+     *
+     * @return the number of samples keyed by the upper bound of each non-empty bucket, such as <code>&lt;=64us</code>
+     */
+    Map < String, Long > getForwardLatencyHistogram();
+}
@@ -0,0 +1,265 @@
+package main.server;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import main.common.SendQueue;
+
+/**
+ * Contains the optional settings of a server.
+ *
+ * @author Lauri Halla-aho
+ */
+public class ServerOptions
+{
+    public static final long MIN_LOG_FILE_SIZE = 64 * 1024;
+
+    private boolean useSelector = false;
+    private int shardCount = 1;
+    private int actorCount = 0;
+    private boolean useDirectBuffers = false;
+    private boolean rateLimiting = true;
+    private boolean throttleNotice = true;
+
+    private int sendQueueCapacity = SendQueue.DEFAULT_CAPACITY;
+    private int sendQueuePolicy = SendQueue.POLICY_BLOCK;
+
+    private Path logDirectory = null;
+    private long logFileSize = EventLog.DEFAULT_FILE_SIZE;
+    private final int [ ] logLevels = new int [ EventLog.CATEGORY_COUNT ];
+
+    /**
+     * Constructs the default settings.
+     */
+    public ServerOptions()
+    {
+        Arrays.fill( logLevels, EventLog.INFO );
+    }
+
+    /**
+     * Returns <code>true</code> if messages are handled by a selector-driven event loop.
+     *
+     * @return <code>true</code> if messages are handled by a selector-driven event loop
+     */
+    public boolean useSelector()
+    {
+        return useSelector;
+    }
+
+    /**
+     * Sets whether messages are handled by a selector-driven event loop on a non-blocking channel instead of blocking
+     * socket threads.
+     *
+     * @param useSelector - <code>true</code> if a selector-driven event loop should be used
+     */
+    public void setUseSelector( final boolean useSelector )
+    {
+        this.useSelector = useSelector;
+    }
+
+    /**
+     * Returns the number of sockets sharing the server port, each with its own receiving loop.
+     *
+     * @return the number of receive shards
+     */
+    public int getShardCount()
+    {
+        return shardCount;
+    }
+
+    /**
+     * Sets the number of sockets opened on the server port with SO_REUSEPORT, each with its own receiving loop.
+     *
+     * @param shardCount - the number of receive shards, at least one
+     */
+    public void setShardCount( final int shardCount )
+    {
+        this.shardCount = Math.max( 1, shardCount );
+    }
+
+    /**
+     * Returns the number of single-threaded shards the clients are partitioned onto.
+     *
+     * @return the number of client shards, 0 if messages are processed by the receiving threads
+     */
+    public int getActorCount()
+    {
+        return actorCount;
+    }
+
+    /**
+     * Sets the number of single-threaded shards the clients are partitioned onto by their address and port. Each
+     * shard processes the messages of its own clients in order, and work concerning a client of another shard is
+     * passed to that shard as a message.
+     *
+     * @param actorCount - the number of client shards, 0 to process messages on the receiving threads
+     */
+    public void setActorCount( final int actorCount )
+    {
+        this.actorCount = Math.max( 0, actorCount );
+    }
+
+    /**
+     * Returns <code>true</code> if event loops receive datagrams into direct buffers.
+     *
+     * @return <code>true</code> if pooled receive buffers are allocated outside of the heap
+     */
+    public boolean useDirectBuffers()
+    {
+        return useDirectBuffers;
+    }
+
+    /**
+     * Sets whether event loops receive datagrams into direct buffers allocated outside of the heap. Has no effect
+     * without a selector-driven event loop.
+     *
+     * @param useDirectBuffers - <code>true</code> if direct buffers should be used
+     */
+    public void setUseDirectBuffers( final boolean useDirectBuffers )
+    {
+        this.useDirectBuffers = useDirectBuffers;
+    }
+
+    /**
+     * Returns <code>true</code> if the messages received from each client are rate limited.
+     *
+     * @return <code>true</code> if messages over a client's budget are dropped before they are decoded
+     */
+    public boolean useRateLimiting()
+    {
+        return rateLimiting;
+    }
+
+    /**
+     * Sets whether the messages received from each client are limited to a budget per message class, dropping the
+     * excess before it is decoded.
+     *
+     * @param rateLimiting - <code>true</code> if messages should be rate limited
+     */
+    public void setRateLimiting( final boolean rateLimiting )
+    {
+        this.rateLimiting = rateLimiting;
+    }
+
+    /**
+     * Returns <code>true</code> if throttled clients are told that their messages are being dropped.
+     *
+     * @return <code>true</code> if throttle notices are sent
+     */
+    public boolean sendThrottleNotice()
+    {
+        return throttleNotice;
+    }
+
+    /**
+     * Sets whether a logged in client whose messages are being dropped by the rate limit is told so, at most once every
+     * few seconds.
+     *
+     * @param throttleNotice - <code>true</code> if throttle notices should be sent
+     */
+    public void setThrottleNotice( final boolean throttleNotice )
+    {
+        this.throttleNotice = throttleNotice;
+    }
+
+    /**
+     * Returns the maximum number of outbound datagrams waiting to be sent.
+     *
+     * @return the capacity of the outbound send queue
+     */
+    public int getSendQueueCapacity()
+    {
+        return sendQueueCapacity;
+    }
+
+    /**
+     * Sets the maximum number of outbound datagrams waiting to be sent.
+     *
+     * @param sendQueueCapacity - the capacity of the outbound send queue
+     */
+    public void setSendQueueCapacity( final int sendQueueCapacity )
+    {
+        this.sendQueueCapacity = sendQueueCapacity;
+    }
+
+    /**
+     * Returns the policy applied when the outbound send queue is full.
+     *
+     * @return {@link SendQueue#POLICY_BLOCK} or {@link SendQueue#POLICY_DROP}
+     */
+    public int getSendQueuePolicy()
+    {
+        return sendQueuePolicy;
+    }
+
+    /**
+     * Sets the policy applied when the outbound send queue is full.
+     *
+     * @param sendQueuePolicy - {@link SendQueue#POLICY_BLOCK} or {@link SendQueue#POLICY_DROP}
+     */
+    public void setSendQueuePolicy( final int sendQueuePolicy )
+    {
+        this.sendQueuePolicy = sendQueuePolicy;
+    }
+
+    /**
+     * Returns the directory the event log is written to.
+     *
+     * @return the directory of the log files, <code>null</code> if events are written to the standard error stream
+     */
+    public Path getLogDirectory()
+    {
+        return logDirectory;
+    }
+
+    /**
+     * Sets the directory the event log is written to in memory-mapped, size-rotated files.
+     *
+     * @param logDirectory - the directory of the log files, <code>null</code> to write to the standard error stream
+     */
+    public void setLogDirectory( final Path logDirectory )
+    {
+        this.logDirectory = logDirectory;
+    }
+
+    /**
+     * Returns the size at which a log file is rotated.
+     *
+     * @return the size of a log file in bytes
+     */
+    public long getLogFileSize()
+    {
+        return logFileSize;
+    }
+
+    /**
+     * Sets the size at which a log file is rotated.
+     *
+     * @param logFileSize - the size of a log file in bytes, at least {@link #MIN_LOG_FILE_SIZE}
+     */
+    public void setLogFileSize( final long logFileSize )
+    {
+        this.logFileSize = Math.max( MIN_LOG_FILE_SIZE, logFileSize );
+    }
+
+    /**
+     * Returns the level of each category of the event log.
+     *
+     * @return the levels indexed by category, such as {@link EventLog#RELAY}
+     */
+    public int [ ] getLogLevels()
+    {
+        return logLevels.clone();
+    }
+
+    /**
+     * Sets the level of the specified category of the event log. Events below the level are not logged.
+     *
+     * @param category - a category such as {@link EventLog#RELAY}
+     * @param level    - a level such as {@link EventLog#DEBUG}, or {@link EventLog#OFF} to log nothing
+     */
+    public void setLogLevel( final int category, final int level )
+    {
+        logLevels[ category ] = level;
+    }
+}
@@ -0,0 +1,740 @@
+package main.tools;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import main.client.KeyExchange;
+import main.client.SessionCipher;
+import main.common.Message;
+
+/**
+ * A headless load generator simulating a crowd of clients against a server. The simulated clients log in, pair up with
+ * the join command, agree on conversation keys with the same key exchange as the client, and then send sealed chat
+ * messages to each other at a fixed rate. Every chat message carries its send time and sequence number, so that the
+ * forwarding latency and the lost messages can be measured end to end. The clients do not use the reliable channel,
+ * so a message lost anywhere on the way is reported as lost.
+ * <p>
+ * The clients are driven by a few worker threads, each with its own selector and non-blocking channels. Both partners
+ * of a conversation are driven by the same worker, so that a pair can be inspected without synchronisation.
+ *
+ * @author Lauri Halla-aho
+ */
+public class LoadGenerator
+{
+    private static final String DEFAULT_HOST = "localhost";
+    private static final int DEFAULT_PORT = 1984;
+    private static final int DEFAULT_CLIENTS = 100;
+    private static final int DEFAULT_RATE = 10;
+    private static final int DEFAULT_DURATION = 30;
+    private static final int DEFAULT_SIZE = 64;
+
+    /**
+     * Capabilities advertised by the simulated clients. The reliable channel is left out on purpose.
+     */
+    private static final int CAPABILITIES = Message.CAP_WIRE_V2 | Message.CAP_SEALED | Message.CAP_X25519
+            | Message.CAP_RATCHET;
+
+    /**
+     * Length of the send time and the sequence number at the start of each chat message.
+     */
+    private static final int CHAT_HEADER_LENGTH = 12;
+
+    /**
+     * Largest chat message that still fits a single datagram once sealed: nonce, tag and frame header.
+     */
+    private static final int MAX_SIZE = Message.MAX_DATAGRAM_LENGTH - Message.HEADER_LENGTH_V2 - 12 - 16;
+
+    /**
+     * Interval between the first logins of consecutive clients, so that the server is not flooded at once.
+     */
+    private static final long LOGIN_SPACING = TimeUnit.MICROSECONDS.toNanos( 500 );
+
+    /**
+     * Interval after which an unanswered login, join or key exchange is repeated.
+     */
+    private static final long RETRY_INTERVAL = TimeUnit.SECONDS.toNanos( 1 );
+
+    /**
+     * Longest time waited for the conversations to be set up before the measurement starts anyway.
+     */
+    private static final long SETUP_TIMEOUT = TimeUnit.SECONDS.toMillis( 60 );
+
+    /**
+     * Time after the measurement during which messages still in flight are received.
+     */
+    private static final long DRAIN_TIME = TimeUnit.SECONDS.toNanos( 2 );
+
+    private final InetSocketAddress server;
+    private final int clients;
+    private final int rate;
+    private final long duration;
+    private final int size;
+    private final int capabilities;
+    private final Worker [ ] workers;
+
+    /**
+     * Counted down as each conversation has agreed on its key.
+     */
+    private final CountDownLatch ready;
+
+    /* Bounds of the measurement on the System.nanoTime() clock, unknown until the setup has finished. */
+    private volatile long chatStart = Long.MAX_VALUE;
+    private volatile long chatEnd = Long.MAX_VALUE - DRAIN_TIME;
+
+    public static void main( final String [ ] args ) throws Exception
+    {
+        String host = DEFAULT_HOST;
+        int port = DEFAULT_PORT;
+        int clients = DEFAULT_CLIENTS;
+        int rate = DEFAULT_RATE;
+        int duration = DEFAULT_DURATION;
+        int size = DEFAULT_SIZE;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean classicDh = false;
+        int positional = 0;
+
+        try
+        {
+            for ( int i = 0; i < args.length; i++ )
+            {
+                if ( args[ i ].equals( "-clients" ) )
+                {
+                    clients = Integer.parseInt( args[ ++i ] );
+                }
+                else if ( args[ i ].equals( "-rate" ) )
+                {
+                    rate = Integer.parseInt( args[ ++i ] );
+                }
+                else if ( args[ i ].equals( "-duration" ) )
+                {
+                    duration = Integer.parseInt( args[ ++i ] );
+                }
+                else if ( args[ i ].equals( "-size" ) )
+                {
+                    size = Integer.parseInt( args[ ++i ] );
+                }
+                else if ( args[ i ].equals( "-threads" ) )
+                {
+                    threads = Integer.parseInt( args[ ++i ] );
+                }
+                else if ( args[ i ].equals( "-dh" ) )
+                {
+                    classicDh = true;
+                }
+                else if ( positional++ == 0 )
+                {
+                    host = args[ i ];
+                }
+                else
+                {
+                    port = Integer.parseInt( args[ i ] );
+                }
+            }
+
+            if ( clients < 2 || rate < 1 || duration < 1 || threads < 1 || size < CHAT_HEADER_LENGTH
+                    || size > MAX_SIZE )
+            {
+                throw new NumberFormatException();
+            }
+        }
+        catch ( final NumberFormatException | ArrayIndexOutOfBoundsException e )
+        {
+            System.out.println( "Usage: java main.tools.LoadGenerator [host] [port] [-clients <count>] "
+                    + "[-rate <messages/s>] [-duration <s>] [-size <bytes>] [-threads <count>] [-dh]" );
+            System.out.println( "The message size must be between " + CHAT_HEADER_LENGTH + " and " + MAX_SIZE
+                    + " bytes." );
+            return;
+        }
+
+        new LoadGenerator( new InetSocketAddress( host, port ), clients, rate, duration, size, threads, classicDh )
+                .run();
+    }
+
+    /**
+     * Constructs a load generator.
+     *
+     * @param server    - address of the server
+     * @param clients   - number of simulated clients, rounded down to an even number
+     * @param rate      - chat messages sent per second by each client
+     * @param duration  - duration of the measurement in seconds
+     * @param size      - length of each chat message before encryption
+     * @param threads   - number of worker threads
+     * @param classicDh - <code>true</code> if the clients agree on their keys with the classic Diffie-Hellman exchange
+     *                  instead of X25519
+     * @throws IOException              if a selector or a channel cannot be opened
+     * @throws NoSuchAlgorithmException if the key exchange protocol of the client does not exist
+     */
+    public LoadGenerator( final InetSocketAddress server, final int clients, final int rate, final int duration,
+            final int size, final int threads, final boolean classicDh ) throws IOException, NoSuchAlgorithmException
+    {
+        this.server = server;
+        this.clients = clients / 2 * 2;
+        this.rate = rate;
+        this.duration = TimeUnit.SECONDS.toNanos( duration );
+        this.size = size;
+        capabilities = classicDh ? CAPABILITIES & ~Message.CAP_X25519 : CAPABILITIES;
+
+        final int pairs = this.clients / 2;
+        workers = new Worker [ Math.min( threads, pairs ) ];
+        ready = new CountDownLatch( pairs );
+
+        for ( int i = 0; i < workers.length; i++ )
+        {
+            workers[ i ] = new Worker();
+        }
+
+        /* A random tag keeps the usernames of consecutive runs apart while the server forgets the previous one. */
+        final String prefix = "load" + Integer.toHexString( ThreadLocalRandom.current().nextInt( 0x1000, 0x10000 ) )
+                + "-";
+        final long start = System.nanoTime();
+
+        for ( int i = 0; i < pairs; i++ )
+        {
+            final Worker worker = workers[ i % workers.length ];
+            final Bot initiator = new Bot( prefix + ( 2 * i ), true, start + 2 * i * LOGIN_SPACING );
+            final Bot responder = new Bot( prefix + ( 2 * i + 1 ), false, start + ( 2 * i + 1 ) * LOGIN_SPACING );
+
+            initiator.peer = responder;
+            responder.peer = initiator;
+
+            worker.add( initiator );
+            worker.add( responder );
+        }
+    }
+
+    /**
+     * Runs the simulation and prints its results.
+     *
+     * @throws InterruptedException if interrupted while waiting for the workers
+     */
+    public void run() throws InterruptedException
+    {
+        final Thread [ ] threads = new Thread [ workers.length ];
+
+        for ( int i = 0; i < workers.length; i++ )
+        {
+            threads[ i ] = new Thread( workers[ i ], "Load Worker " + i );
+            threads[ i ].start();
+        }
+
+        System.out.println( "Setting up " + clients / 2 + " conversations between " + clients + " clients..." );
+
+        final long setupStart = System.nanoTime();
+        ready.await( SETUP_TIMEOUT, TimeUnit.MILLISECONDS );
+        final long setupTime = System.nanoTime() - setupStart;
+        final long readyPairs = clients / 2 - ready.getCount();
+
+        System.out.println( String.format( Locale.ROOT, "%d conversations ready after %d ms, measuring for %d s...",
+                readyPairs, TimeUnit.NANOSECONDS.toMillis( setupTime ), TimeUnit.NANOSECONDS.toSeconds( duration ) ) );
+
+        chatEnd = System.nanoTime() + duration;
+        chatStart = chatEnd - duration;
+
+        for ( final Thread thread : threads )
+        {
+            thread.join();
+        }
+
+        report();
+    }
+
+    /**
+     * Prints the combined results of the workers.
+     */
+    private void report()
+    {
+        final Histogram latencies = new Histogram();
+        long sent = 0;
+        long received = 0;
+        long unsent = 0;
+        long rejected = 0;
+        long notices = 0;
+
+        for ( final Worker worker : workers )
+        {
+            latencies.add( worker.latencies );
+            sent += worker.sent;
+            received += worker.received;
+            unsent += worker.unsent;
+            rejected += worker.rejected;
+            notices += worker.notices;
+        }
+
+        final double seconds = duration / 1e9;
+        final long lost = Math.max( 0, sent - received - rejected );
+
+        System.out.println( String.format( Locale.ROOT, "Sent:     %d (%.1f messages/s)", sent, sent / seconds ) );
+        System.out.println( String.format( Locale.ROOT, "Received: %d (%.1f messages/s)", received,
+                received / seconds ) );
+        System.out.println( String.format( Locale.ROOT, "Lost:     %d (%.3f %%)", lost,
+                sent == 0 ? 0.0 : 100.0 * lost / sent ) );
+        System.out.println( String.format( Locale.ROOT,
+                "Not sent: %d (socket buffer full), not authenticated: %d, server notices: %d", unsent, rejected,
+                notices ) );
+        System.out.println( String.format( Locale.ROOT,
+                "Latency (us): p50 %d, p90 %d, p99 %d, p99.9 %d, max %d", latencies.getPercentile( 50 ),
+                latencies.getPercentile( 90 ), latencies.getPercentile( 99 ), latencies.getPercentile( 99.9 ),
+                latencies.getMax() ) );
+    }
+
+    /**
+     * A simulated client.
+     */
+    private final class Bot
+    {
+        private final String requestedName;
+        private final boolean initiator;
+        private final KeyExchange keyExchange = new KeyExchange( capabilities );
+
+        private Bot peer;
+        private DatagramChannel channel;
+
+        /**
+         * Username confirmed by the server, <code>null</code> until logged in.
+         */
+        private String username = null;
+
+        /**
+         * Key exchange request sent by an initiator, or received by a responder, kept for repeating it until answered.
+         */
+        private byte [ ] request = null;
+
+        /**
+         * Key exchange answer of a responder, kept for answering a repeated request.
+         */
+        private byte [ ] answer = null;
+
+        private SessionCipher cipher = null;
+
+        /**
+         * Time of the next login, join or key exchange attempt.
+         */
+        private long retryAt;
+
+        private long nextSend = 0;
+        private int sequence = 0;
+
+        /**
+         * Constructs a simulated client.
+         *
+         * @param requestedName - username to log in with
+         * @param initiator     - whether this client joins its partner, or waits to be joined
+         * @param loginAt       - time of the first login attempt
+         * @throws NoSuchAlgorithmException if the key exchange protocol of the client does not exist
+         */
+        private Bot( final String requestedName, final boolean initiator, final long loginAt )
+                throws NoSuchAlgorithmException
+        {
+            this.requestedName = requestedName;
+            this.initiator = initiator;
+            retryAt = loginAt;
+        }
+    }
+
+    /**
+     * Drives a share of the simulated clients on its own thread.
+     */
+    private final class Worker implements Runnable
+    {
+        private final Selector selector;
+        private final List < Bot > bots = new ArrayList <>();
+        private final ByteBuffer buffer = ByteBuffer.allocate( Message.MAX_DATAGRAM_LENGTH );
+
+        /**
+         * Chat messages are opened straight from the receive buffer into this one.
+         */
+        private final byte [ ] plainText = new byte [ Message.MAX_DATAGRAM_LENGTH ];
+
+        private final Histogram latencies = new Histogram();
+        private long sent = 0;
+        private long received = 0;
+        private long unsent = 0;
+        private long rejected = 0;
+        private long notices = 0;
+
+        private Worker() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        /**
+         * Opens a channel for the specified client and starts driving it.
+         *
+         * @param bot - a simulated client
+         * @throws IOException if the channel cannot be opened
+         */
+        private void add( final Bot bot ) throws IOException
+        {
+            bot.channel = DatagramChannel.open();
+            bot.channel.configureBlocking( false );
+            bot.channel.bind( null );
+            bot.channel.register( selector, SelectionKey.OP_READ, bot );
+            bots.add( bot );
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while ( System.nanoTime() < chatEnd + DRAIN_TIME )
+                {
+                    selector.select( 1 );
+
+                    final Iterator < SelectionKey > keys = selector.selectedKeys().iterator();
+
+                    while ( keys.hasNext() )
+                    {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        receive( (Bot) key.attachment() );
+                    }
+
+                    final long now = System.nanoTime();
+
+                    for ( final Bot bot : bots )
+                    {
+                        tick( bot, now );
+                    }
+                }
+
+                for ( final Bot bot : bots )
+                {
+                    if ( bot.username != null )
+                    {
+                        send( bot, new Message( Message.LOGOUT, bot.username ) );
+                    }
+                    bot.channel.close();
+                }
+                selector.close();
+            }
+            catch ( final IOException e )
+            {
+                e.printStackTrace();
+            }
+        }
+
+        /**
+         * Handles every datagram waiting in the channel of the specified client.
+         *
+         * @param bot - a simulated client
+         * @throws IOException if the channel fails
+         */
+        private void receive( final Bot bot ) throws IOException
+        {
+            while ( true )
+            {
+                buffer.clear();
+
+                if ( bot.channel.receive( buffer ) == null )
+                {
+                    return;
+                }
+
+                buffer.flip();
+
+                /* Nothing sent to the simulated clients needs to be fragmented. */
+                if ( ( Message.peekFlags( buffer ) & Message.FLAG_FRAGMENT ) != 0 )
+                {
+                    continue;
+                }
+
+                if ( Message.peekType( buffer ) == Message.MSG_SEALED
+                        && Message.peekVersion( buffer ) == Message.WIRE_V2 )
+                {
+                    receiveChat( bot );
+                }
+                else
+                {
+                    handle( bot, Message.parseFormattedMessage( buffer ) );
+                }
+            }
+        }
+
+        /**
+         * Opens a sealed chat message waiting in the receive buffer and records its latency.
+         *
+         * @param bot - the receiving client
+         */
+        private void receiveChat( final Bot bot )
+        {
+            final int length = bot.cipher == null ? -1 : bot.cipher.open( buffer.array(),
+                    buffer.arrayOffset() + Message.HEADER_LENGTH_V2, buffer.remaining() - Message.HEADER_LENGTH_V2,
+                    plainText, 0 );
+
+            if ( length < CHAT_HEADER_LENGTH )
+            {
+                rejected++;
+                return;
+            }
+
+            received++;
+            latencies.record( TimeUnit.NANOSECONDS.toMicros(
+                    System.nanoTime() - ByteBuffer.wrap( plainText ).getLong() ) );
+        }
+
+        /**
+         * Handles a message received by the specified client.
+         *
+         * @param bot     - a simulated client
+         * @param message - the received message
+         * @throws IOException if the channel fails
+         */
+        private void handle( final Bot bot, final Message message ) throws IOException
+        {
+            switch ( message.getType() )
+            {
+                case Message.LOGIN:
+                    if ( bot.username == null && message.getUsername() != null )
+                    {
+                        bot.username = message.getUsername();
+                        bot.retryAt = System.nanoTime();
+                    }
+                    break;
+                case Message.KEEP_ALIVE:
+                    send( bot, message );
+                    break;
+                case Message.PEER_AVAILABLE:
+                    if ( bot.request == null )
+                    {
+                        bot.request = bot.keyExchange.initiate( message.getCapabilities() );
+                        bot.retryAt = System.nanoTime() + RETRY_INTERVAL;
+                        send( bot, new Message( Message.DHKX_REQ, bot.request ) );
+                    }
+                    break;
+                case Message.DHKX_REQ:
+                    /* A repeated request is answered again with the same key, the first answer may have been lost. */
+                    if ( !Arrays.equals( message.getPayload(), bot.request ) )
+                    {
+                        bot.request = message.getPayload();
+                        bot.answer = bot.keyExchange.respond( bot.request );
+                        bot.cipher = bot.keyExchange.createCipher();
+                    }
+                    send( bot, new Message( Message.DHKX_RES, bot.answer ) );
+                    break;
+                case Message.DHKX_RES:
+                    if ( bot.cipher == null )
+                    {
+                        bot.keyExchange.complete( message.getPayload() );
+                        bot.cipher = bot.keyExchange.createCipher();
+                        ready.countDown();
+                    }
+                    break;
+                case Message.MSG_CHAT_CMD:
+                    if ( System.nanoTime() >= chatStart )
+                    {
+                        notices++;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Advances the specified client: repeats an unanswered login, join or key exchange, and sends the chat
+         * messages that are due.
+         *
+         * @param bot - a simulated client
+         * @param now - current time
+         * @throws IOException if the channel fails
+         */
+        private void tick( final Bot bot, final long now ) throws IOException
+        {
+            if ( bot.username == null )
+            {
+                if ( now >= bot.retryAt )
+                {
+                    bot.retryAt = now + RETRY_INTERVAL;
+                    sendLogin( bot );
+                }
+                return;
+            }
+
+            if ( bot.cipher == null || bot.peer.cipher == null )
+            {
+                if ( bot.initiator && bot.peer.username != null && now >= bot.retryAt )
+                {
+                    bot.retryAt = now + RETRY_INTERVAL;
+
+                    if ( bot.request == null )
+                    {
+                        send( bot, new Message( Message.MSG_CHAT_CMD, bot.username, "join " + bot.peer.username ) );
+                    }
+                    else
+                    {
+                        send( bot, new Message( Message.DHKX_REQ, bot.request ) );
+                    }
+                }
+                return;
+            }
+
+            if ( now < chatStart || now >= chatEnd )
+            {
+                return;
+            }
+
+            final long interval = TimeUnit.SECONDS.toNanos( 1 ) / rate;
+
+            if ( bot.nextSend == 0 )
+            {
+                /* Spread the clients evenly over the first interval. */
+                bot.nextSend = now + ThreadLocalRandom.current().nextLong( interval );
+            }
+            else if ( now - bot.nextSend > TimeUnit.SECONDS.toNanos( 1 ) )
+            {
+                /* The worker has fallen behind, skip the missed messages instead of sending them in a burst. */
+                bot.nextSend = now;
+            }
+
+            while ( bot.nextSend <= now )
+            {
+                bot.nextSend += interval;
+
+                final byte [ ] plainText = new byte [ size ];
+                ByteBuffer.wrap( plainText ).putLong( System.nanoTime() ).putInt( bot.sequence++ );
+
+                if ( send( bot, new Message( Message.MSG_SEALED, bot.cipher.seal( plainText ) ) ) )
+                {
+                    sent++;
+                }
+                else
+                {
+                    unsent++;
+                }
+            }
+        }
+
+        /**
+         * Sends a login of the specified client in the legacy framing, as the server does not yet know it.
+         *
+         * @param bot - a simulated client
+         * @throws IOException if the channel fails
+         */
+        private void sendLogin( final Bot bot ) throws IOException
+        {
+            final Message login = new Message( Message.LOGIN, bot.requestedName, capabilities );
+            bot.channel.send( ByteBuffer.wrap( login.getFormattedMessage() ), server );
+        }
+
+        /**
+         * Sends a message from the specified logged in client.
+         *
+         * @param bot     - a simulated client
+         * @param message - message to be sent
+         * @return <code>true</code> if the message was sent, <code>false</code> if the socket buffer was full
+         * @throws IOException if the channel fails
+         */
+        private boolean send( final Bot bot, final Message message ) throws IOException
+        {
+            return bot.channel.send( ByteBuffer.wrap( message.getFormattedMessage( Message.WIRE_V2 ) ), server ) > 0;
+        }
+    }
+
+    /**
+     * A histogram of latencies with a relative precision of 1/16. Values below 32 are counted exactly, larger values
+     * in 16 buckets per power of two.
+     */
+    private static final class Histogram
+    {
+        private static final int SUB_BUCKETS = 16;
+
+        private final long [ ] counts = new long [ 64 * SUB_BUCKETS ];
+        private long count = 0;
+        private long max = 0;
+
+        /**
+         * Records a value.
+         *
+         * @param value - a non-negative value
+         */
+        private void record( final long value )
+        {
+            final long v = Math.max( 0, value );
+
+            counts[ index( v ) ]++;
+            count++;
+            max = Math.max( max, v );
+        }
+
+        /**
+         * Adds the values recorded by another histogram to this one.
+         *
+         * @param other - another histogram
+         */
+        private void add( final Histogram other )
+        {
+            for ( int i = 0; i < counts.length; i++ )
+            {
+                counts[ i ] += other.counts[ i ];
+            }
+            count += other.count;
+            max = Math.max( max, other.max );
+        }
+
+        /**
+         * Returns the value at the specified percentile.
+         *
+         * @param percentile - a percentile between 0 and 100
+         * @return the lower bound of the bucket containing the percentile, 0 if nothing was recorded
+         */
+        private long getPercentile( final double percentile )
+        {
+            final long target = Math.max( 1, (long) Math.ceil( percentile / 100 * count ) );
+            long seen = 0;
+
+            for ( int i = 0; i < counts.length; i++ )
+            {
+                seen += counts[ i ];
+
+                if ( seen >= target )
+                {
+                    return Math.min( max, lowerBound( i ) );
+                }
+            }
+            return max;
+        }
+
+        private long getMax()
+        {
+            return max;
+        }
+
+        private static int index( final long value )
+        {
+            if ( value < 2 * SUB_BUCKETS )
+            {
+                return (int) value;
+            }
+
+            final int shift = 63 - Long.numberOfLeadingZeros( value ) - 4;
+
+            return shift * SUB_BUCKETS + (int) ( value >>> shift );
+        }
+
+        private static long lowerBound( final int index )
+        {
+            if ( index < 2 * SUB_BUCKETS )
+            {
+                return index;
+            }
+
+            final int shift = index / SUB_BUCKETS - 1;
+
+            return (long) ( index % SUB_BUCKETS + SUB_BUCKETS ) << shift;
+        }
+    }
+}